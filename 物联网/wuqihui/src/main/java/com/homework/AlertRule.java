@@ -0,0 +1,189 @@
+package com.homework;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一条告警规则的声明，由RuleEngine编译后执行
+ * RANGE: 读数不在范围内时违反，范围的开闭和ValidationUtility.checkInRange一致，NaN也算违反；
+ * RATE:  和同一主题同一设备的上一条读数相比，每秒变化量的绝对值大于maxRate时违反。
+ * 同一设备连续consecutive条读数违反时触发一次告警，恢复正常后才会再次触发
+ *
+ * 文本格式，每行一条，"#"开头的行是注释:
+ * 名字 主题过滤器 range [from, to) 连续条数
+ * 名字 主题过滤器 rate 每秒最大变化量 连续条数
+ * 区间写法和checkInRange的错误信息相同，"["、"]"为闭区间，"("、")"为开区间
+ */
+public final class AlertRule {
+    public enum Kind {
+        RANGE, RATE
+    }
+
+    private final String name;
+    private final String filter;
+    private final Kind kind;
+    private final double from;
+    private final double to;
+    private final boolean fromInclusive;
+    private final boolean toInclusive;
+    private final double maxRate;
+    private final int consecutive;
+
+    private AlertRule(String name, String filter, Kind kind, double from, double to, boolean fromInclusive,
+                      boolean toInclusive, double maxRate, int consecutive) {
+        if (name == null || name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('+') >= 0
+                || name.indexOf('#') >= 0) {
+            throw new IllegalArgumentException("invalid rule name: " + name);
+        }
+        if (consecutive <= 0) {
+            throw new IllegalArgumentException("consecutive should be positive");
+        }
+        this.name = name;
+        this.filter = filter;
+        this.kind = kind;
+        this.from = from;
+        this.to = to;
+        this.fromInclusive = fromInclusive;
+        this.toInclusive = toInclusive;
+        this.maxRate = maxRate;
+        this.consecutive = consecutive;
+    }
+
+    /**
+     * 读数连续consecutive次不在范围内时告警
+     * @param name 规则名，不能包含"/"、"+"、"#"，用作告警主题的一层
+     * @param filter 主题过滤器
+     * @param from 下界
+     * @param to 上界
+     * @param fromInclusive 下界是否包含
+     * @param toInclusive 上界是否包含
+     * @param consecutive 连续违反的条数
+     * @return 规则
+     */
+    public static AlertRule outOfRange(String name, String filter, double from, double to, boolean fromInclusive,
+                                       boolean toInclusive, int consecutive) {
+        return new AlertRule(name, filter, Kind.RANGE, from, to, fromInclusive, toInclusive, 0, consecutive);
+    }
+
+    /**
+     * 每秒变化量的绝对值连续consecutive次大于maxRate时告警
+     * @param name 规则名
+     * @param filter 主题过滤器
+     * @param maxRate 每秒允许的最大变化量
+     * @param consecutive 连续违反的条数
+     * @return 规则
+     */
+    public static AlertRule rateOfChange(String name, String filter, double maxRate, int consecutive) {
+        if (!(maxRate >= 0)) {
+            throw new IllegalArgumentException("maxRate should not be negative");
+        }
+        return new AlertRule(name, filter, Kind.RATE, 0, 0, false, false, maxRate, consecutive);
+    }
+
+    /**
+     * 解析一行规则
+     * @param line 规则文本
+     * @return 规则
+     * @throws IllegalArgumentException 格式不对
+     */
+    public static AlertRule parse(String line) {
+        String text = line.trim();
+        String[] head = text.split("\\s+", 4);
+        if (head.length < 4) {
+            throw new IllegalArgumentException("invalid rule: " + line);
+        }
+        String rest = head[3].trim();
+        try {
+            if ("range".equals(head[2])) {
+                int close = Math.max(rest.indexOf(']'), rest.indexOf(')'));
+                char open = rest.charAt(0);
+                if ((open != '[' && open != '(') || close < 0) {
+                    throw new IllegalArgumentException("invalid range: " + line);
+                }
+                String[] bounds = rest.substring(1, close).split(",");
+                if (bounds.length != 2) {
+                    throw new IllegalArgumentException("invalid range: " + line);
+                }
+                return outOfRange(head[0], head[1], Double.parseDouble(bounds[0].trim()),
+                        Double.parseDouble(bounds[1].trim()), open == '[', rest.charAt(close) == ']',
+                        Integer.parseInt(rest.substring(close + 1).trim()));
+            }
+            if ("rate".equals(head[2])) {
+                String[] args = rest.split("\\s+");
+                if (args.length != 2) {
+                    throw new IllegalArgumentException("invalid rate: " + line);
+                }
+                return rateOfChange(head[0], head[1], Double.parseDouble(args[0]), Integer.parseInt(args[1]));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid rule: " + line, e);
+        }
+        throw new IllegalArgumentException("unknown rule kind: " + line);
+    }
+
+    /**
+     * 读取规则文件，跳过空行和注释
+     * @param file 规则文件
+     * @return 规则
+     * @throws IOException
+     * @throws IllegalArgumentException 有格式不对的行
+     */
+    public static List<AlertRule> load(File file) throws IOException {
+        List<AlertRule> rules = new ArrayList<AlertRule>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String text = line.trim();
+            if (!text.isEmpty() && !text.startsWith("#")) {
+                rules.add(parse(text));
+            }
+        }
+        return rules;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public double getFrom() {
+        return from;
+    }
+
+    public double getTo() {
+        return to;
+    }
+
+    public boolean isFromInclusive() {
+        return fromInclusive;
+    }
+
+    public boolean isToInclusive() {
+        return toInclusive;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    public int getConsecutive() {
+        return consecutive;
+    }
+
+    public String toString() {
+        if (kind == Kind.RANGE) {
+            return name + " " + filter + " range " + (fromInclusive ? "[" : "(") + from + ", " + to
+                    + (toInclusive ? "]" : ")") + " " + consecutive;
+        }
+        return name + " " + filter + " rate " + maxRate + " " + consecutive;
+    }
+}
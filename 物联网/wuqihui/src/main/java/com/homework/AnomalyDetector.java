@@ -0,0 +1,286 @@
+package com.homework;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按(主题, 设备)序列在线检测异常读数
+ * 每个序列只保存O(1)的状态: 残差的指数加权均值和方差(EWMA)，可选再加上按时间分桶的季节基线，
+ * 比如按一天中的小时分24个桶，每个桶是该时段读数的EWMA。读数到达时先减去在相邻桶之间插值的基线得到残差
+ * (没有季节基线时残差就是读数本身)，再用更新前的均值和方差算z分数，|z|超过阈值即为异常，最后更新状态。
+ *
+ * 序列不是对象，而是一个下标: 主题换成主题号，(主题号, 设备id)在开放寻址表里查到下标，
+ * 均值、方差、计数和季节基线都存在按下标排列的基本类型数组里，百万个序列也只有几个大数组。
+ * 序列按哈希分到STRIPES个分片，每个分片各自加锁、各自扩容，不同工作线程基本不会互相等待
+ */
+public class AnomalyDetector {
+    private static final int STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final double alpha;
+    private final double threshold;
+    private final int warmup;
+    private final int buckets;
+    private final long bucketMillis;
+    private final double seasonalAlpha;
+    private final int maxSeries;
+    private final Sink sink;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ConcurrentHashMap<String, Integer> topicIds = new ConcurrentHashMap<String, Integer>();
+    private final AtomicLong anomalies = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * 发现异常读数时的回调，在score的调用线程里调用，调用时不持有锁
+     */
+    public interface Sink {
+        void onAnomaly(String topic, long deviceId, long timestamp, double value, double expected, double score);
+    }
+
+    /**
+     * 构造函数
+     * @param alpha 残差均值和方差的平滑系数，(0, 1]
+     * @param threshold |z|超过它时报告异常
+     * @param warmup 一个序列前多少条读数只更新状态、不报告异常
+     * @param buckets 季节基线的桶数，0表示不用季节基线
+     * @param bucketMillis 一个桶的时长，毫秒，buckets个桶构成一个周期
+     * @param seasonalAlpha 季节基线的平滑系数，(0, 1]
+     * @param maxSeries 序列数上限，超出后新序列的读数不评分
+     * @param sink 发现异常时的回调
+     * @throws IllegalArgumentException 参数不合法
+     */
+    public AnomalyDetector(double alpha, double threshold, int warmup, int buckets, long bucketMillis,
+                           double seasonalAlpha, int maxSeries, Sink sink) {
+        if (!(alpha > 0 && alpha <= 1) || !(seasonalAlpha > 0 && seasonalAlpha <= 1)) {
+            throw new IllegalArgumentException("alpha should be in (0, 1]");
+        }
+        if (buckets < 0 || (buckets > 0 && bucketMillis <= 0) || maxSeries <= 0) {
+            throw new IllegalArgumentException("invalid buckets or maxSeries");
+        }
+        this.alpha = alpha;
+        this.threshold = threshold;
+        this.warmup = warmup;
+        this.buckets = buckets;
+        this.bucketMillis = bucketMillis;
+        this.seasonalAlpha = seasonalAlpha;
+        this.maxSeries = maxSeries;
+        this.sink = sink;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * 构造函数，不用季节基线
+     */
+    public AnomalyDetector(double alpha, double threshold, int warmup, int maxSeries, Sink sink) {
+        this(alpha, threshold, warmup, 0, 1, 1, maxSeries, sink);
+    }
+
+    /**
+     * 把序列数、异常数和因序列数超限没有评分的读数注册为指标
+     */
+    public void setMetrics(Metrics metrics) {
+        metrics.gauge("anomaly.series", new Metrics.Gauge() {
+            public long get() {
+                return seriesCount();
+            }
+        });
+        metrics.gauge("anomaly.detected", new Metrics.Gauge() {
+            public long get() {
+                return getAnomalyCount();
+            }
+        });
+        metrics.gauge("anomaly.rejected", new Metrics.Gauge() {
+            public long get() {
+                return getRejectedCount();
+            }
+        });
+    }
+
+    /**
+     * 给一条读数评分并更新序列的状态
+     * @param topic 主题
+     * @param deviceId 设备id
+     * @param timestamp 毫秒时间戳
+     * @param value 数值
+     * @return z分数，预热期内为0，NaN读数或序列数超限时为NaN
+     */
+    public double score(String topic, long deviceId, long timestamp, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return Double.NaN;
+        }
+        int topicId = topicId(topic);
+        long hash = mix(deviceId * 0x9E3779B97F4A7C15L + topicId);
+        Stripe stripe = stripes[(int) (hash >>> 60) & (STRIPES - 1)];
+        double z = 0;
+        double expected = 0;
+        synchronized (stripe) {
+            int s = stripe.index(topicId, deviceId, hash);
+            if (s < 0) {
+                rejected.incrementAndGet();
+                return Double.NaN;
+            }
+            //先减去季节基线
+            if (buckets > 0) {
+                long slot = Math.floorDiv(timestamp, bucketMillis);
+                int bucket = (int) Math.floorMod(slot, (long) buckets);
+                int cell = s * buckets + bucket;
+                double baseline = stripe.seasonal[cell];
+                if (Double.isNaN(baseline)) {
+                    baseline = value;
+                }
+                //桶的基线代表桶中点的值，在相邻两个桶之间线性插值，否则平滑变化的读数在桶边界处会跳变
+                double offset = (double) (timestamp - slot * bucketMillis) / bucketMillis - 0.5;
+                int neighbor = offset >= 0 ? (bucket + 1) % buckets : (bucket + buckets - 1) % buckets;
+                double next = stripe.seasonal[s * buckets + neighbor];
+                expected = Double.isNaN(next) ? baseline : baseline + (next - baseline) * Math.abs(offset);
+                stripe.seasonal[cell] = baseline + seasonalAlpha * (value - baseline);
+            }
+            double residual = value - expected;
+            double mean = stripe.mean[s];
+            double variance = stripe.variance[s];
+            int count = stripe.count[s];
+            double diff = residual - mean;
+            if (count >= warmup && variance > 0) {
+                z = diff / Math.sqrt(variance);
+            }
+            //EWMA均值和方差的增量更新
+            if (count == 0) {
+                stripe.mean[s] = residual;
+            } else {
+                double increment = alpha * diff;
+                stripe.mean[s] = mean + increment;
+                stripe.variance[s] = (1 - alpha) * (variance + diff * increment);
+            }
+            if (count < Integer.MAX_VALUE) {
+                stripe.count[s] = count + 1;
+            }
+            expected += mean;
+        }
+        if (Math.abs(z) > threshold) {
+            anomalies.incrementAndGet();
+            sink.onAnomaly(topic, deviceId, timestamp, value, expected, z);
+        }
+        return z;
+    }
+
+    private int topicId(String topic) {
+        Integer id = topicIds.get(topic);
+        if (id == null) {
+            synchronized (topicIds) {
+                id = topicIds.get(topic);
+                if (id == null) {
+                    id = topicIds.size();
+                    topicIds.put(topic, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return 当前的序列数
+     */
+    public long seriesCount() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.size;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return 报告的异常数
+     */
+    public long getAnomalyCount() {
+        return anomalies.get();
+    }
+
+    /**
+     * @return 因序列数超限没有评分的读数
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * 一个分片: (主题号, 设备id)到序列下标的开放寻址表，和按下标排列的状态数组
+     */
+    private final class Stripe {
+        //表中存序列下标+1，0表示空位；装载因子不超过0.5
+        int[] slots = new int[INITIAL_CAPACITY * 2];
+        int[] topics = new int[INITIAL_CAPACITY];
+        long[] devices = new long[INITIAL_CAPACITY];
+        double[] mean = new double[INITIAL_CAPACITY];
+        double[] variance = new double[INITIAL_CAPACITY];
+        int[] count = new int[INITIAL_CAPACITY];
+        double[] seasonal = newSeasonal(INITIAL_CAPACITY);
+        int size;
+
+        /**
+         * @return 序列下标，没有时分配一个，序列数超限时返回-1
+         */
+        int index(int topicId, long deviceId, long hash) {
+            int mask = slots.length - 1;
+            int i = (int) hash & mask;
+            for (int slot; (slot = slots[i]) != 0; i = (i + 1) & mask) {
+                int s = slot - 1;
+                if (devices[s] == deviceId && topics[s] == topicId) {
+                    return s;
+                }
+            }
+            if ((long) size * STRIPES >= maxSeries) {
+                return -1;
+            }
+            if (size == topics.length) {
+                grow();
+                return index(topicId, deviceId, hash);
+            }
+            int s = size++;
+            topics[s] = topicId;
+            devices[s] = deviceId;
+            slots[i] = s + 1;
+            return s;
+        }
+
+        private void grow() {
+            int capacity = topics.length * 2;
+            topics = Arrays.copyOf(topics, capacity);
+            devices = Arrays.copyOf(devices, capacity);
+            mean = Arrays.copyOf(mean, capacity);
+            variance = Arrays.copyOf(variance, capacity);
+            count = Arrays.copyOf(count, capacity);
+            if (buckets > 0) {
+                double[] larger = newSeasonal(capacity);
+                System.arraycopy(seasonal, 0, larger, 0, seasonal.length);
+                seasonal = larger;
+            }
+            slots = new int[capacity * 2];
+            int mask = slots.length - 1;
+            for (int s = 0; s < size; s++) {
+                int i = (int) mix(devices[s] * 0x9E3779B97F4A7C15L + topics[s]) & mask;
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = s + 1;
+            }
+        }
+
+        private double[] newSeasonal(int capacity) {
+            double[] values = new double[buckets == 0 ? 0 : Math.multiplyExact(capacity, buckets)];
+            Arrays.fill(values, Double.NaN);
+            return values;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 基于MqttAsyncClient的流水线发布器
+ * 同时允许window条QoS1/QoS2消息在途，只有窗口占满时publish才会阻塞调用者，
+ * 发布结果通过CompletableFuture返回，而不是像Server.publish那样每条消息都waitForCompletion
+ */
+public class AsyncPublisher implements Publisher {
+    //默认的在途窗口大小
+    public static final int DEFAULT_WINDOW = 64;
+
+    private final MqttAsyncClient client;
+    private final int window;
+    private final Semaphore permits;
+    private volatile Metrics metrics;
+
+    /**
+     * 构造函数
+     * @param client 已创建好的异步客户端
+     * @param window 在途消息窗口大小
+     */
+    public AsyncPublisher(MqttAsyncClient client, int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window should be positive");
+        }
+        this.client = client;
+        this.window = window;
+        this.permits = new Semaphore(window);
+    }
+
+    /**
+     * 记录发布的消息数、字节数和送达延迟，并把在途消息数注册为指标
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge("publish.inFlight", new Metrics.Gauge() {
+            public long get() {
+                return inFlight();
+            }
+        });
+        metrics.gauge("publish.window", new Metrics.Gauge() {
+            public long get() {
+                return window;
+            }
+        });
+    }
+
+    /**
+     * 连接服务器，Paho自身的maxInflight要不小于窗口，否则会先于窗口报REASON_CODE_MAX_INFLIGHT
+     * @param options 连接设置
+     * @throws MqttException
+     */
+    public void connect(MqttConnectOptions options) throws MqttException {
+        if (options.getMaxInflight() < window) {
+            options.setMaxInflight(window);
+        }
+        client.connect(options).waitForCompletion();
+    }
+
+    /**
+     * 异步发布一条消息，窗口已满时阻塞直到有消息完成
+     * @param topic 主题
+     * @param message 消息
+     * @return 消息送达(QoS1收到PUBACK, QoS2收到PUBCOMP)时完成的future
+     * @throws MqttException
+     * @throws InterruptedException 等待窗口时被中断
+     */
+    public CompletableFuture<IMqttDeliveryToken> publish(final String topic, final MqttMessage message)
+            throws MqttException, InterruptedException {
+        final CompletableFuture<IMqttDeliveryToken> future = new CompletableFuture<IMqttDeliveryToken>();
+        permits.acquire();
+        final long start = System.nanoTime();
+        try {
+            client.publish(topic, message, null, new IMqttActionListener() {
+                public void onSuccess(IMqttToken token) {
+                    permits.release();
+                    Metrics m = metrics;
+                    if (m != null) {
+                        m.message("published", topic, message.getPayload().length);
+                        m.record("publish.deliveryComplete", System.nanoTime() - start);
+                    }
+                    future.complete((IMqttDeliveryToken) token);
+                }
+
+                public void onFailure(IMqttToken token, Throwable cause) {
+                    permits.release();
+                    Metrics m = metrics;
+                    if (m != null) {
+                        m.count("publish.failed", 1);
+                    }
+                    future.completeExceptionally(cause);
+                }
+            });
+        } catch (MqttException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * 等待所有在途消息完成
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        permits.acquire(window);
+        permits.release(window);
+    }
+
+    /**
+     * @return 当前在途的消息数
+     */
+    public int inFlight() {
+        return window - permits.availablePermits();
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public MqttAsyncClient getClient() {
+        return client;
+    }
+
+    /**
+     * 等待在途消息完成后断开连接
+     * @throws MqttException
+     * @throws InterruptedException
+     */
+    public void close() throws MqttException, InterruptedException {
+        flush();
+        client.disconnect().waitForCompletion();
+        client.close();
+    }
+}
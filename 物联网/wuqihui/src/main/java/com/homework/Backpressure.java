@@ -0,0 +1,13 @@
+package com.homework;
+
+/**
+ * 分发队列满时的处理策略
+ */
+public enum Backpressure {
+    //阻塞回调线程，直到队列有空位
+    BLOCK,
+    //丢弃队列中最旧的消息
+    DROP_OLDEST,
+    //溢出的消息按顺序写入磁盘，队列腾出来后再读回
+    SPILL
+}
@@ -0,0 +1,137 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把同一主题的小记录攒成一条消息再发布
+ * 一批的字节数达到maxBatchBytes立即发送，否则第一条记录进来后最多等lingerMillis毫秒；
+ * 订阅端用UnbatchingCallback拆开，回调看到的仍是一条条记录
+ */
+public class BatchingPublisher {
+    private final Publisher target;
+    private final int qos;
+    private final long lingerNanos;
+    private final int maxBatchBytes;
+    private final ConcurrentHashMap<String, Pending> batches = new ConcurrentHashMap<String, Pending>();
+    private final ScheduledFuture<?> timer;
+
+    /**
+     * 构造函数
+     * @param target 实际发布消息的发布器
+     * @param qos 打包后消息的QoS
+     * @param lingerMillis 一批最多等待的毫秒数
+     * @param maxBatchBytes 一批最多的字节数，单条记录超过时单独成批
+     * @param scheduler 定时发送到期批的线程池
+     */
+    public BatchingPublisher(Publisher target, int qos, long lingerMillis, int maxBatchBytes,
+                             ScheduledExecutorService scheduler) {
+        this.target = target;
+        this.qos = qos;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.maxBatchBytes = maxBatchBytes;
+        long period = Math.max(1, lingerMillis / 2);
+        this.timer = scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    flushExpired();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 追加一条记录
+     * @param topic 主题
+     * @param record 记录内容
+     * @throws MqttException
+     * @throws InterruptedException
+     */
+    public void add(String topic, byte[] record) throws MqttException, InterruptedException {
+        Pending pending = batches.get(topic);
+        if (pending == null) {
+            Pending created = new Pending(topic);
+            pending = batches.putIfAbsent(topic, created);
+            if (pending == null) {
+                pending = created;
+            }
+        }
+        synchronized (pending) {
+            if (pending.batch.count() > 0
+                    && RecordBatch.sizeWith(pending.batch.length(), record.length) > maxBatchBytes) {
+                pending.send();
+            }
+            if (pending.batch.count() == 0) {
+                pending.firstAdded = System.nanoTime();
+            }
+            pending.batch.add(record, 0, record.length);
+            if (pending.batch.length() >= maxBatchBytes) {
+                pending.send();
+            }
+        }
+    }
+
+    /**
+     * 立即发送所有未满的批
+     * @throws MqttException
+     * @throws InterruptedException
+     */
+    public void flush() throws MqttException, InterruptedException {
+        for (Pending pending : batches.values()) {
+            synchronized (pending) {
+                pending.send();
+            }
+        }
+    }
+
+    /**
+     * 发送剩余的批并停止定时器
+     * @throws MqttException
+     * @throws InterruptedException
+     */
+    public void close() throws MqttException, InterruptedException {
+        timer.cancel(false);
+        flush();
+    }
+
+    private void flushExpired() throws MqttException, InterruptedException {
+        long now = System.nanoTime();
+        for (Pending pending : batches.values()) {
+            synchronized (pending) {
+                if (pending.batch.count() > 0 && now - pending.firstAdded >= lingerNanos) {
+                    pending.send();
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个主题正在攒的批
+     */
+    private class Pending {
+        final String topic;
+        final RecordBatch batch = new RecordBatch(Math.min(maxBatchBytes, 64 * 1024));
+        long firstAdded;
+
+        Pending(String topic) {
+            this.topic = topic;
+        }
+
+        void send() throws MqttException, InterruptedException {
+            if (batch.count() == 0) {
+                return;
+            }
+            MqttMessage message = new MqttMessage(batch.toByteArray());
+            message.setQos(qos);
+            batch.reset();
+            target.publish(topic, message);
+        }
+    }
+}
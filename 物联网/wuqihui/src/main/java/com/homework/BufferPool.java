@@ -0,0 +1,79 @@
+package com.homework;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按2的幂分级的ByteBuffer池，多个线程共用
+ * 256字节到1MB各一级，每级最多缓存maxPerClass个；更大的缓冲区不入池，直接分配
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 20;
+
+    private final int maxPerClass;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] sizes;
+
+    /**
+     * 构造函数
+     * @param maxPerClass 每一级最多缓存的缓冲区数
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxPerClass) {
+        this.maxPerClass = maxPerClass;
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        free = new ConcurrentLinkedQueue[classes];
+        sizes = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            sizes[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @return 容量不小于size、已clear的缓冲区
+     */
+    public ByteBuffer acquire(int size) {
+        int shift = shift(size);
+        if (shift > MAX_SHIFT) {
+            return ByteBuffer.allocate(size);
+        }
+        int cls = shift - MIN_SHIFT;
+        ByteBuffer buf = free[cls].poll();
+        if (buf == null) {
+            return ByteBuffer.allocate(1 << shift);
+        }
+        sizes[cls].decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * 归还缓冲区，归还后调用者不能再使用它
+     */
+    public void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        if (Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        if (shift < MIN_SHIFT || shift > MAX_SHIFT) {
+            return;
+        }
+        int cls = shift - MIN_SHIFT;
+        if (sizes[cls].incrementAndGet() > maxPerClass) {
+            sizes[cls].decrementAndGet();
+            return;
+        }
+        free[cls].offer(buf);
+    }
+
+    private static int shift(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return MIN_SHIFT;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
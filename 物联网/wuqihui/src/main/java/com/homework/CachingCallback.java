@@ -0,0 +1,39 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * 把收到的每条消息记入LastValueCache，再交给后面的回调
+ * 文件分块不是设备状态，只会占满缓存的字节预算，不缓存
+ */
+public class CachingCallback implements MqttCallback {
+    private final MqttCallback delegate;
+    private final LastValueCache cache;
+
+    /**
+     * 构造函数
+     * @param delegate 后面的回调
+     * @param cache 最新值缓存
+     */
+    public CachingCallback(MqttCallback delegate, LastValueCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    public void connectionLost(Throwable cause) {
+        delegate.connectionLost(cause);
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        delegate.deliveryComplete(token);
+    }
+
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        if (!FileChunk.TOPIC.equals(topic)) {
+            cache.put(topic, message);
+        }
+        delegate.messageArrived(topic, message);
+    }
+}
@@ -1,26 +1,99 @@
 package com.homework;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttTopic;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 public class Client {
-    public static final String HOST = "tcp://192.168.1.112:1883";
+    //可以用-Dmqtt.host=tcp://127.0.0.1:1883改成本机的EmbeddedBroker
+    public static final String HOST = System.getProperty("mqtt.host", "tcp://192.168.1.112:1883");
     public static final String TOPIC = "wqhTopic";
     private static final String clientid = "client11";
+    //received.log的组提交策略: 每100条或每1000毫秒fsync一次
+    private static final int SYNC_EVERY = 100;
+    private static final long SYNC_INTERVAL = 1000;
+    private static final int SINK_CAPACITY = 8192;
+    //分发通道数和每个通道的队列容量
+    private static final int DISPATCH_WORKERS = 4;
+    private static final int DISPATCH_CAPACITY = 1024;
+    //指标打印的间隔，单位毫秒
+    private static final long METRICS_INTERVAL = 10000;
+    //传感器读数的主题，收到的读数写入时序存储
+    public static final String READINGS_TOPIC = "sensors/#";
+    public static final String TSDB_DIR = "tsdb";
+    //时序存储缓冲区的刷新间隔，单位毫秒，进程崩溃时最多丢失这么长时间的读数
+    private static final long TSDB_FLUSH_INTERVAL = 1000;
+    //窗口聚合结果发布到"rollups/窗口名/原主题"，payload为"开始,结束,count,min,max,avg"
+    public static final String ROLLUP_TOPIC_PREFIX = "rollups/";
+    //窗口聚合允许迟到的时间和同时聚合的主题数上限
+    private static final long ROLLUP_LATENESS = 2000;
+    private static final int ROLLUP_SERIES = 10000;
+    //告警规则文件，规则触发时发布到"alerts/规则名"，payload为"主题,设备id,时间戳,数值"
+    public static final String RULES_FILE = "rules.txt";
+    public static final String ALERT_TOPIC_PREFIX = "alerts/";
+    //异常读数发布到"anomalies/原主题"，payload为"设备id,时间戳,数值,期望值,z分数"
+    public static final String ANOMALY_TOPIC_PREFIX = "anomalies/";
+    //残差EWMA的平滑系数、z分数阈值和预热条数；季节基线按一天中的小时分24个桶，每条读数以0.02的权重更新所在的桶
+    private static final double ANOMALY_ALPHA = 0.05;
+    private static final double ANOMALY_THRESHOLD = 4;
+    private static final int ANOMALY_WARMUP = 30;
+    private static final int ANOMALY_BUCKETS = 24;
+    private static final long ANOMALY_BUCKET_MILLIS = 3600000;
+    private static final double ANOMALY_SEASONAL_ALPHA = 0.02;
+    private static final int ANOMALY_SERIES = 1000000;
+    //告警规则检查的(主题, 设备)序列数上限
+    private static final int RULE_SERIES = 1000000;
+    //最新值缓存的主题数上限和每个主题保存的最近消息数
+    private static final int LAST_VALUE_TOPICS = 100000;
+    private static final int LAST_VALUE_HISTORY = 16;
+    //最新值缓存的payload总字节数上限
+    private static final long LAST_VALUE_BYTES = 64L * 1024 * 1024;
+    //聚合、告警、异常结果的发布队列容量，满时丢弃
+    private static final int DERIVED_QUEUE = 10000;
+    //同时等待PUBACK的消息数上限，Paho默认只有10条，告警集中触发时很快占满
+    private static final int MAX_INFLIGHT = 100;
     private MqttClient client;
     private MqttConnectOptions options;
+    private GroupCommitSink sink;
+    private Reconnector reconnector;
+    private TopicRouter router;
+    private TimeSeriesStore store;
+    private WindowedRollup[] rollups;
+    private RuleEngine rules;
+    private AnomalyDetector detector;
+    //收到的每个主题的最新消息和最近几条消息，本地消费者直接读取
+    private final LastValueCache lastValues = new LastValueCache(LAST_VALUE_TOPICS, LAST_VALUE_HISTORY,
+            LAST_VALUE_BYTES);
+    //收到的消息数、字节数、回调延迟、落盘延迟和重连情况，通过JMX查看并定时打印
+    private final Metrics metrics = new Metrics(clientid);
     private String userName = "wuqihui";
     private String passWord = "123456";
 
     private ScheduledExecutorService scheduler;
+    //发布聚合、告警、异常结果的线程，分发线程只入队，不在持有引擎锁时等待服务器
+    private final ThreadPoolExecutor derivedPublisher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(DERIVED_QUEUE), new RejectedExecutionHandler() {
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    metrics.count("derived.dropped", 1);
+                }
+            });
 
     private void start() {
         try {
-            // host为主机名，clientid即连接MQTT的客户端ID，一般以唯一标识符表示，MemoryPersistence设置clientid的保存形式，默认为以内存保存
-            client = new MqttClient(HOST, clientid, new MemoryPersistence());
+            // host为主机名，clientid即连接MQTT的客户端ID，一般以唯一标识符表示，MappedFilePersistence把会话状态保存在磁盘上的映射日志中
+            client = new MqttClient(HOST, clientid, new MappedFilePersistence(Server.PERSISTENCE_DIR));
             // MQTT的连接设置
             options = new MqttConnectOptions();
             // 设置是否清空session,这里如果设置为false表示服务器会保留客户端的连接记录，这里设置为true表示每次连接到服务器都以新的身份连接
@@ -33,23 +106,160 @@ public class Client {
             options.setConnectionTimeout(10);
             // 设置会话心跳时间 单位为秒 服务器会每隔1.5*20秒的时间向客户端发送个消息判断客户端是否在线，但这个方法并没有重连的机制
             options.setKeepAliveInterval(20);
+            // 在途消息达到上限时reconnector.publish等待，发布线程也就跟着等待，积压留在发布队列里
+            options.setMaxInflight(MAX_INFLIGHT);
             // 设置回调
-            client.setCallback(new PushCallBack());
+            sink = new GroupCommitSink(new File(PushCallBack.RECEIVE_DIR + "received.log"),
+                    SYNC_EVERY, SYNC_INTERVAL, SINK_CAPACITY);
+            // 消息交给工作线程处理，同一主题内保持顺序，不占用Paho的回调线程
+            // 按主题过滤器分发给注册的处理器，没有处理器匹配的消息交给PushCallBack
+            PushCallBack fallback = new PushCallBack(sink,
+                    new FileChunkReceiver(client, new File(PushCallBack.RECEIVE_DIR)));
+            fallback.setMetrics(metrics);
+            router = new TopicRouter(fallback);
+            // 分发到处理器之前先记入最新值缓存
+            DispatchingCallback dispatcher = new DispatchingCallback(new CachingCallback(router, lastValues),
+                    DISPATCH_WORKERS, DISPATCH_CAPACITY, Backpressure.BLOCK, null);
+            dispatcher.setMetrics(metrics);
+            sink.setMetrics(metrics);
+            lastValues.setMetrics(metrics);
+            // 断线后按指数退避自动重连并重新订阅
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            // 重连后重投的消息按发布方分配的id丢弃，压缩的消息再解压，批量发布的消息在进入分发队列前拆成单条记录
+            UnbatchingCallback unbatching = new UnbatchingCallback(dispatcher);
+            unbatching.setMetrics(metrics);
+            DecompressingCallback decompressing = new DecompressingCallback(unbatching);
+            decompressing.setMetrics(metrics);
+            DedupCallback dedup = new DedupCallback(decompressing);
+            dedup.setMetrics(metrics);
+            reconnector = new Reconnector(client, options, dedup, scheduler);
+            reconnector.setMetrics(metrics);
+            metrics.register();
+            metrics.startReporter(scheduler, METRICS_INTERVAL, System.out);
+            client.setCallback(reconnector);
             MqttTopic topic = client.getTopic(TOPIC);
             //setWill方法，如果项目中需要知道客户端是否掉线可以调用该方法。设置最终端口的通知消息
             options.setWill(topic, "".getBytes(), 2, true);
 
-            client.connect(options);
-            //订阅消息
-            int[] Qos  = {1};
-            String[] topic1 = {TOPIC};
-            client.subscribe(topic1, Qos);
+            //订阅消息，先记在reconnector里，连上后订阅
+            int[] Qos  = {1, 1};
+            String[] topic1 = {TOPIC, FileChunk.TOPIC};
+            reconnector.subscribe(topic1, Qos);
+            // 传感器读数追加到按小时分区的时序存储，每秒把缓冲区写到文件
+            store = new TimeSeriesStore(new File(TSDB_DIR));
+            // 同时按1秒、1分钟、1小时的滚动窗口聚合，窗口关闭时发布结果，看板不用再读原始读数
+            WindowedRollup.Sink rollupSink = new WindowedRollup.Sink() {
+                public void onRollup(String name, String topic, long windowStart, long windowEnd,
+                                     long count, double min, double max, double sum) {
+                    String text = windowStart + "," + windowEnd + "," + count + "," + min + "," + max
+                            + "," + sum / count;
+                    publishLater(ROLLUP_TOPIC_PREFIX + name + "/" + topic, text, 0);
+                }
+            };
+            rollups = new WindowedRollup[] {
+                    new WindowedRollup("1s", 1000, ROLLUP_LATENESS, ROLLUP_SERIES, rollupSink),
+                    new WindowedRollup("1m", 60000, ROLLUP_LATENESS, ROLLUP_SERIES, rollupSink),
+                    new WindowedRollup("1h", 3600000, ROLLUP_LATENESS, ROLLUP_SERIES, rollupSink)
+            };
+            for (WindowedRollup rollup : rollups) {
+                rollup.setMetrics(metrics);
+            }
+            // 告警规则编译一次，每条读数都检查
+            File rulesFile = new File(RULES_FILE);
+            rules = new RuleEngine(rulesFile.isFile() ? AlertRule.load(rulesFile) : new ArrayList<AlertRule>(),
+                    RULE_SERIES, new RuleEngine.Sink() {
+                        public void onAlert(AlertRule rule, String topic, long deviceId, long timestamp,
+                                            double value) {
+                            System.out.println("告警 : " + rule + " 主题" + topic + " 数值" + value);
+                            String text = topic + "," + deviceId + "," + timestamp + "," + value;
+                            publishLater(ALERT_TOPIC_PREFIX + rule.getName(), text, 1);
+                        }
+                    });
+            rules.setMetrics(metrics);
+            // 每条读数按所在序列的EWMA和季节基线评分
+            detector = new AnomalyDetector(ANOMALY_ALPHA, ANOMALY_THRESHOLD, ANOMALY_WARMUP, ANOMALY_BUCKETS,
+                    ANOMALY_BUCKET_MILLIS, ANOMALY_SEASONAL_ALPHA, ANOMALY_SERIES, new AnomalyDetector.Sink() {
+                        public void onAnomaly(String topic, long deviceId, long timestamp, double value,
+                                              double expected, double score) {
+                            String text = deviceId + "," + timestamp + "," + value + "," + expected + "," + score;
+                            publishLater(ANOMALY_TOPIC_PREFIX + topic, text, 0);
+                        }
+                    });
+            detector.setMetrics(metrics);
+            route(READINGS_TOPIC, 1, new ReadingListener() {
+                protected void onReading(String topic, long deviceId, long timestamp, double value)
+                        throws IOException {
+                    rules.evaluate(topic, deviceId, timestamp, value);
+                    detector.score(topic, deviceId, timestamp, value);
+                    store.append(topic, deviceId, timestamp, value);
+                    for (WindowedRollup rollup : rollups) {
+                        rollup.add(topic, timestamp, value);
+                    }
+                }
+            });
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        store.flush();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    // 很久没有读数的主题按墙上时钟关闭窗口
+                    long now = System.currentTimeMillis();
+                    for (WindowedRollup rollup : rollups) {
+                        rollup.expire(now);
+                    }
+                }
+            }, TSDB_FLUSH_INTERVAL, TSDB_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            // 处理器都注册好以后在后台连接，服务器不可用时按退避重试，连上后订阅上面所有的主题
+            reconnector.start();
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 把聚合、告警、异常结果交给发布线程，不等待发送；断线时由reconnector缓存，
+     * 在途消息占满时发布线程等待，队列满了才丢弃
+     * @param topic 主题
+     * @param text 文本payload
+     * @param qos QoS
+     */
+    private void publishLater(final String topic, String text, int qos) {
+        final MqttMessage message = new MqttMessage(text.getBytes(StandardCharsets.UTF_8));
+        message.setQos(qos);
+        derivedPublisher.execute(new Runnable() {
+            public void run() {
+                try {
+                    reconnector.publish(topic, message);
+                } catch (MqttException e) {
+                    metrics.count("derived.failed", 1);
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * 为一个主题过滤器注册处理器并订阅
+     * @param filter 主题过滤器，可以包含"+"和"#"
+     * @param qos 订阅的QoS
+     * @param handler 处理器
+     * @throws MqttException
+     */
+    public void route(String filter, int qos, IMqttMessageListener handler) throws MqttException {
+        router.add(filter, handler);
+        reconnector.subscribe(new String[] {filter}, new int[] {qos});
+    }
+
+    /**
+     * @return 收到的消息的最新值缓存
+     */
+    public LastValueCache getLastValues() {
+        return lastValues;
+    }
+
     public static void main(String[] args) throws MqttException {
         Client client = new Client();
         client.start();
@@ -0,0 +1,38 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 发布前用PayloadCodec压缩消息内容
+ */
+public class CompressingPublisher implements Publisher {
+    private final Publisher target;
+    private final PayloadCodec codec;
+
+    /**
+     * 构造函数
+     * @param target 实际发布消息的发布器
+     * @param codec 压缩编解码
+     */
+    public CompressingPublisher(Publisher target, PayloadCodec codec) {
+        this.target = target;
+        this.codec = codec;
+    }
+
+    public CompletableFuture<IMqttDeliveryToken> publish(String topic, MqttMessage message)
+            throws MqttException, InterruptedException {
+        byte[] payload = message.getPayload();
+        byte[] encoded = codec.encode(payload);
+        if (encoded != payload) {
+            MqttMessage compressed = new MqttMessage(encoded);
+            compressed.setQos(message.getQos());
+            compressed.setRetained(message.isRetained());
+            message = compressed;
+        }
+        return target.publish(topic, message);
+    }
+}
@@ -0,0 +1,69 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把PayloadCodec压缩过的消息解压后再交给后面的回调，没有压缩头的消息原样传递
+ * 解压失败的消息丢弃并计数，不抛给客户端，否则paho会断开连接，重连后服务器重投同一条消息又会失败
+ */
+public class DecompressingCallback implements MqttCallback {
+    private final MqttCallback delegate;
+    private final AtomicLong corrupted = new AtomicLong();
+
+    /**
+     * 构造函数
+     * @param delegate 处理解压后消息的回调
+     */
+    public DecompressingCallback(MqttCallback delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * 把解压失败丢弃的消息数注册为指标
+     */
+    public void setMetrics(Metrics metrics) {
+        metrics.gauge("codec.corrupted", new Metrics.Gauge() {
+            public long get() {
+                return getCorruptedCount();
+            }
+        });
+    }
+
+    public void connectionLost(Throwable cause) {
+        delegate.connectionLost(cause);
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        delegate.deliveryComplete(token);
+    }
+
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        if (!PayloadCodec.isEncoded(message.getPayload())) {
+            delegate.messageArrived(topic, message);
+            return;
+        }
+        byte[] payload;
+        try {
+            payload = PayloadCodec.decode(message.getPayload());
+        } catch (RuntimeException e) {
+            corrupted.incrementAndGet();
+            System.out.println("丢弃解压失败的消息 : 主题" + topic + " " + e.getMessage());
+            return;
+        }
+        MqttMessage decoded = new MqttMessage(payload);
+        decoded.setQos(message.getQos());
+        decoded.setRetained(message.isRetained());
+        delegate.messageArrived(topic, decoded);
+    }
+
+    /**
+     * @return 解压失败丢弃的消息数
+     */
+    public long getCorruptedCount() {
+        return corrupted.get();
+    }
+}
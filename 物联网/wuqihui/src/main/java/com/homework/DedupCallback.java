@@ -0,0 +1,84 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 丢弃重复投递的消息
+ * 带MessageId的消息按id去重，去掉id头后交给后面的回调；没有id的消息原样传递。
+ * 重连后服务器重投QoS1消息时，PushCallBack不会把同一条数据再写一遍。
+ * id在后面的回调正常返回后才记下，回调抛异常时paho不确认这条消息，服务器重投后还会再处理一次；
+ * paho在一个线程里依次调用messageArrived，所以先查再记之间不会有同一id的消息插进来
+ */
+public class DedupCallback implements MqttCallback {
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private final MqttCallback delegate;
+    private final DuplicateFilter seen;
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * 构造函数
+     * @param delegate 处理去重后消息的回调
+     * @param capacity 记住的最近消息id数
+     */
+    public DedupCallback(MqttCallback delegate, int capacity) {
+        this.delegate = delegate;
+        this.seen = new DuplicateFilter(capacity);
+    }
+
+    /**
+     * 构造函数，记住最近DEFAULT_CAPACITY个id
+     * @param delegate 处理去重后消息的回调
+     */
+    public DedupCallback(MqttCallback delegate) {
+        this(delegate, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 把丢弃的重复消息数注册为指标
+     */
+    public void setMetrics(Metrics metrics) {
+        metrics.gauge("dedup.duplicates", new Metrics.Gauge() {
+            public long get() {
+                return getDuplicateCount();
+            }
+        });
+    }
+
+    public void connectionLost(Throwable cause) {
+        delegate.connectionLost(cause);
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        delegate.deliveryComplete(token);
+    }
+
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        byte[] payload = message.getPayload();
+        if (!MessageId.isStamped(payload)) {
+            delegate.messageArrived(topic, message);
+            return;
+        }
+        long id = MessageId.idOf(payload);
+        if (seen.contains(id)) {
+            duplicates.incrementAndGet();
+            return;
+        }
+        MqttMessage stripped = new MqttMessage(MessageId.strip(payload));
+        stripped.setQos(message.getQos());
+        stripped.setRetained(message.isRetained());
+        delegate.messageArrived(topic, stripped);
+        seen.add(id);
+    }
+
+    /**
+     * @return 丢弃的重复消息数
+     */
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+}
@@ -0,0 +1,368 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 断线期间发布的消息的磁盘缓存，先进先出
+ * 消息追加到按大小滚动的段文件里，读位置(段号和偏移)记在一个映射的小文件中，
+ * 消息交给客户端后才提交读位置，进程崩溃后从上次提交的位置继续补发(至少一次)。
+ * 所有段的总大小超过配额时删除最旧的段，其中还没补发的消息计入evicted。
+ * 追加只写页缓存，进程崩溃不丢；段文件滚动和close时才force
+ *
+ * 记录格式: length(4) crc32(4) qos(1) retained(1) topicLength(2) topic payload
+ * length是crc之后的字节数，打开时截掉最后一个段尾部crc不对的半条记录
+ */
+public class DiskSpool {
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_QUOTA = 1024L * 1024 * 1024;
+
+    private static final int RECORD_PREFIX = 8;
+    private static final int BODY_HEADER = 4;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_FILE = "spool.cursor";
+
+    private final File dir;
+    private final long segmentSize;
+    private final long quota;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final RandomAccessFile cursorFile;
+    private final MappedByteBuffer cursor;
+    //读位置: segments.get(0)中的偏移和已读的记录数
+    private long readOffset;
+    private long readRecords;
+    private long totalBytes;
+    private long pending;
+    private long evicted;
+    //peek读出、还没remove的记录
+    private Entry head;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * 构造函数
+     * @param dir 缓存目录
+     * @param segmentSize 单个段文件的大小上限
+     * @param quota 所有段文件的总大小上限
+     * @throws IOException
+     */
+    public DiskSpool(File dir, long segmentSize, long quota) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        this.dir = dir;
+        //至少要能同时容纳几个段，否则淘汰时会把刚写入的段也删掉
+        this.segmentSize = Math.max(1024, Math.min(segmentSize, quota / 4));
+        this.quota = quota;
+        cursorFile = new RandomAccessFile(new File(dir, CURSOR_FILE), "rw");
+        cursor = cursorFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 16);
+        recover();
+    }
+
+    /**
+     * 构造函数，使用默认的段大小和配额
+     * @throws IOException
+     */
+    public DiskSpool(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_QUOTA);
+    }
+
+    /**
+     * 追加一条消息，超过配额时淘汰最旧的段
+     * @throws IOException
+     */
+    public synchronized void append(String topic, MqttMessage message) throws IOException {
+        byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = message.getPayload();
+        int body = BODY_HEADER + name.length + payload.length;
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_PREFIX + body);
+        buf.putInt(body).putInt(0);
+        buf.put((byte) message.getQos()).put((byte) (message.isRetained() ? 1 : 0));
+        buf.putShort((short) name.length).put(name).put(payload);
+        crc.reset();
+        crc.update(buf.array(), RECORD_PREFIX, body);
+        buf.putInt(4, (int) crc.getValue());
+        buf.flip();
+
+        Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (tail == null || (tail.size > 0 && tail.size + buf.remaining() > segmentSize)) {
+            tail = roll(tail);
+        }
+        while (buf.hasRemaining()) {
+            tail.channel.write(buf, tail.size + buf.position());
+        }
+        tail.size += RECORD_PREFIX + body;
+        tail.records++;
+        totalBytes += RECORD_PREFIX + body;
+        pending++;
+        evict();
+    }
+
+    /**
+     * @return 最早的一条没有提交的消息，没有时返回null
+     * @throws IOException
+     */
+    public synchronized Entry peek() throws IOException {
+        while (head == null && !segments.isEmpty()) {
+            Segment seg = segments.get(0);
+            if (readOffset < seg.size) {
+                head = read(seg, readOffset);
+                if (head != null) {
+                    break;
+                }
+                //已提交的范围之后出现坏记录，放弃这个段剩下的部分
+                System.out.println("corrupted spool record in " + seg.file + " at " + readOffset);
+                pending -= seg.records - readRecords;
+                readOffset = seg.size;
+                readRecords = seg.records;
+            }
+            if (segments.size() == 1) {
+                break;
+            }
+            //读完的段可以删了
+            deleteHead();
+        }
+        return head;
+    }
+
+    /**
+     * 提交peek返回的消息，读位置移到下一条
+     */
+    public synchronized void remove() {
+        if (head == null) {
+            return;
+        }
+        readOffset = head.next;
+        readRecords++;
+        pending--;
+        head = null;
+        writeCursor();
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending == 0;
+    }
+
+    /**
+     * @return 还没提交的消息数
+     */
+    public synchronized long size() {
+        return pending;
+    }
+
+    /**
+     * @return 段文件占用的字节数
+     */
+    public synchronized long bytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return 因超过配额被淘汰、没有补发的消息数
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * 刷盘并关闭文件
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        for (Segment seg : segments) {
+            seg.channel.force(false);
+            seg.channel.close();
+        }
+        segments.clear();
+        cursor.force();
+        cursorFile.close();
+    }
+
+    private Entry read(Segment seg, long offset) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX);
+        if (!readFully(seg.channel, prefix, offset)) {
+            return null;
+        }
+        int body = prefix.getInt(0);
+        if (body < BODY_HEADER || offset + RECORD_PREFIX + body > seg.size) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(body);
+        if (!readFully(seg.channel, buf, offset + RECORD_PREFIX)) {
+            return null;
+        }
+        crc.reset();
+        crc.update(buf.array(), 0, body);
+        if ((int) crc.getValue() != prefix.getInt(4)) {
+            return null;
+        }
+        buf.flip();
+        int qos = buf.get();
+        boolean retained = buf.get() != 0;
+        byte[] name = new byte[buf.getShort() & 0xFFFF];
+        buf.get(name);
+        byte[] payload = new byte[buf.remaining()];
+        buf.get(payload);
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        message.setRetained(retained);
+        return new Entry(new String(name, StandardCharsets.UTF_8), message, offset + RECORD_PREFIX + body);
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Segment roll(Segment tail) throws IOException {
+        long index = 0;
+        if (tail != null) {
+            tail.channel.force(false);
+            index = tail.index + 1;
+        }
+        Segment seg = open(index);
+        segments.add(seg);
+        return seg;
+    }
+
+    private Segment open(long index) throws IOException {
+        File file = new File(dir, String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        return new Segment(index, file, new RandomAccessFile(file, "rw").getChannel());
+    }
+
+    /**
+     * 超过配额时从最旧的段开始删除，正在写的段保留
+     */
+    private void evict() {
+        while (totalBytes > quota && segments.size() > 1) {
+            Segment seg = segments.get(0);
+            long unread = seg.records - readRecords;
+            evicted += unread;
+            pending -= unread;
+            System.out.println("spool quota exceeded, evicted " + unread + " messages in " + seg.file.getName());
+            deleteHead();
+        }
+    }
+
+    private void deleteHead() {
+        Segment seg = segments.remove(0);
+        totalBytes -= seg.size;
+        try {
+            seg.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!seg.file.delete()) {
+            System.out.println("cannot delete " + seg.file);
+        }
+        head = null;
+        readOffset = 0;
+        readRecords = 0;
+        writeCursor();
+    }
+
+    private void writeCursor() {
+        long index = segments.isEmpty() ? 0 : segments.get(0).index;
+        cursor.putLong(0, index).putLong(8, readOffset);
+    }
+
+    /**
+     * 打开已有的段，统计记录数，截掉尾部的半条记录，再按游标定位读位置
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        long cursorIndex = cursor.getLong(0);
+        long cursorOffset = cursor.getLong(8);
+        for (File file : files) {
+            String digits = file.getName().substring(SEGMENT_PREFIX.length(),
+                    file.getName().length() - SEGMENT_SUFFIX.length());
+            long index = Long.parseLong(digits);
+            if (index < cursorIndex) {
+                //已经补发完的段
+                file.delete();
+                continue;
+            }
+            Segment seg = open(index);
+            seg.size = seg.channel.size();
+            long offset = 0;
+            long records = 0;
+            Entry entry;
+            while (offset < seg.size && (entry = read(seg, offset)) != null) {
+                if (index == cursorIndex && offset < cursorOffset) {
+                    readRecords++;
+                }
+                offset = entry.next;
+                records++;
+            }
+            if (offset < seg.size) {
+                System.out.println("truncated torn spool tail in " + file.getName() + " at " + offset);
+                seg.channel.truncate(offset);
+                seg.size = offset;
+            }
+            seg.records = records;
+            segments.add(seg);
+            totalBytes += seg.size;
+            pending += records;
+        }
+        if (!segments.isEmpty() && segments.get(0).index == cursorIndex) {
+            readOffset = Math.min(cursorOffset, segments.get(0).size);
+        } else {
+            readRecords = 0;
+        }
+        pending -= readRecords;
+        writeCursor();
+    }
+
+    /**
+     * 缓存中的一条消息
+     */
+    public static final class Entry {
+        public final String topic;
+        public final MqttMessage message;
+        //下一条记录的偏移
+        final long next;
+
+        Entry(String topic, MqttMessage message, long next) {
+            this.topic = topic;
+            this.message = message;
+            this.next = next;
+        }
+    }
+
+    private static final class Segment {
+        final long index;
+        final File file;
+        final FileChannel channel;
+        long size;
+        long records;
+
+        Segment(long index, File file, FileChannel channel) {
+            this.index = index;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 把messageArrived从Paho的回调线程转交给工作线程
+ * 消息按分区键(默认是主题)散列到固定的通道，每个通道一个无锁有界队列和一个工作线程，
+ * 所以同一主题的消息仍按到达顺序处理，慢的处理器只拖慢自己所在的通道
+ * 注意: messageArrived返回后Paho就会确认QoS1/QoS2消息，进程崩溃时队列里尚未处理的消息会丢失
+ */
+public class DispatchingCallback implements MqttCallback {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    //BLOCK策略下回调线程每次等待的时间
+    private static final long BLOCK_PARK_NANOS = 50000;
+    //工作线程空闲时最长的等待时间，防止漏掉唤醒
+    private static final long IDLE_PARK_NANOS = 1000000;
+
+    private final MqttCallback delegate;
+    private final Backpressure backpressure;
+    private final Lane[] lanes;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Metrics metrics;
+    private volatile boolean closed;
+
+    /**
+     * 构造函数
+     * @param delegate 真正处理消息的回调
+     * @param workers 通道(工作线程)个数
+     * @param capacity 每个通道的队列容量
+     * @param backpressure 队列满时的策略
+     * @param spillDir SPILL策略下溢出文件所在的目录，其他策略可以为null
+     */
+    public DispatchingCallback(MqttCallback delegate, int workers, int capacity, Backpressure backpressure,
+                               File spillDir) {
+        if (backpressure == Backpressure.SPILL && spillDir == null) {
+            throw new IllegalArgumentException("spillDir is required for SPILL");
+        }
+        this.delegate = delegate;
+        this.backpressure = backpressure;
+        this.lanes = new Lane[workers];
+        for (int i = 0; i < workers; i++) {
+            lanes[i] = new Lane(i, capacity, spillDir == null ? null : new File(spillDir, "dispatch-" + i + ".spill"));
+        }
+        for (Lane lane : lanes) {
+            lane.thread.start();
+        }
+    }
+
+    /**
+     * 记录收到的消息数、字节数，消息在队列中等待的时间(回调延迟)和处理时间，并注册队列深度
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge("callback.queueDepth", new Metrics.Gauge() {
+            public long get() {
+                return queueDepth();
+            }
+        });
+        metrics.gauge("callback.dropped", new Metrics.Gauge() {
+            public long get() {
+                return droppedCount();
+            }
+        });
+    }
+
+    public void connectionLost(Throwable cause) {
+        delegate.connectionLost(cause);
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        delegate.deliveryComplete(token);
+    }
+
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        int hash = partitionKey(topic, message).hashCode();
+        Lane lane = lanes[((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % lanes.length];
+        Metrics m = metrics;
+        if (m != null) {
+            m.message("received", topic, message.getPayload().length);
+        }
+        lane.submit(new Delivery(topic, message, m == null ? 0 : System.nanoTime()));
+    }
+
+    /**
+     * 分区键相同的消息保证按顺序处理，子类可以改成设备id等
+     */
+    protected Object partitionKey(String topic, MqttMessage message) {
+        return topic;
+    }
+
+    /**
+     * @return 所有通道队列中等待处理的消息数，不含溢出到磁盘的
+     */
+    public int queueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return DROP_OLDEST策略下丢弃的消息数
+     */
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * 处理完队列和溢出文件中剩余的消息后停止工作线程
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        for (Lane lane : lanes) {
+            LockSupport.unpark(lane.thread);
+        }
+        for (Lane lane : lanes) {
+            lane.thread.join();
+        }
+    }
+
+    private void deliver(Delivery delivery) {
+        Metrics m = metrics;
+        long start = m == null ? 0 : System.nanoTime();
+        try {
+            delegate.messageArrived(delivery.topic, delivery.message);
+        } catch (Exception e) {
+            //在Paho线程里抛出会断开连接，这里只打印，不影响后面的消息
+            e.printStackTrace();
+        }
+        if (m != null) {
+            long end = System.nanoTime();
+            //从溢出文件读回的消息没有入队时间
+            if (delivery.enqueued != 0) {
+                m.record("callback.lag", start - delivery.enqueued);
+            }
+            m.record("callback.handler", end - start);
+        }
+    }
+
+    private static class Delivery {
+        final String topic;
+        final MqttMessage message;
+        //放入队列的时间，用于统计回调延迟
+        final long enqueued;
+
+        Delivery(String topic, MqttMessage message, long enqueued) {
+            this.topic = topic;
+            this.message = message;
+            this.enqueued = enqueued;
+        }
+    }
+
+    /**
+     * 一个通道: 队列、工作线程和溢出文件
+     */
+    private class Lane implements Runnable {
+        final BoundedRingQueue<Delivery> queue;
+        final Thread thread;
+        final File spillFile;
+        volatile boolean waiting;
+        //为true时新消息都写入溢出文件，直到工作线程把它读完，保证顺序
+        volatile boolean spilling;
+        private RandomAccessFile spill;
+        private long spillRead;
+        private long spillWrite;
+
+        Lane(int index, int capacity, File spillFile) {
+            this.queue = new BoundedRingQueue<Delivery>(capacity);
+            this.spillFile = spillFile;
+            this.thread = new Thread(this, "dispatch-" + index);
+            thread.setDaemon(true);
+        }
+
+        void submit(Delivery delivery) throws IOException {
+            if (backpressure == Backpressure.SPILL && spilling) {
+                spill(delivery);
+            } else if (!queue.offer(delivery)) {
+                switch (backpressure) {
+                    case BLOCK:
+                        while (!queue.offer(delivery)) {
+                            LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        while (!queue.offer(delivery)) {
+                            if (queue.poll() != null) {
+                                dropped.incrementAndGet();
+                            }
+                        }
+                        break;
+                    default:
+                        spill(delivery);
+                        break;
+                }
+            }
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        public void run() {
+            while (true) {
+                Delivery delivery = queue.poll();
+                if (delivery == null && spilling) {
+                    //队列里剩下的都比溢出文件里的旧，队列空了才读溢出文件
+                    try {
+                        delivery = unspill();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        spilling = false;
+                    }
+                }
+                if (delivery != null) {
+                    deliver(delivery);
+                    continue;
+                }
+                if (closed && queue.isEmpty() && !spilling) {
+                    break;
+                }
+                waiting = true;
+                if (queue.isEmpty() && !spilling && !closed) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                waiting = false;
+            }
+        }
+
+        private synchronized void spill(Delivery delivery) throws IOException {
+            if (spill == null) {
+                spill = new RandomAccessFile(spillFile, "rw");
+                spill.setLength(0);
+            }
+            byte[] topic = delivery.topic.getBytes(UTF8);
+            byte[] payload = delivery.message.getPayload();
+            int length = 2 + topic.length + 2 + payload.length;
+            ByteBuffer record = ByteBuffer.allocate(4 + length);
+            record.putInt(length).putShort((short) topic.length).put(topic)
+                    .put((byte) delivery.message.getQos())
+                    .put((byte) (delivery.message.isRetained() ? 1 : 0))
+                    .put(payload);
+            spill.seek(spillWrite);
+            spill.write(record.array());
+            spillWrite += record.capacity();
+            spilling = true;
+        }
+
+        private synchronized Delivery unspill() throws IOException {
+            if (spillRead >= spillWrite) {
+                //溢出文件读完了，回到内存队列
+                spill.setLength(0);
+                spillRead = 0;
+                spillWrite = 0;
+                spilling = false;
+                return null;
+            }
+            spill.seek(spillRead);
+            int length = spill.readInt();
+            byte[] record = new byte[length];
+            spill.readFully(record);
+            spillRead += 4 + length;
+            ByteBuffer bb = ByteBuffer.wrap(record);
+            byte[] topic = new byte[bb.getShort() & 0xFFFF];
+            bb.get(topic);
+            int qos = bb.get();
+            boolean retained = bb.get() != 0;
+            byte[] payload = new byte[bb.remaining()];
+            bb.get(payload);
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(qos);
+            message.setRetained(retained);
+            return new Delivery(new String(topic, UTF8), message, 0);
+        }
+    }
+}
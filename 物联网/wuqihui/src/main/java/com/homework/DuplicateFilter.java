@@ -0,0 +1,112 @@
+package com.homework;
+
+/**
+ * 最近capacity个64位id的集合，用来判断消息是否已经处理过
+ * id按到达顺序放在环形数组里，满了以后最早的id被挤出去；另有一个线性探测的开放寻址散列表做查找，
+ * 删除时把后面的元素往前挪，不留墓碑。两个数组在构造时一次分配好，add和contains都是O(1)，
+ * 内存固定约为capacity * 24字节
+ */
+public class DuplicateFilter {
+    private final long[] ring;
+    private final long[] table;
+    private final int mask;
+    private int head;
+    private int size;
+    //散列表用0表示空槽，id为0单独记录
+    private boolean zero;
+
+    /**
+     * 构造函数
+     * @param capacity 记住的id个数，应大于重连后可能重投的消息数(服务器为会话保存的在途和离线消息)
+     */
+    public DuplicateFilter(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity should be positive");
+        }
+        ring = new long[capacity];
+        //装载因子不超过0.5
+        int slots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        table = new long[slots];
+        mask = slots - 1;
+    }
+
+    /**
+     * 记住一个id
+     * @return id没有出现过时返回true，重复时返回false
+     */
+    public synchronized boolean add(long id) {
+        if (contains(id)) {
+            return false;
+        }
+        if (size == ring.length) {
+            remove(ring[head]);
+        } else {
+            size++;
+        }
+        ring[head] = id;
+        head = head + 1 == ring.length ? 0 : head + 1;
+        if (id == 0) {
+            zero = true;
+        } else {
+            int i = slot(id);
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = id;
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(long id) {
+        if (id == 0) {
+            return zero;
+        }
+        for (int i = slot(id); table[i] != 0; i = (i + 1) & mask) {
+            if (table[i] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void remove(long id) {
+        if (id == 0) {
+            zero = false;
+            return;
+        }
+        int i = slot(id);
+        while (table[i] != id) {
+            i = (i + 1) & mask;
+        }
+        //把探测链上后面的元素挪到空出来的位置，直到遇到空槽
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (table[j] == 0) {
+                break;
+            }
+            int k = slot(table[j]);
+            //k在(i, j]之间(循环意义上)时table[j]不能挪到i
+            boolean between = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if (!between) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = 0;
+    }
+
+    private int slot(long id) {
+        //murmur3的fmix64
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        id *= 0xc4ceb9fe1a85ec53L;
+        id ^= id >>> 33;
+        return (int) id & mask;
+    }
+}
@@ -0,0 +1,875 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的MQTT 3.1.1 broker，用于在一台机器上测试和压测，不依赖192.168.1.112
+ * 所有连接由一个selector线程处理，会话、订阅和在途消息都只在这个线程里访问，不需要加锁。
+ * 支持QoS 0/1/2、保留消息、遗嘱和cleanSession=false的持久会话(只保存在内存中)，
+ * 订阅匹配复用TopicRouter的字典树。
+ * 可以注入延迟和丢包: 发给客户端的每个报文都延迟latencyMillis；
+ * 按lossRate的概率，收到和发出的QoS0 PUBLISH直接丢弃，发出的其他报文像TCP重传一样额外延迟RETRANSMIT_MILLIS，
+ * 同一连接上的报文始终保持顺序
+ */
+public class EmbeddedBroker {
+    public static final int DEFAULT_PORT = 1883;
+    //模拟丢包后TCP重传的额外延迟
+    public static final long RETRANSMIT_MILLIS = 200;
+    //每个会话同时在途的QoS1/QoS2消息数，超出的排队
+    public static final int MAX_INFLIGHT = 1000;
+    //离线会话最多缓存的消息数，超出时丢弃最旧的
+    public static final int MAX_QUEUED = 100000;
+    //单个报文默认的最大字节数，声明的长度超过它就断开连接
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    //连接后多久没有发CONNECT就断开
+    private static final long CONNECT_TIMEOUT = 10000;
+    //接受连接失败后暂停的时间
+    private static final long ACCEPT_PAUSE_MILLIS = 100;
+    //每个连接的读缓冲区初始大小，放不下一个报文时扩到报文大小，报文处理完再缩回来
+    private static final int READ_BUFFER_SIZE = 4 * 1024;
+
+    private final String bindAddress;
+    private final int requestedPort;
+    private int port;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private SelectionKey acceptKey;
+    private long acceptPausedUntil;
+    private Thread loop;
+    private volatile boolean running;
+
+    private volatile long latencyMillis;
+    private volatile double lossRate;
+    private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private final Random random = new Random();
+
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private final Map<String, Session> sessions = new HashMap<String, Session>();
+    private final TopicRouter subscriptions = new TopicRouter(null);
+    private final ConcurrentHashMap<String, MqttPackets.Publish> retained =
+            new ConcurrentHashMap<String, MqttPackets.Publish>();
+    private final PriorityQueue<Delayed> delayed = new PriorityQueue<Delayed>(64, new Comparator<Delayed>() {
+        public int compare(Delayed a, Delayed b) {
+            return a.due != b.due ? Long.compare(a.due, b.due) : Long.compare(a.seq, b.seq);
+        }
+    });
+    private long sequence;
+    private long lastKeepAliveCheck;
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * 构造函数，只监听本机
+     * @param port 端口，0表示由系统分配
+     */
+    public EmbeddedBroker(int port) {
+        this("127.0.0.1", port);
+    }
+
+    /**
+     * 构造函数
+     * @param bindAddress 监听的地址
+     * @param port 端口，0表示由系统分配
+     */
+    public EmbeddedBroker(String bindAddress, int port) {
+        this.bindAddress = bindAddress;
+        this.requestedPort = port;
+    }
+
+    /**
+     * 开始监听，selector线程是守护线程
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(bindAddress, requestedPort), 1024);
+        server.configureBlocking(false);
+        acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+        port = server.socket().getLocalPort();
+        running = true;
+        loop = new Thread(new Runnable() {
+            public void run() {
+                runLoop();
+            }
+        }, "embedded-broker-" + port);
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * 断开所有连接并停止监听
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (loop != null) {
+            loop.join();
+        }
+    }
+
+    /**
+     * 等待broker停止
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        loop.join();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return Paho客户端使用的服务器地址
+     */
+    public String getUri() {
+        return "tcp://" + bindAddress + ":" + port;
+    }
+
+    /**
+     * 设置发给客户端的报文的延迟
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * 设置丢包率，0到1之间
+     */
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * 设置单个报文的最大字节数(含固定头)，超过的连接直接断开
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return 收到的PUBLISH数
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * @return 投递给订阅者的消息数
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /**
+     * @return 因丢包或离线队列已满而丢弃的消息数
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * 基准测试用: host为"embedded"时在本进程启动一个系统分配端口的broker并返回它的地址，否则原样返回host
+     * @throws IOException
+     */
+    public static String resolve(String host) throws IOException {
+        if (!"embedded".equals(host)) {
+            return host;
+        }
+        EmbeddedBroker broker = new EmbeddedBroker(0);
+        broker.start();
+        return broker.getUri();
+    }
+
+    private void runLoop() {
+        try {
+            while (running) {
+                long now = now();
+                long timeout = 1000;
+                Delayed next = delayed.peek();
+                if (next != null) {
+                    timeout = Math.max(1, Math.min(timeout, next.due - now));
+                }
+                if (acceptPausedUntil != 0) {
+                    timeout = Math.max(1, Math.min(timeout, acceptPausedUntil - now));
+                }
+                selector.select(timeout);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        read(conn);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(conn);
+                    }
+                }
+                now = now();
+                if (acceptPausedUntil != 0 && now >= acceptPausedUntil) {
+                    acceptPausedUntil = 0;
+                    acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+                while ((next = delayed.peek()) != null && next.due <= now) {
+                    delayed.poll();
+                    next.conn.delayedCount--;
+                    if (!next.conn.closed) {
+                        write(next.conn, next.buf);
+                    }
+                }
+                if (now - lastKeepAliveCheck >= 1000) {
+                    lastKeepAliveCheck = now;
+                    checkKeepAlive(now);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (Connection conn : new ArrayList<Connection>(connections)) {
+                drop(conn, false);
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection conn = new Connection(channel);
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                conn.lastActivity = now();
+                connections.add(conn);
+                connectionCount.incrementAndGet();
+            }
+        } catch (IOException e) {
+            //一般是文件描述符用完了，暂停接受新连接，否则selector会一直报告可接受
+            System.out.println("accept failed: " + e.getMessage());
+            acceptKey.interestOps(0);
+            acceptPausedUntil = now() + ACCEPT_PAUSE_MILLIS;
+        }
+    }
+
+    private void read(Connection conn) {
+        try {
+            int n = conn.channel.read(conn.in);
+            if (n < 0) {
+                drop(conn, true);
+                return;
+            }
+            conn.lastActivity = now();
+            conn.in.flip();
+            int length;
+            while (!conn.closed && (length = MqttPackets.frameLength(conn.in)) > 0) {
+                if (oversized(conn, length)) {
+                    return;
+                }
+                ByteBuffer frame = conn.in.slice();
+                frame.limit(length);
+                conn.in.position(conn.in.position() + length);
+                handle(conn, frame);
+            }
+            if (!conn.closed) {
+                //固定头一到就检查声明的长度，不等报文体读完
+                int size = MqttPackets.frameSize(conn.in);
+                if (oversized(conn, size)) {
+                    return;
+                }
+                if (size > conn.in.capacity()) {
+                    //一个报文比缓冲区还大，按报文大小扩容
+                    ByteBuffer bigger = ByteBuffer.allocate(size);
+                    bigger.put(conn.in);
+                    conn.in = bigger;
+                } else if (conn.in.capacity() > READ_BUFFER_SIZE && conn.in.remaining() <= READ_BUFFER_SIZE
+                        && size <= READ_BUFFER_SIZE) {
+                    //大报文处理完了，缩回初始大小
+                    ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                    smaller.put(conn.in);
+                    conn.in = smaller;
+                } else {
+                    conn.in.compact();
+                }
+            }
+        } catch (IOException e) {
+            drop(conn, true);
+        } catch (RuntimeException e) {
+            //报文格式错误，按协议直接断开
+            drop(conn, true);
+        }
+    }
+
+    /**
+     * 报文超过上限时断开连接，否则缓冲区会按客户端声明的长度一直扩下去
+     * @return 是否已经断开
+     */
+    private boolean oversized(Connection conn, int size) {
+        if (size <= maxFrameSize) {
+            return false;
+        }
+        System.out.println("frame of " + size + " bytes exceeds " + maxFrameSize + ", closing "
+                + conn.channel.socket().getRemoteSocketAddress());
+        drop(conn, true);
+        return true;
+    }
+
+    private void handle(Connection conn, ByteBuffer frame) {
+        int first = frame.get(frame.position()) & 0xFF;
+        int type = first >>> 4;
+        int flags = first & 0x0F;
+        MqttPackets.skipFixedHeader(frame);
+        if (conn.session == null && type != MqttPackets.CONNECT) {
+            drop(conn, false);
+            return;
+        }
+        Session session = conn.session;
+        switch (type) {
+            case MqttPackets.CONNECT:
+                onConnect(conn, MqttPackets.readConnect(frame));
+                break;
+            case MqttPackets.PUBLISH:
+                onPublish(conn, MqttPackets.readPublish(flags, frame));
+                break;
+            case MqttPackets.PUBACK:
+            case MqttPackets.PUBCOMP:
+                session.inflight.remove(frame.getShort() & 0xFFFF);
+                drainQueued(session);
+                break;
+            case MqttPackets.PUBREC: {
+                int id = frame.getShort() & 0xFFFF;
+                Outgoing o = session.inflight.get(id);
+                if (o != null) {
+                    o.released = true;
+                    o.payload = null;
+                }
+                send(conn, MqttPackets.ack(MqttPackets.PUBREL, id), false);
+                break;
+            }
+            case MqttPackets.PUBREL: {
+                int id = frame.getShort() & 0xFFFF;
+                session.incomingQos2.remove(id);
+                send(conn, MqttPackets.ack(MqttPackets.PUBCOMP, id), false);
+                break;
+            }
+            case MqttPackets.SUBSCRIBE:
+                onSubscribe(conn, frame);
+                break;
+            case MqttPackets.UNSUBSCRIBE: {
+                int id = frame.getShort() & 0xFFFF;
+                while (frame.hasRemaining()) {
+                    String filter = MqttPackets.readString(frame);
+                    Subscription old = session.subscriptions.remove(filter);
+                    if (old != null) {
+                        subscriptions.remove(filter, old);
+                    }
+                }
+                send(conn, MqttPackets.ack(MqttPackets.UNSUBACK, id), false);
+                break;
+            }
+            case MqttPackets.PINGREQ:
+                send(conn, MqttPackets.empty(MqttPackets.PINGRESP), false);
+                break;
+            case MqttPackets.DISCONNECT:
+                //正常断开不发布遗嘱
+                conn.will = null;
+                drop(conn, false);
+                break;
+            default:
+                drop(conn, true);
+        }
+    }
+
+    private void onConnect(Connection conn, MqttPackets.Connect c) {
+        if (conn.session != null) {
+            //同一个连接上第二个CONNECT是协议错误
+            drop(conn, true);
+            return;
+        }
+        boolean v311 = "MQTT".equals(c.protocolName) && c.protocolLevel == 4;
+        boolean v31 = "MQIsdp".equals(c.protocolName) && c.protocolLevel == 3;
+        if (!v311 && !v31) {
+            refuse(conn, MqttPackets.REFUSED_PROTOCOL);
+            return;
+        }
+        String clientId = c.clientId;
+        if (clientId.isEmpty()) {
+            if (!c.cleanSession) {
+                refuse(conn, MqttPackets.REFUSED_IDENTIFIER);
+                return;
+            }
+            clientId = "embedded-" + (++sequence);
+        }
+        Session session = sessions.get(clientId);
+        if (session != null && session.connection != null) {
+            //同一个客户端id重复连接时踢掉旧连接
+            drop(session.connection, true);
+            session = sessions.get(clientId);
+        }
+        if (session != null && c.cleanSession) {
+            removeSession(session);
+            session = null;
+        }
+        boolean sessionPresent = session != null;
+        if (session == null) {
+            session = new Session(clientId, c.cleanSession);
+            sessions.put(clientId, session);
+        }
+        session.connection = conn;
+        conn.session = session;
+        conn.keepAliveMillis = c.keepAlive * 1000L;
+        if (c.willTopic != null) {
+            MqttPackets.Publish will = new MqttPackets.Publish();
+            will.topic = c.willTopic;
+            will.payload = c.willPayload;
+            will.qos = Math.min(c.willQos, 2);
+            will.retain = c.willRetain;
+            conn.will = will;
+        }
+        send(conn, MqttPackets.connack(v311 && sessionPresent, MqttPackets.ACCEPTED), false);
+        //恢复的会话先重发在途消息，再发离线期间排队的消息
+        for (Map.Entry<Integer, Outgoing> e : session.inflight.entrySet()) {
+            Outgoing o = e.getValue();
+            if (o.released) {
+                send(conn, MqttPackets.ack(MqttPackets.PUBREL, e.getKey()), false);
+            } else {
+                send(conn, MqttPackets.publish(o.topic, o.qos, o.retain, true, e.getKey(), o.payload), false);
+            }
+        }
+        drainQueued(session);
+    }
+
+    private void onPublish(Connection conn, MqttPackets.Publish p) {
+        received.incrementAndGet();
+        if (p.qos > 2 || p.topic.indexOf('+') >= 0 || p.topic.indexOf('#') >= 0) {
+            drop(conn, true);
+            return;
+        }
+        if (p.qos == 0) {
+            if (lost()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            route(p);
+        } else if (p.qos == 1) {
+            route(p);
+            send(conn, MqttPackets.ack(MqttPackets.PUBACK, p.packetId), false);
+        } else {
+            //QoS2重发的PUBLISH在收到PUBREL之前不再转发
+            if (conn.session.incomingQos2.add(p.packetId)) {
+                route(p);
+            }
+            send(conn, MqttPackets.ack(MqttPackets.PUBREC, p.packetId), false);
+        }
+    }
+
+    private void onSubscribe(Connection conn, ByteBuffer body) {
+        Session session = conn.session;
+        int id = body.getShort() & 0xFFFF;
+        List<String> filters = new ArrayList<String>();
+        List<Integer> granted = new ArrayList<Integer>();
+        while (body.hasRemaining()) {
+            String filter = MqttPackets.readString(body);
+            int qos = Math.min(body.get() & 0x03, 2);
+            int code = qos;
+            try {
+                if (filter.isEmpty()) {
+                    throw new IllegalArgumentException("empty topic filter");
+                }
+                Subscription old = session.subscriptions.get(filter);
+                if (old != null) {
+                    subscriptions.remove(filter, old);
+                }
+                Subscription sub = new Subscription(session, qos);
+                subscriptions.add(filter, sub);
+                session.subscriptions.put(filter, sub);
+                filters.add(filter);
+            } catch (IllegalArgumentException e) {
+                code = MqttPackets.SUBSCRIBE_FAILURE;
+            }
+            granted.add(code);
+        }
+        byte[] codes = new byte[granted.size()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = (byte) (int) granted.get(i);
+        }
+        send(conn, MqttPackets.suback(id, codes), false);
+        //新订阅立即收到匹配的保留消息，RETAIN标志置1
+        for (String filter : filters) {
+            int qos = session.subscriptions.get(filter).qos;
+            for (MqttPackets.Publish p : retained.values()) {
+                if (TopicRouter.matches(filter, p.topic)) {
+                    deliver(session, p.topic, p.payload, Math.min(p.qos, qos), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * 转发给所有匹配的订阅，一个会话有多个订阅匹配时只投递一次，取最大的QoS
+     */
+    private void route(MqttPackets.Publish p) {
+        if (p.retain) {
+            if (p.payload.length == 0) {
+                retained.remove(p.topic);
+            } else {
+                retained.put(p.topic, p);
+            }
+        }
+        IMqttMessageListener[] handlers = subscriptions.match(p.topic);
+        if (handlers.length == 1) {
+            Subscription sub = (Subscription) handlers[0];
+            deliver(sub.session, p.topic, p.payload, Math.min(p.qos, sub.qos), false);
+            return;
+        }
+        if (handlers.length == 0) {
+            return;
+        }
+        Map<Session, Integer> targets = new IdentityHashMap<Session, Integer>();
+        for (IMqttMessageListener handler : handlers) {
+            Subscription sub = (Subscription) handler;
+            Integer qos = targets.get(sub.session);
+            if (qos == null || qos < sub.qos) {
+                targets.put(sub.session, sub.qos);
+            }
+        }
+        for (Map.Entry<Session, Integer> e : targets.entrySet()) {
+            deliver(e.getKey(), p.topic, p.payload, Math.min(p.qos, e.getValue()), false);
+        }
+    }
+
+    private void deliver(Session session, String topic, byte[] payload, int qos, boolean retain) {
+        Connection conn = session.connection;
+        if (qos == 0) {
+            if (conn != null) {
+                delivered.incrementAndGet();
+                send(conn, MqttPackets.publish(topic, 0, retain, false, 0, payload), true);
+            }
+            return;
+        }
+        Outgoing o = new Outgoing(topic, payload, qos, retain);
+        if (conn != null && session.inflight.size() < MAX_INFLIGHT && session.queued.isEmpty()) {
+            sendOutgoing(session, o);
+            return;
+        }
+        if (session.queued.size() >= MAX_QUEUED) {
+            session.queued.poll();
+            dropped.incrementAndGet();
+        }
+        session.queued.add(o);
+    }
+
+    private void drainQueued(Session session) {
+        while (session.connection != null && session.inflight.size() < MAX_INFLIGHT
+                && !session.queued.isEmpty()) {
+            sendOutgoing(session, session.queued.poll());
+        }
+    }
+
+    private void sendOutgoing(Session session, Outgoing o) {
+        int id = session.nextPacketId();
+        session.inflight.put(id, o);
+        delivered.incrementAndGet();
+        send(session.connection, MqttPackets.publish(o.topic, o.qos, o.retain, false, id, o.payload), false);
+    }
+
+    /**
+     * 按设置的延迟和丢包发送一个报文
+     * @param droppable 丢包时是否直接丢弃(QoS0的PUBLISH)，否则按重传处理
+     */
+    private void send(Connection conn, ByteBuffer buf, boolean droppable) {
+        long delay = latencyMillis;
+        if (lost()) {
+            if (droppable) {
+                dropped.incrementAndGet();
+                return;
+            }
+            delay += RETRANSMIT_MILLIS;
+        }
+        long now = now();
+        //不能比同一连接上排在前面的报文先到: 还有延迟报文没发出去时即使已经到期也要排在它们后面
+        long due = Math.max(now + delay, conn.lastDue);
+        if (due <= now && conn.delayedCount == 0) {
+            write(conn, buf);
+            return;
+        }
+        conn.lastDue = due;
+        conn.delayedCount++;
+        delayed.add(new Delayed(due, ++sequence, conn, buf));
+    }
+
+    private boolean lost() {
+        double rate = lossRate;
+        return rate > 0 && random.nextDouble() < rate;
+    }
+
+    private void write(Connection conn, ByteBuffer buf) {
+        if (conn.closed) {
+            return;
+        }
+        if (conn.out.isEmpty()) {
+            try {
+                conn.channel.write(buf);
+            } catch (IOException e) {
+                drop(conn, true);
+                return;
+            }
+            if (!buf.hasRemaining()) {
+                return;
+            }
+            conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        conn.out.add(buf);
+    }
+
+    private void flush(Connection conn) {
+        try {
+            while (!conn.out.isEmpty()) {
+                ByteBuffer buf = conn.out.peek();
+                conn.channel.write(buf);
+                if (buf.hasRemaining()) {
+                    return;
+                }
+                conn.out.poll();
+            }
+            conn.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            drop(conn, true);
+        }
+    }
+
+    /**
+     * 拒绝连接，CONNACK不经过延迟直接写出后关闭
+     */
+    private void refuse(Connection conn, int returnCode) {
+        try {
+            conn.channel.write(MqttPackets.connack(false, returnCode));
+        } catch (IOException e) {
+            //反正要关闭了
+        }
+        drop(conn, false);
+    }
+
+    private void checkKeepAlive(long now) {
+        for (Connection conn : new ArrayList<Connection>(connections)) {
+            //协议规定超过1.5倍心跳时间没有收到任何报文就断开
+            long limit = conn.session == null ? CONNECT_TIMEOUT : conn.keepAliveMillis * 3 / 2;
+            if (limit > 0 && now - conn.lastActivity > limit) {
+                drop(conn, true);
+            }
+        }
+    }
+
+    /**
+     * 关闭连接
+     * @param publishWill 是否发布遗嘱，只有收到DISCONNECT的正常断开不发布
+     */
+    private void drop(Connection conn, boolean publishWill) {
+        if (conn.closed) {
+            return;
+        }
+        conn.closed = true;
+        connections.remove(conn);
+        connectionCount.decrementAndGet();
+        if (conn.key != null) {
+            conn.key.cancel();
+        }
+        try {
+            conn.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Session session = conn.session;
+        if (session != null && session.connection == conn) {
+            session.connection = null;
+            if (session.clean) {
+                removeSession(session);
+            }
+        }
+        if (publishWill && conn.will != null) {
+            route(conn.will);
+        }
+    }
+
+    private void removeSession(Session session) {
+        for (Map.Entry<String, Subscription> e : session.subscriptions.entrySet()) {
+            subscriptions.remove(e.getKey(), e.getValue());
+        }
+        sessions.remove(session.clientId);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * 一条TCP连接
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        Session session;
+        MqttPackets.Publish will;
+        long keepAliveMillis;
+        long lastActivity;
+        //最后一个延迟发送的报文的发送时间，和还在delayed里的报文数
+        long lastDue;
+        int delayedCount;
+        boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * 客户端会话，cleanSession=false时断开后保留
+     */
+    private static class Session {
+        final String clientId;
+        final boolean clean;
+        Connection connection;
+        final Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+        //发给客户端、还没确认的QoS1/QoS2消息，按报文id
+        final LinkedHashMap<Integer, Outgoing> inflight = new LinkedHashMap<Integer, Outgoing>();
+        final ArrayDeque<Outgoing> queued = new ArrayDeque<Outgoing>();
+        //收到PUBLISH、还没收到PUBREL的QoS2报文id
+        final Set<Integer> incomingQos2 = new HashSet<Integer>();
+        private int lastId;
+
+        Session(String clientId, boolean clean) {
+            this.clientId = clientId;
+            this.clean = clean;
+        }
+
+        int nextPacketId() {
+            do {
+                lastId = lastId == 65535 ? 1 : lastId + 1;
+            } while (inflight.containsKey(lastId));
+            return lastId;
+        }
+    }
+
+    /**
+     * 路由中的一个订阅，只在匹配时用来找到会话和授予的QoS
+     */
+    private static class Subscription implements IMqttMessageListener {
+        final Session session;
+        final int qos;
+
+        Subscription(Session session, int qos) {
+            this.session = session;
+            this.qos = qos;
+        }
+
+        public void messageArrived(String topic, MqttMessage message) {
+        }
+    }
+
+    /**
+     * 发给客户端的一条QoS1/QoS2消息
+     */
+    private static class Outgoing {
+        final String topic;
+        byte[] payload;
+        final int qos;
+        final boolean retain;
+        //已收到PUBREC，等待PUBCOMP
+        boolean released;
+
+        Outgoing(String topic, byte[] payload, int qos, boolean retain) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retain = retain;
+        }
+    }
+
+    /**
+     * 等待发送的延迟报文
+     */
+    private static class Delayed {
+        final long due;
+        final long seq;
+        final Connection conn;
+        final ByteBuffer buf;
+
+        Delayed(long due, long seq, Connection conn, ByteBuffer buf) {
+            this.due = due;
+            this.seq = seq;
+            this.conn = conn;
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * 独立运行: EmbeddedBroker [端口] [延迟毫秒] [丢包率]
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        final EmbeddedBroker broker = new EmbeddedBroker(port);
+        if (args.length > 1) {
+            broker.setLatencyMillis(Long.parseLong(args[1]));
+        }
+        if (args.length > 2) {
+            broker.setLossRate(Double.parseDouble(args[2]));
+        }
+        broker.start();
+        System.out.println("MQTT broker listening on " + broker.getUri());
+        broker.join();
+    }
+}
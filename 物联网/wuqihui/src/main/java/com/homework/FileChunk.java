@@ -0,0 +1,139 @@
+package com.homework;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * 分块文件传输的报文格式
+ * 数据块: magic(1) version(1) transferId(8) seq(4) total(4) chunkSize(4) fileSize(8) length(4) crc32(4)
+ *        nameLength(2) name(UTF-8) data(length)
+ * 确认:   transferId(8) acked(4)，acked为接收端已经连续落盘的块数
+ */
+public final class FileChunk {
+    //数据块主题与确认主题
+    public static final String TOPIC = Server.TOPIC + "/file";
+    public static final String ACK_TOPIC = TOPIC + "/ack";
+
+    public static final byte MAGIC = (byte) 0xF9;
+    public static final byte VERSION = 1;
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int ACK_LENGTH = 12;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int FIXED_HEADER = 40;
+
+    private long transferId;
+    private int seq;
+    private int total;
+    private int chunkSize;
+    private long fileSize;
+    private int length;
+    private int crc;
+    private String name;
+    private int dataOffset;
+
+    private FileChunk() {
+    }
+
+    /**
+     * @return 文件名对应的报文头长度
+     */
+    public static int headerLength(String name) {
+        return FIXED_HEADER + name.getBytes(UTF8).length;
+    }
+
+    /**
+     * 在buf的开头写入报文头，数据区需由调用者填充到headerLength(name)之后
+     */
+    public static void writeHeader(byte[] buf, long transferId, int seq, int total, int chunkSize,
+                                   long fileSize, int length, int crc, String name) {
+        byte[] nameBytes = name.getBytes(UTF8);
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        bb.put(MAGIC).put(VERSION).putLong(transferId).putInt(seq).putInt(total).putInt(chunkSize)
+                .putLong(fileSize).putInt(length).putInt(crc).putShort((short) nameBytes.length).put(nameBytes);
+    }
+
+    /**
+     * 解析一个数据块，格式不对或者报文头的各个长度互相矛盾时返回null:
+     * total必须是fileSize按chunkSize切分的块数(空文件也有1块)，length必须是第seq块的实际长度，
+     * 所以按报文头写入时不会超出fileSize
+     */
+    public static FileChunk parse(byte[] payload) {
+        if (payload.length < FIXED_HEADER || payload[0] != MAGIC || payload[1] != VERSION) {
+            return null;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(payload);
+        bb.position(2);
+        FileChunk chunk = new FileChunk();
+        chunk.transferId = bb.getLong();
+        chunk.seq = bb.getInt();
+        chunk.total = bb.getInt();
+        chunk.chunkSize = bb.getInt();
+        chunk.fileSize = bb.getLong();
+        chunk.length = bb.getInt();
+        chunk.crc = bb.getInt();
+        int nameLength = bb.getShort() & 0xFFFF;
+        if (chunk.seq < 0 || chunk.seq >= chunk.total || chunk.chunkSize <= 0 || chunk.fileSize < 0
+                || chunk.length < 0 || FIXED_HEADER + nameLength + chunk.length != payload.length) {
+            return null;
+        }
+        long chunks = Math.max(1, (chunk.fileSize + chunk.chunkSize - 1) / chunk.chunkSize);
+        long position = (long) chunk.seq * chunk.chunkSize;
+        if (chunk.total != chunks || chunk.length != Math.min(chunk.chunkSize, chunk.fileSize - position)) {
+            return null;
+        }
+        chunk.name = new String(payload, FIXED_HEADER, nameLength, UTF8);
+        chunk.dataOffset = FIXED_HEADER + nameLength;
+        return chunk;
+    }
+
+    /**
+     * @return 数据区的CRC32是否与报文头一致
+     */
+    public boolean verify(byte[] payload) {
+        return crc32(payload, dataOffset, length) == crc;
+    }
+
+    public static int crc32(byte[] buf, int offset, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf, offset, length);
+        return (int) crc32.getValue();
+    }
+
+    public static byte[] ack(long transferId, int acked) {
+        return ByteBuffer.allocate(ACK_LENGTH).putLong(transferId).putInt(acked).array();
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getDataOffset() {
+        return dataOffset;
+    }
+}
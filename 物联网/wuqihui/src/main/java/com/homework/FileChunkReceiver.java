@@ -0,0 +1,224 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 接收分块文件，每块按偏移直接写入磁盘上的"文件名.part"
+ * 连续落盘的块数记录在"文件名.part.state"里并回复给发送端，进程重启后从该位置继续接收
+ */
+public class FileChunkReceiver {
+    //每落盘多少块做一次fsync并回复确认
+    private static final int ACK_EVERY = 16;
+    //记住的最近完成的传输数
+    private static final int COMPLETED_CAPACITY = 1024;
+
+    private final MqttClient client;
+    private final File dir;
+    private final Map<Long, Transfer> transfers = new HashMap<Long, Transfer>();
+    //本进程内最近完成的传输，完成后迟到的重发块只需再确认一次
+    private final DuplicateFilter completed = new DuplicateFilter(COMPLETED_CAPACITY);
+
+    /**
+     * 构造函数
+     * @param client 用来回复确认的客户端
+     * @param dir 接收文件存放的目录
+     */
+    public FileChunkReceiver(MqttClient client, File dir) {
+        this.client = client;
+        this.dir = dir;
+    }
+
+    /**
+     * @return 该主题是否为文件块主题
+     */
+    public boolean accepts(String topic) {
+        return FileChunk.TOPIC.equals(topic);
+    }
+
+    /**
+     * 处理一个文件块
+     * @param payload 消息内容
+     * @throws IOException
+     * @throws MqttException
+     */
+    public synchronized void receive(byte[] payload) throws IOException, MqttException {
+        FileChunk chunk = FileChunk.parse(payload);
+        if (chunk == null) {
+            System.out.println("丢弃格式错误的文件块");
+            return;
+        }
+        if (!chunk.verify(payload)) {
+            //校验失败的块不确认，发送端续传时会重发
+            System.out.println("文件块" + chunk.getSeq() + "校验失败");
+            return;
+        }
+        if (completed.contains(chunk.getTransferId())) {
+            ack(chunk.getTransferId(), chunk.getTotal());
+            return;
+        }
+        Transfer transfer = transfers.get(chunk.getTransferId());
+        if (transfer == null) {
+            if (chunk.getFileSize() > dir.getUsableSpace()) {
+                System.out.println("丢弃文件块，" + chunk.getName() + "的大小" + chunk.getFileSize() + "超过可用空间");
+                return;
+            }
+            transfer = new Transfer(chunk);
+            transfers.put(chunk.getTransferId(), transfer);
+        } else if (!transfer.matches(chunk)) {
+            System.out.println("丢弃文件块" + chunk.getSeq() + "，报文头与传输" + chunk.getTransferId() + "不一致");
+            return;
+        }
+        if (transfer.write(chunk, payload)) {
+            transfers.remove(chunk.getTransferId());
+            completed.add(chunk.getTransferId());
+        }
+    }
+
+    private void ack(long transferId, int acked) throws MqttException {
+        MqttMessage message = new MqttMessage(FileChunk.ack(transferId, acked));
+        message.setQos(1);
+        //在回调线程里不能等待发布完成，这里只投递不等待
+        client.getTopic(FileChunk.ACK_TOPIC).publish(message);
+    }
+
+    /**
+     * 一次文件传输的接收状态
+     */
+    private class Transfer {
+        private final long transferId;
+        private final int total;
+        private final int chunkSize;
+        private final long fileSize;
+        private final File target;
+        private final File part;
+        private final File state;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        //已经落盘但还不连续的块
+        private final BitSet received = new BitSet();
+        //连续落盘的块数
+        private int contiguous;
+        private int unsynced;
+
+        Transfer(FileChunk chunk) throws IOException {
+            this.transferId = chunk.getTransferId();
+            this.total = chunk.getTotal();
+            this.chunkSize = chunk.getChunkSize();
+            this.fileSize = chunk.getFileSize();
+            this.target = new File(dir, new File(chunk.getName()).getName());
+            this.part = new File(target.getPath() + ".part");
+            this.state = new File(part.getPath() + ".state");
+            this.contiguous = loadState();
+            if (contiguous == 0) {
+                part.delete();
+            }
+            this.raf = new RandomAccessFile(part, "rw");
+            this.channel = raf.getChannel();
+            raf.setLength(fileSize);
+            if (contiguous > 0) {
+                System.out.println(target.getName() + " 从第" + contiguous + "块继续接收");
+            }
+        }
+
+        /**
+         * @return 块的报文头是否和这次传输的第一块一致，不一致时块的偏移和长度不可信
+         */
+        boolean matches(FileChunk chunk) {
+            return chunk.getTotal() == total && chunk.getChunkSize() == chunkSize && chunk.getFileSize() == fileSize;
+        }
+
+        /**
+         * @return 文件是否已全部接收
+         */
+        boolean write(FileChunk chunk, byte[] payload) throws IOException, MqttException {
+            int seq = chunk.getSeq();
+            if (seq < contiguous || received.get(seq)) {
+                //重发的块，再确认一次让发送端前进
+                ack(transferId, contiguous);
+                return false;
+            }
+            ByteBuffer data = ByteBuffer.wrap(payload, chunk.getDataOffset(), chunk.getLength());
+            long position = (long) seq * chunkSize;
+            while (data.hasRemaining()) {
+                channel.write(data, position + data.position() - chunk.getDataOffset());
+            }
+            received.set(seq);
+            int before = contiguous;
+            while (received.get(contiguous)) {
+                received.clear(contiguous);
+                contiguous++;
+            }
+            unsynced += contiguous - before;
+            if (contiguous == total) {
+                complete();
+                return true;
+            }
+            if (unsynced >= ACK_EVERY) {
+                checkpoint();
+            }
+            return false;
+        }
+
+        private void checkpoint() throws IOException, MqttException {
+            //先让数据落盘，再记录并确认进度，保证确认过的块崩溃后仍在磁盘上
+            channel.force(false);
+            saveState();
+            unsynced = 0;
+            ack(transferId, contiguous);
+        }
+
+        private void complete() throws IOException, MqttException {
+            channel.force(true);
+            raf.close();
+            target.delete();
+            if (!part.renameTo(target)) {
+                throw new IOException("cannot rename " + part + " to " + target);
+            }
+            state.delete();
+            ack(transferId, contiguous);
+            System.out.println("接收到的文件存储在" + target.getPath());
+        }
+
+        private int loadState() throws IOException {
+            if (!state.exists() || !part.exists()) {
+                return 0;
+            }
+            DataInputStream in = new DataInputStream(new FileInputStream(state));
+            try {
+                return in.readLong() == transferId ? in.readInt() : 0;
+            } catch (IOException e) {
+                return 0;
+            } finally {
+                in.close();
+            }
+        }
+
+        private void saveState() throws IOException {
+            FileOutputStream fos = new FileOutputStream(state);
+            DataOutputStream out = new DataOutputStream(fos);
+            try {
+                out.writeLong(transferId);
+                out.writeInt(contiguous);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 分块发送文件
+ * 通过FileChannel按块读取文件，每块带序号和CRC32发布到FileChunk.TOPIC，
+ * 接收端确认的连续块数保存在"文件名.progress"里，传输中断后再次发送会从最后确认的块继续
+ */
+public class FileChunkSender {
+    //多久没有收到任何确认就认为接收端不在线，单位毫秒
+    private static final long ACK_TIMEOUT = 60000;
+
+    private final AsyncPublisher publisher;
+    private final int chunkSize;
+
+    private final Object ackLock = new Object();
+    private long currentTransfer;
+    private int acked;
+    private File progressFile;
+
+    /**
+     * 构造函数
+     * @param publisher 已连接的异步发布器
+     * @param chunkSize 每块的字节数
+     * @throws MqttException
+     */
+    public FileChunkSender(AsyncPublisher publisher, int chunkSize) throws MqttException {
+        this.publisher = publisher;
+        this.chunkSize = chunkSize;
+        publisher.getClient().subscribe(FileChunk.ACK_TOPIC, 1, new IMqttMessageListener() {
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+                onAck(message.getPayload());
+            }
+        }).waitForCompletion();
+    }
+
+    /**
+     * 发送文件，直到接收端确认全部块才返回
+     * @param file 要发送的文件
+     * @throws IOException
+     * @throws MqttException
+     * @throws InterruptedException
+     */
+    public void send(File file) throws IOException, MqttException, InterruptedException {
+        long fileSize = file.length();
+        //空文件也发送一个空块，接收端才会建出文件
+        int total = (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+        long transferId = transferId(file);
+        String name = file.getName();
+        int headerLength = FileChunk.headerLength(name);
+
+        synchronized (ackLock) {
+            currentTransfer = transferId;
+            progressFile = new File(file.getPath() + ".progress");
+            acked = loadProgress(progressFile, transferId);
+        }
+        if (acked > 0) {
+            System.out.println("从第" + acked + "块继续发送 " + name);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            for (int seq = acked; seq < total; seq++) {
+                long position = (long) seq * chunkSize;
+                int length = (int) Math.min(chunkSize, fileSize - position);
+                //报文头和数据放在同一个数组里，数据直接从channel读到数组中，不再复制
+                byte[] buf = new byte[headerLength + length];
+                ByteBuffer data = ByteBuffer.wrap(buf, headerLength, length);
+                while (data.hasRemaining()) {
+                    if (channel.read(data, position + data.position() - headerLength) < 0) {
+                        throw new IOException(name + " was truncated while sending");
+                    }
+                }
+                FileChunk.writeHeader(buf, transferId, seq, total, chunkSize, fileSize, length,
+                        FileChunk.crc32(buf, headerLength, length), name);
+                MqttMessage message = new MqttMessage(buf);
+                message.setQos(1);
+                publisher.publish(FileChunk.TOPIC, message);
+            }
+        } finally {
+            raf.close();
+        }
+        publisher.flush();
+        awaitAcked(total);
+        progressFile.delete();
+        System.out.println(name + " 发送完成，共" + total + "块");
+    }
+
+    private void awaitAcked(int total) throws InterruptedException, IOException {
+        synchronized (ackLock) {
+            int last = acked;
+            long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+            while (acked < total) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("receiver acknowledged " + acked + " of " + total + " chunks");
+                }
+                ackLock.wait(wait);
+                if (acked != last) {
+                    last = acked;
+                    deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+                }
+            }
+        }
+    }
+
+    private void onAck(byte[] payload) throws IOException {
+        if (payload.length != FileChunk.ACK_LENGTH) {
+            return;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(payload);
+        long transferId = bb.getLong();
+        int count = bb.getInt();
+        synchronized (ackLock) {
+            if (transferId != currentTransfer || count <= acked) {
+                return;
+            }
+            acked = count;
+            saveProgress(progressFile, transferId, count);
+            ackLock.notifyAll();
+        }
+    }
+
+    /**
+     * 同一个文件(路径、大小、修改时间都相同)得到同一个传输id，这样才能续传
+     */
+    private static long transferId(File file) {
+        long h = file.getAbsolutePath().hashCode();
+        h = h * 31 + file.length();
+        h = h * 31 + file.lastModified();
+        return h;
+    }
+
+    private static int loadProgress(File progress, long transferId) throws IOException {
+        if (!progress.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(progress));
+        try {
+            return in.readLong() == transferId ? in.readInt() : 0;
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void saveProgress(File progress, long transferId, int acked) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(progress));
+        try {
+            out.writeLong(transferId);
+            out.writeInt(acked);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,577 @@
+package com.homework;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 设备群模拟器，用少量线程模拟成千上万个MQTT设备
+ * 每个Paho客户端要占用好几个线程，模拟不了5万台设备；这里每个设备只是一个状态机，
+ * 所有设备分配到每个CPU一个的selector线程上，连接、收发和定时(发布、心跳、重连)都在所属的线程里完成，
+ * 报文用MqttPackets编解码。
+ * 设备以cycleMillis为周期工作，每个周期的前dutyCycle部分每隔intervalMillis发布一条遥测
+ * (topic/devices/{id}/telemetry，内容是SensorRecord)，并给随机一台设备的command主题发一条命令；
+ * 每台设备订阅自己的command主题。sleepDisconnect为true时设备在休眠期间断开连接，醒来后重连。
+ * 连接速率为0时所有设备同时连接，模拟连接风暴
+ * 用法: FleetSimulator [host] [设备数] [秒数] [周期毫秒] [占空比] [发布间隔毫秒] [payload字节数] [qos]
+ *       [每秒连接数] [休眠时断开]
+ * host为embedded时在本进程启动EmbeddedBroker，这时的内存统计包括broker一侧；
+ * 大量连接时注意ulimit -n和本机的临时端口范围
+ */
+public class FleetSimulator {
+    private static final int KEEP_ALIVE = 60;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final long REPORT_MILLIS = 5000;
+
+    //定时任务的类型
+    private static final int TIMER_PUBLISH = 0;
+    private static final int TIMER_PING = 1;
+    private static final int TIMER_CONNECT = 2;
+
+    private final InetSocketAddress address;
+    private final int deviceCount;
+    private final long cycleMillis;
+    private final double dutyCycle;
+    private final long intervalMillis;
+    private final int payloadSize;
+    private final int qos;
+    private final boolean sleepDisconnect;
+    private final String topicPrefix = Server.TOPIC + "/devices/";
+
+    private final Loop[] loops;
+    private volatile boolean running = true;
+
+    private final AtomicInteger connected = new AtomicInteger();
+    //至少连上过一次的设备数
+    private final AtomicInteger everConnected = new AtomicInteger();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final LatencyHistogram connectLatency = new LatencyHistogram(TimeUnit.MINUTES.toNanos(5));
+
+    /**
+     * 构造函数
+     * @param host 服务器地址，tcp://host:port
+     * @param deviceCount 设备数
+     * @param cycleMillis 工作周期
+     * @param dutyCycle 每个周期中活跃的比例，0到1
+     * @param intervalMillis 活跃时的发布间隔
+     * @param payloadSize 遥测的字节数，不小于SensorRecord.LENGTH
+     * @param qos 发布和订阅的QoS，0或1
+     * @param sleepDisconnect 休眠时是否断开连接
+     * @throws IOException
+     */
+    public FleetSimulator(String host, int deviceCount, long cycleMillis, double dutyCycle, long intervalMillis,
+                          int payloadSize, int qos, boolean sleepDisconnect) throws IOException {
+        URI uri = URI.create(host);
+        this.address = new InetSocketAddress(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 1883);
+        this.deviceCount = deviceCount;
+        this.cycleMillis = cycleMillis;
+        this.dutyCycle = dutyCycle;
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.payloadSize = Math.max(SensorRecord.LENGTH, payloadSize);
+        this.qos = Math.min(qos, 1);
+        this.sleepDisconnect = sleepDisconnect;
+        this.loops = new Loop[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(i);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = EmbeddedBroker.resolve(args.length > 0 ? args[0] : "embedded");
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        long cycle = args.length > 3 ? Long.parseLong(args[3]) : 10000;
+        double duty = args.length > 4 ? Double.parseDouble(args[4]) : 0.2;
+        long interval = args.length > 5 ? Long.parseLong(args[5]) : 1000;
+        int size = args.length > 6 ? Integer.parseInt(args[6]) : SensorRecord.LENGTH;
+        int qos = args.length > 7 ? Integer.parseInt(args[7]) : 0;
+        int connectRate = args.length > 8 ? Integer.parseInt(args[8]) : 0;
+        boolean sleepDisconnect = args.length > 9 && Boolean.parseBoolean(args[9]);
+
+        FleetSimulator simulator = new FleetSimulator(host, devices, cycle, duty, interval, size, qos,
+                sleepDisconnect);
+        simulator.run(seconds, connectRate);
+    }
+
+    /**
+     * 运行模拟并定期打印统计
+     * @param seconds 运行时间
+     * @param connectRate 每秒发起的连接数，0表示同时发起
+     * @throws InterruptedException
+     */
+    public void run(int seconds, int connectRate) throws InterruptedException {
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapBefore = usedHeap();
+        for (Loop loop : loops) {
+            loop.thread.start();
+        }
+        long start = System.nanoTime();
+        Random random = new Random();
+        for (int i = 0; i < deviceCount; i++) {
+            Device device = new Device(i, loops[i % loops.length], random.nextInt((int) Math.max(1, cycleMillis)));
+            device.loop.startQueue.add(device);
+            if (connectRate > 0) {
+                //按速率发起连接
+                long due = start + (long) i * 1000000000L / connectRate;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    wakeAll();
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+        }
+        wakeAll();
+
+        //等全部连上(或超过运行时间)后统计每个连接的内存
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        while (everConnected.get() < deviceCount && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long stormNanos = System.nanoTime() - start;
+        int connectedNow = everConnected.get();
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.println(String.format("connect storm: %d/%d devices connected in %.3f s (%.0f connects/s)",
+                connectedNow, deviceCount, stormNanos / 1e9, connectedNow / (stormNanos / 1e9)));
+        System.out.println(String.format("connect latency: p50=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms",
+                connectLatency.percentile(50) / 1e6, connectLatency.percentile(99) / 1e6,
+                connectLatency.percentile(99.9) / 1e6, connectLatency.getMax() / 1e6));
+        if (connected.get() > 0) {
+            System.out.println(String.format("memory: %.1f KB heap per connection, %d threads for %d devices",
+                    (heapAfter - heapBefore) / 1024.0 / connected.get(), threadsAfter - threadsBefore, deviceCount));
+        }
+
+        long lastPublished = 0;
+        long lastReceived = 0;
+        long lastConnects = 0;
+        long lastReport = System.nanoTime();
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(Math.min(REPORT_MILLIS, Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+            long now = System.nanoTime();
+            double elapsed = (now - lastReport) / 1e9;
+            long p = published.get();
+            long r = received.get();
+            long c = connects.get();
+            System.out.println(String.format("t=%.0fs connected=%d publish=%.0f/s receive=%.0f/s connects=%.0f/s"
+                            + " acked=%d failures=%d",
+                    (now - start) / 1e9, connected.get(), (p - lastPublished) / elapsed,
+                    (r - lastReceived) / elapsed, (c - lastConnects) / elapsed, acked.get(), failures.get()));
+            lastPublished = p;
+            lastReceived = r;
+            lastConnects = c;
+            lastReport = now;
+        }
+        double total = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("total: published=%d (%.0f/s) received=%d (%.0f/s) connects=%d failures=%d",
+                published.get(), published.get() / total, received.get(), received.get() / total,
+                connects.get(), failures.get()));
+        close();
+    }
+
+    /**
+     * 停止所有selector线程并关闭连接
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+            loop.thread.join();
+        }
+    }
+
+    private void wakeAll() {
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * 一个selector线程和它的定时任务队列
+     */
+    private final class Loop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final ConcurrentLinkedQueue<Device> startQueue = new ConcurrentLinkedQueue<Device>();
+        final PriorityQueue<Timer> timers = new PriorityQueue<Timer>(1024, new Comparator<Timer>() {
+            public int compare(Timer a, Timer b) {
+                return a.due != b.due ? Long.compare(a.due, b.due) : Long.compare(a.seq, b.seq);
+            }
+        });
+        final Random random = new Random();
+        long sequence;
+
+        Loop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "fleet-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        void schedule(Device device, int kind, long due) {
+            timers.add(new Timer(due, ++sequence, device, kind, device.generation));
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    long timeout = 1000;
+                    Timer next = timers.peek();
+                    if (next != null) {
+                        timeout = Math.max(1, Math.min(timeout, next.due - now()));
+                    }
+                    selector.select(timeout);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Device device = (Device) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            device.finishConnect();
+                        } else {
+                            if (key.isReadable()) {
+                                device.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                device.flush();
+                            }
+                        }
+                    }
+                    Device device;
+                    while ((device = startQueue.poll()) != null) {
+                        device.connect();
+                    }
+                    long now = now();
+                    while ((next = timers.peek()) != null && next.due <= now) {
+                        timers.poll();
+                        //重连后上一次连接的发布和心跳任务作废
+                        if (next.kind == TIMER_CONNECT || next.generation == next.device.generation) {
+                            next.device.onTimer(next.kind, now);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Device) key.attachment()).close(false);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 一台模拟设备，只在所属Loop的线程里访问
+     */
+    private final class Device {
+        final int id;
+        final Loop loop;
+        //在周期中的相位偏移，避免所有设备同时发布
+        final long phase;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(256);
+        ArrayDeque<ByteBuffer> out;
+        long connectStart;
+        //每次连接加1
+        int generation;
+        boolean online;
+        boolean everOnline;
+        int lastId;
+        //最后一次发送报文的时间，用于决定是否需要心跳
+        long lastSend;
+
+        Device(int id, Loop loop, long phase) {
+            this.id = id;
+            this.loop = loop;
+            this.phase = phase;
+        }
+
+        void connect() {
+            generation++;
+            connectStart = System.nanoTime();
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                key = channel.register(loop.selector, 0, this);
+                if (channel.connect(address)) {
+                    onConnected();
+                } else {
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        void finishConnect() {
+            try {
+                if (channel.finishConnect()) {
+                    onConnected();
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        void onConnected() {
+            key.interestOps(SelectionKey.OP_READ);
+            MqttPackets.Connect c = new MqttPackets.Connect();
+            c.clientId = "device-" + id;
+            c.cleanSession = true;
+            c.keepAlive = KEEP_ALIVE;
+            send(MqttPackets.connect(c));
+        }
+
+        void read() {
+            try {
+                int n = channel.read(in);
+                if (n < 0) {
+                    fail();
+                    return;
+                }
+                in.flip();
+                int length;
+                while (channel != null && (length = MqttPackets.frameLength(in)) > 0) {
+                    ByteBuffer frame = in.slice();
+                    frame.limit(length);
+                    in.position(in.position() + length);
+                    handle(frame);
+                }
+                if (channel == null) {
+                    return;
+                }
+                in.compact();
+                if (!in.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                    in.flip();
+                    bigger.put(in);
+                    in = bigger;
+                }
+            } catch (IOException e) {
+                fail();
+            } catch (RuntimeException e) {
+                fail();
+            }
+        }
+
+        void handle(ByteBuffer frame) {
+            int first = frame.get(frame.position()) & 0xFF;
+            MqttPackets.skipFixedHeader(frame);
+            switch (first >>> 4) {
+                case MqttPackets.CONNACK:
+                    frame.get();
+                    if (frame.get() != MqttPackets.ACCEPTED) {
+                        fail();
+                        return;
+                    }
+                    online = true;
+                    if (!everOnline) {
+                        everOnline = true;
+                        everConnected.incrementAndGet();
+                    }
+                    connected.incrementAndGet();
+                    connects.incrementAndGet();
+                    connectLatency.record(System.nanoTime() - connectStart);
+                    send(MqttPackets.subscribe(nextId(), new String[] {topicPrefix + id + "/command"},
+                            new int[] {qos}));
+                    long now = now();
+                    loop.schedule(this, TIMER_PUBLISH, now);
+                    loop.schedule(this, TIMER_PING, now + KEEP_ALIVE * 1000L / 2);
+                    break;
+                case MqttPackets.PUBLISH: {
+                    MqttPackets.Publish p = MqttPackets.readPublish(first & 0x0F, frame);
+                    received.incrementAndGet();
+                    if (p.qos == 1) {
+                        send(MqttPackets.ack(MqttPackets.PUBACK, p.packetId));
+                    }
+                    break;
+                }
+                case MqttPackets.PUBACK:
+                    acked.incrementAndGet();
+                    break;
+                default:
+                    //SUBACK、PINGRESP不需要处理
+            }
+        }
+
+        void onTimer(int kind, long now) {
+            if (kind == TIMER_CONNECT) {
+                if (channel == null) {
+                    connect();
+                }
+                return;
+            }
+            if (!online) {
+                return;
+            }
+            if (kind == TIMER_PING) {
+                if (now - lastSend >= KEEP_ALIVE * 1000L / 2) {
+                    send(MqttPackets.empty(MqttPackets.PINGREQ));
+                }
+                loop.schedule(this, TIMER_PING, now + KEEP_ALIVE * 1000L / 2);
+                return;
+            }
+            long position = (now + phase) % cycleMillis;
+            long active = (long) (cycleMillis * dutyCycle);
+            if (position < active) {
+                publish(now);
+                loop.schedule(this, TIMER_PUBLISH, now + intervalMillis);
+                return;
+            }
+            long wake = now + cycleMillis - position;
+            if (sleepDisconnect) {
+                send(MqttPackets.empty(MqttPackets.DISCONNECT));
+                close(true);
+                loop.schedule(this, TIMER_CONNECT, wake);
+            } else {
+                loop.schedule(this, TIMER_PUBLISH, wake);
+            }
+        }
+
+        void publish(long now) {
+            byte[] payload = new byte[payloadSize];
+            SensorRecord.write(ByteBuffer.wrap(payload), id, System.currentTimeMillis(), loop.random.nextGaussian());
+            send(MqttPackets.publish(topicPrefix + id + "/telemetry", qos, false, false,
+                    qos > 0 ? nextId() : 0, payload));
+            int peer = loop.random.nextInt(deviceCount);
+            byte[] command = new byte[] {(byte) '1'};
+            send(MqttPackets.publish(topicPrefix + peer + "/command", qos, false, false,
+                    qos > 0 ? nextId() : 0, command));
+            published.addAndGet(2);
+        }
+
+        int nextId() {
+            lastId = lastId == 65535 ? 1 : lastId + 1;
+            return lastId;
+        }
+
+        void send(ByteBuffer buf) {
+            if (channel == null) {
+                return;
+            }
+            lastSend = now();
+            try {
+                if (out == null || out.isEmpty()) {
+                    channel.write(buf);
+                    if (!buf.hasRemaining()) {
+                        return;
+                    }
+                    if (out == null) {
+                        out = new ArrayDeque<ByteBuffer>(4);
+                    }
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+                out.add(buf);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        void flush() {
+            try {
+                while (!out.isEmpty()) {
+                    ByteBuffer buf = out.peek();
+                    channel.write(buf);
+                    if (buf.hasRemaining()) {
+                        return;
+                    }
+                    out.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        /**
+         * 连接出错，稍后重连
+         */
+        void fail() {
+            failures.incrementAndGet();
+            close(true);
+            if (running) {
+                loop.schedule(this, TIMER_CONNECT, now() + RECONNECT_MILLIS + loop.random.nextInt(1000));
+            }
+        }
+
+        void close(boolean countOffline) {
+            if (online && countOffline) {
+                connected.decrementAndGet();
+            }
+            online = false;
+            if (channel == null) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+            key = null;
+            out = null;
+            in.clear();
+        }
+    }
+
+    /**
+     * 设备的定时任务
+     */
+    private static final class Timer {
+        final long due;
+        final long seq;
+        final Device device;
+        final int kind;
+        final int generation;
+
+        Timer(long due, long seq, Device device, int kind, int generation) {
+            this.due = due;
+            this.seq = seq;
+            this.device = device;
+            this.kind = kind;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.homework;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * GorillaEncoder/GorillaDecoder在几种典型传感器数据上的压缩率和解码吞吐量
+ * temperature: 每10秒一个点，时间有几十毫秒抖动，0.1度精度的随机游走
+ * humidity:    每分钟一个点，整数百分比
+ * energy:      每秒一个点，电表累计读数，3位小数
+ * vibration:   100Hz加速度，全精度高斯噪声，基本压不动，作为下限
+ * 和文本"设备id,时间戳,数值"以及定长16字节(时间戳+数值)对比，每块TimeSeriesStore.BLOCK_ROWS个点
+ * 用法: GorillaBenchmark [每种数据的点数]
+ */
+public class GorillaBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int points = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        String[] traces = {"temperature", "humidity", "energy", "vibration"};
+        for (String trace : traces) {
+            long[] timestamps = new long[points];
+            double[] values = new double[points];
+            generate(trace, timestamps, values, new Random(42));
+            run(trace, timestamps, values);
+        }
+    }
+
+    private static void generate(String trace, long[] timestamps, double[] values, Random random) {
+        long t = 1700000000000L;
+        double v = "humidity".equals(trace) ? 55 : "energy".equals(trace) ? 12345.678 : 22.0;
+        for (int i = 0; i < timestamps.length; i++) {
+            if ("temperature".equals(trace)) {
+                t += 10000;
+                timestamps[i] = t + random.nextInt(41) - 20;
+                v = Math.round((v + (random.nextInt(3) - 1) * 0.1) * 10) / 10.0;
+            } else if ("humidity".equals(trace)) {
+                t += 60000;
+                timestamps[i] = t;
+                v = Math.max(0, Math.min(100, v + random.nextInt(3) - 1));
+            } else if ("energy".equals(trace)) {
+                t += 1000;
+                timestamps[i] = t;
+                v = Math.round((v + random.nextDouble() * 0.01) * 1000) / 1000.0;
+            } else {
+                t += 10;
+                timestamps[i] = t;
+                v = random.nextGaussian() * 0.02;
+            }
+            values[i] = v;
+        }
+    }
+
+    private static void run(String trace, long[] timestamps, double[] values) {
+        int n = timestamps.length;
+        int block = TimeSeriesStore.BLOCK_ROWS;
+        long textBytes = 0;
+        for (int i = 0; i < n; i++) {
+            textBytes += ("1," + timestamps[i] + "," + values[i] + "\n").getBytes(StandardCharsets.UTF_8).length;
+        }
+        //按块编码
+        GorillaEncoder encoder = new GorillaEncoder(block * 4);
+        ByteBuffer encoded = ByteBuffer.allocate(n * 20 + 16);
+        int blocks = (n + block - 1) / block;
+        int[] offsets = new int[blocks + 1];
+        long start = System.nanoTime();
+        for (int b = 0; b < blocks; b++) {
+            encoder.reset();
+            int end = Math.min(n, (b + 1) * block);
+            for (int i = b * block; i < end; i++) {
+                encoder.add(timestamps[i], values[i]);
+            }
+            offsets[b] = encoded.position();
+            encoded.position(encoded.position() + encoder.copyTo(encoded.array(), encoded.position()));
+        }
+        offsets[blocks] = encoded.position();
+        double encodeSeconds = (System.nanoTime() - start) / 1e9;
+
+        GorillaDecoder decoder = new GorillaDecoder();
+        double decodeSeconds = Double.MAX_VALUE;
+        long checksum = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            for (int b = 0; b < blocks; b++) {
+                decoder.reset(encoded, offsets[b], Math.min(block, n - b * block));
+                while (decoder.next()) {
+                    checksum += decoder.timestamp() + (long) decoder.value();
+                }
+            }
+            decodeSeconds = Math.min(decodeSeconds, (System.nanoTime() - start) / 1e9);
+        }
+        double gorillaBytes = offsets[blocks];
+        System.out.println(String.format("%-12s %.2f B/pt (text %.1f B/pt, %.1fx; fixed 16 B/pt, %.1fx)"
+                        + " encode %.1f M pts/s, decode %.1f M pts/s [%d]",
+                trace, gorillaBytes / n, (double) textBytes / n, textBytes / gorillaBytes, 16.0 * n / gorillaBytes,
+                n / encodeSeconds / 1e6, n / decodeSeconds / 1e6, checksum & 0xF));
+    }
+}
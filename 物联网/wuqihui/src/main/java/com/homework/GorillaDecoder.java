@@ -0,0 +1,123 @@
+package com.homework;
+
+import java.nio.ByteBuffer;
+
+/**
+ * GorillaEncoder编码的流式解码器
+ * 直接按绝对位置读取ByteBuffer(可以是映射的文件)，next()只更新几个long字段，解码过程中不创建对象；
+ * 一个实例可以用reset()反复解码不同的块。实例不是线程安全的
+ */
+public final class GorillaDecoder {
+    private ByteBuffer buf;
+    private int position;
+    private int current;
+    private int bitsLeft;
+
+    private int remaining;
+    private boolean first;
+    private long timestamp;
+    private long delta;
+    private long value;
+    private int leading;
+    private int trailing;
+
+    /**
+     * 指向buf中offset处编码了count个点的数据
+     */
+    public void reset(ByteBuffer buf, int offset, int count) {
+        this.buf = buf;
+        this.position = offset;
+        this.bitsLeft = 0;
+        this.remaining = count;
+        this.first = true;
+        this.delta = 0;
+        this.leading = 0;
+        this.trailing = 0;
+    }
+
+    /**
+     * 解码下一个点
+     * @return 没有更多的点时返回false
+     */
+    public boolean next() {
+        if (remaining == 0) {
+            return false;
+        }
+        remaining--;
+        if (first) {
+            first = false;
+            timestamp = readBits(64);
+            value = readBits(64);
+            return true;
+        }
+        long dod;
+        if (readBit() == 0) {
+            dod = 0;
+        } else if (readBit() == 0) {
+            dod = signed(readBits(7), 7);
+        } else if (readBit() == 0) {
+            dod = signed(readBits(9), 9);
+        } else if (readBit() == 0) {
+            dod = signed(readBits(12), 12);
+        } else {
+            dod = readBits(64);
+        }
+        delta += dod;
+        timestamp += delta;
+        if (readBit() == 1) {
+            if (readBit() == 1) {
+                leading = (int) readBits(5);
+                int meaningful = (int) readBits(6) + 1;
+                trailing = 64 - leading - meaningful;
+            }
+            value ^= readBits(64 - leading - trailing) << trailing;
+        }
+        return true;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public double value() {
+        return Double.longBitsToDouble(value);
+    }
+
+    /**
+     * @return 读到的位置，最后一个字节读了一部分时算作读完
+     */
+    public int position() {
+        return position;
+    }
+
+    private int readBit() {
+        if (bitsLeft == 0) {
+            current = buf.get(position++);
+            bitsLeft = 8;
+        }
+        bitsLeft--;
+        return (current >>> bitsLeft) & 1;
+    }
+
+    /**
+     * 读n位，n为1到64
+     */
+    private long readBits(int n) {
+        long result = 0;
+        while (n > 0) {
+            if (bitsLeft == 0) {
+                current = buf.get(position++);
+                bitsLeft = 8;
+            }
+            int take = Math.min(n, bitsLeft);
+            bitsLeft -= take;
+            result = (result << take) | ((current >>> bitsLeft) & ((1 << take) - 1));
+            n -= take;
+        }
+        return result;
+    }
+
+    private static long signed(long raw, int bits) {
+        return (raw << (64 - bits)) >> (64 - bits);
+    }
+}
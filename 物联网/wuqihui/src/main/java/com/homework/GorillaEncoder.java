@@ -0,0 +1,153 @@
+package com.homework;
+
+import java.util.Arrays;
+
+/**
+ * Gorilla风格的(时间戳, double)序列编码，点到达时逐个追加
+ * 时间戳记二阶差分(delta of delta): 0记1位'0'，[-64,63]记'10'+7位，[-256,255]记'110'+9位，
+ * [-2048,2047]记'1110'+12位，其他记'1111'+64位；固定间隔采样的时间戳大多只占1位。
+ * 数值和上一个数值异或: 相同记1位'0'；否则记'1'，有效位落在上一次的前导零/尾随零范围内时
+ * 记'0'+有效位，不然记'1'+前导零个数(5位)+有效位长度减一(6位)+有效位。
+ * 第一个点的时间戳和数值各占64位。编码不带点数，解码时由调用者给出
+ */
+public final class GorillaEncoder {
+    private byte[] buf;
+    private int length;
+    //还没凑满一个字节的位
+    private int current;
+    private int pendingBits;
+
+    private int count;
+    private long prevTimestamp;
+    private long prevDelta;
+    private long prevValue;
+    private int prevLeading = -1;
+    private int prevTrailing;
+
+    /**
+     * 构造函数
+     * @param initialCapacity 初始缓冲区字节数
+     */
+    public GorillaEncoder(int initialCapacity) {
+        buf = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /**
+     * 追加一个点
+     */
+    public void add(long timestamp, double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            writeBits(timestamp, 64);
+            writeBits(bits, 64);
+            prevTimestamp = timestamp;
+            prevDelta = 0;
+            prevValue = bits;
+            count = 1;
+            return;
+        }
+        long delta = timestamp - prevTimestamp;
+        long dod = delta - prevDelta;
+        if (dod == 0) {
+            writeBits(0, 1);
+        } else if (dod >= -64 && dod <= 63) {
+            writeBits(0x2, 2);
+            writeBits(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            writeBits(0x6, 3);
+            writeBits(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            writeBits(0xE, 4);
+            writeBits(dod, 12);
+        } else {
+            writeBits(0xF, 4);
+            writeBits(dod, 64);
+        }
+        prevDelta = delta;
+        prevTimestamp = timestamp;
+
+        long xor = bits ^ prevValue;
+        if (xor == 0) {
+            writeBits(0, 1);
+        } else {
+            int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+                writeBits(0x2, 2);
+                writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+            } else {
+                int meaningful = 64 - leading - trailing;
+                writeBits(0x3, 2);
+                writeBits(leading, 5);
+                writeBits(meaningful - 1, 6);
+                writeBits(xor >>> trailing, meaningful);
+                prevLeading = leading;
+                prevTrailing = trailing;
+            }
+        }
+        prevValue = bits;
+        count++;
+    }
+
+    /**
+     * @return 已追加的点数
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return 编码后的字节数，最后不满一个字节的位补0
+     */
+    public int size() {
+        return length + (pendingBits > 0 ? 1 : 0);
+    }
+
+    /**
+     * 把当前的编码复制到dst，之后还可以继续追加
+     * @return 复制的字节数
+     */
+    public int copyTo(byte[] dst, int offset) {
+        System.arraycopy(buf, 0, dst, offset, length);
+        if (pendingBits > 0) {
+            dst[offset + length] = (byte) (current << (8 - pendingBits));
+        }
+        return size();
+    }
+
+    public byte[] toByteArray() {
+        byte[] out = new byte[size()];
+        copyTo(out, 0);
+        return out;
+    }
+
+    public void reset() {
+        length = 0;
+        current = 0;
+        pendingBits = 0;
+        count = 0;
+        prevLeading = -1;
+        prevTrailing = 0;
+    }
+
+    /**
+     * 写value的低n位，n为1到64
+     */
+    private void writeBits(long value, int n) {
+        while (n > 0) {
+            int take = Math.min(n, 8 - pendingBits);
+            int bits = (int) (value >>> (n - take)) & ((1 << take) - 1);
+            current = (current << take) | bits;
+            pendingBits += take;
+            n -= take;
+            if (pendingBits == 8) {
+                if (length == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                buf[length++] = (byte) current;
+                current = 0;
+                pendingBits = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.homework;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 追加写的消息落盘器
+ * 回调线程只把payload放入队列，由单独的写线程批量追加到文件，按组提交策略做fsync:
+ * 每syncEvery条消息或每syncIntervalMillis毫秒(先到者为准)强制落盘一次，两者都为0时只在close时落盘
+ *
+ * 记录格式和DiskSpool一样带长度和校验: length(4) crc32(4) payload，length是payload的字节数，
+ * payload里可以有任意字节；打开已有文件时截掉尾部crc不对的半条记录，再接着追加
+ */
+public class GroupCommitSink {
+    private static final int RECORD_HEADER = 8;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_BATCH = 1024;
+    //通知写线程退出的标记，按引用比较
+    private static final byte[] CLOSE = new byte[0];
+
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final BlockingQueue<byte[]> queue;
+    private final int syncEvery;
+    private final long syncIntervalNanos;
+    private final Thread writer;
+    //写线程内复用的缓冲区，小消息先拼在这里再一次写出
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private volatile Metrics metrics;
+
+    /**
+     * 构造函数
+     * @param file 追加写入的文件
+     * @param syncEvery 每多少条消息fsync一次，0表示不按条数
+     * @param syncIntervalMillis 每隔多少毫秒fsync一次，0表示不按时间
+     * @param capacity 队列容量，写线程跟不上时append会阻塞
+     * @throws IOException
+     */
+    public GroupCommitSink(File file, int syncEvery, long syncIntervalMillis, int capacity) throws IOException {
+        long valid = file.exists() ? scan(file, null) : 0;
+        this.out = new FileOutputStream(file, true);
+        this.channel = out.getChannel();
+        if (valid < channel.size()) {
+            System.out.println("truncated torn sink tail in " + file.getName() + " at " + valid);
+            channel.truncate(valid);
+        }
+        this.queue = new ArrayBlockingQueue<byte[]>(capacity);
+        this.syncEvery = syncEvery;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "sink-" + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 记录每批写入和每次fsync的耗时，并注册队列中等待写入的消息数
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge("sink.queueDepth", new Metrics.Gauge() {
+            public long get() {
+                return queue.size();
+            }
+        });
+    }
+
+    /**
+     * 放入一条消息，只在队列满时阻塞
+     * @param payload 原始消息内容，放入后不能再修改
+     * @throws IOException 写线程已经失败或sink已关闭
+     * @throws InterruptedException
+     */
+    public void append(byte[] payload) throws IOException, InterruptedException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("sink is closed");
+        }
+        queue.put(payload);
+    }
+
+    /**
+     * 写完队列中剩余的消息，fsync后关闭文件
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void close() throws IOException, InterruptedException {
+        closed = true;
+        if (failure == null) {
+            queue.put(CLOSE);
+        }
+        writer.join();
+        out.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<byte[]>(MAX_BATCH);
+        int unsynced = 0;
+        long lastSync = System.nanoTime();
+        boolean stopping = false;
+        try {
+            while (!stopping) {
+                byte[] first;
+                try {
+                    if (unsynced > 0 && syncIntervalNanos > 0) {
+                        long wait = lastSync + syncIntervalNanos - System.nanoTime();
+                        first = queue.poll(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+                    } else {
+                        first = queue.take();
+                    }
+                } catch (InterruptedException e) {
+                    first = null;
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    //不能用中断通知写线程退出，FileChannel在写的过程中被中断会直接关闭
+                    stopping = batch.remove(CLOSE);
+                    if (stopping) {
+                        queue.drainTo(batch);
+                    }
+                    long start = System.nanoTime();
+                    write(batch);
+                    Metrics m = metrics;
+                    if (m != null) {
+                        m.record("sink.write", System.nanoTime() - start);
+                        m.count("sink.messages", batch.size());
+                    }
+                    unsynced += batch.size();
+                    batch.clear();
+                }
+                long now = System.nanoTime();
+                boolean byCount = syncEvery > 0 && unsynced >= syncEvery;
+                boolean byTime = syncIntervalNanos > 0 && unsynced > 0 && now - lastSync >= syncIntervalNanos;
+                if (byCount || byTime) {
+                    channel.force(false);
+                    Metrics m = metrics;
+                    if (m != null) {
+                        m.record("sink.fsync", System.nanoTime() - now);
+                    }
+                    unsynced = 0;
+                    lastSync = now;
+                }
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            failure = e;
+            //放掉可能阻塞在队列上的回调线程，之后的append会直接抛出异常
+            queue.clear();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 读出文件中的所有完整记录，遇到截断或crc不对的记录时停止
+     * @param file GroupCommitSink写的文件
+     * @return 记录的payload
+     * @throws IOException
+     */
+    public static List<byte[]> read(File file) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        scan(file, records);
+        return records;
+    }
+
+    /**
+     * @param records 放读到的payload，null时只检查
+     * @return 最后一条完整记录之后的位置
+     */
+    private static long scan(File file, List<byte[]> records) throws IOException {
+        long size = file.length();
+        long position = 0;
+        CRC32 check = new CRC32();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (size - position >= RECORD_HEADER) {
+                int length = in.readInt();
+                int expected = in.readInt();
+                if (length < 0 || length > size - position - RECORD_HEADER) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                check.reset();
+                check.update(payload, 0, length);
+                if ((int) check.getValue() != expected) {
+                    break;
+                }
+                if (records != null) {
+                    records.add(payload);
+                }
+                position += RECORD_HEADER + length;
+            }
+        } finally {
+            in.close();
+        }
+        return position;
+    }
+
+    private void write(List<byte[]> batch) throws IOException {
+        for (byte[] payload : batch) {
+            if (RECORD_HEADER + payload.length > buffer.remaining()) {
+                drain();
+            }
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            buffer.putInt(payload.length).putInt((int) crc.getValue());
+            if (payload.length > buffer.remaining()) {
+                //大消息的头进缓冲区，payload直接写，不经过缓冲区
+                drain();
+                ByteBuffer direct = ByteBuffer.wrap(payload);
+                while (direct.hasRemaining()) {
+                    channel.write(direct);
+                }
+            } else {
+                buffer.put(payload);
+            }
+        }
+        drain();
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
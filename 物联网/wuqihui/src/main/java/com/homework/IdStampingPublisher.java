@@ -0,0 +1,33 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 发布前给每条消息加上递增的MessageId，应该包在压缩、打包发布器的外面
+ */
+public class IdStampingPublisher implements Publisher {
+    private final Publisher target;
+    private final AtomicLong nextId;
+
+    /**
+     * 构造函数
+     * @param target 实际发布消息的发布器
+     */
+    public IdStampingPublisher(Publisher target) {
+        this.target = target;
+        this.nextId = new AtomicLong(MessageId.randomStart());
+    }
+
+    public CompletableFuture<IMqttDeliveryToken> publish(String topic, MqttMessage message)
+            throws MqttException, InterruptedException {
+        MqttMessage stamped = new MqttMessage(MessageId.stamp(nextId.incrementAndGet(), message.getPayload()));
+        stamped.setQos(message.getQos());
+        stamped.setRetained(message.isRetained());
+        return target.publish(topic, stamped);
+    }
+}
@@ -0,0 +1,355 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 进程内的最新值缓存，网关里的本地消费者直接读每个主题的当前状态，不用再经过服务器
+ * 每个主题保存最新的一条消息，history大于0时再用环形数组保存最近history条。
+ * 读不加锁: 最新值是一个volatile引用，环里的每条消息带写入序号，读的时候按序号校验，
+ * 被并发写覆盖的槽位直接跳过。写也只用CAS，同一主题的并发写按序号决定谁是最新值。
+ *
+ * 主题数超过maxTopics时按近似LRU淘汰冷主题: 每次写把全局的写入计数加一，读写都把当前计数记到主题上
+ * 作为访问时间(和已记的相同时不写)；淘汰时从主题队列头部取EVICTION_SAMPLES个，删除其中最久没有访问的，
+ * 其余放回队尾。精确的LRU要在每次读时调整链表，读就不能无锁了。被淘汰的主题上正在进行的写可能丢失。
+ * 缓存的payload总字节数超过maxBytes时同样淘汰冷主题；单条超过maxBytes的消息不缓存。
+ * 字节数在消息放进或移出槽位时增减，移出用getAndSet/compareAndSet，每条消息只会被减一次。
+ * 和MQTT保留消息的语义一致，payload为空的保留消息删除这个主题
+ */
+public class LastValueCache {
+    //每次淘汰比较的主题数
+    private static final int EVICTION_SAMPLES = 8;
+
+    private final int maxTopics;
+    private final int history;
+    private final long maxBytes;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    //淘汰时抽样的队列，只在evict中出队，和entries中的主题一一对应
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    //写入计数，用作访问时间
+    private final AtomicLong clock = new AtomicLong();
+    private final Object evictLock = new Object();
+    private final AtomicLong evicted = new AtomicLong();
+    //缓存的payload总字节数
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * 缓存中的一条消息，不可变；payload不复制，调用者不应修改
+     */
+    public static final class Sample {
+        public final byte[] payload;
+        public final int qos;
+        public final boolean retained;
+        //收到的时间，毫秒
+        public final long timestamp;
+        //主题内的写入序号
+        public final long sequence;
+
+        Sample(byte[] payload, int qos, boolean retained, long timestamp, long sequence) {
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * 构造函数
+     * @param maxTopics 缓存的主题数上限
+     * @param history 每个主题保存的最近消息数，0表示只保存最新值
+     * @param maxBytes 缓存的payload总字节数上限
+     * @throws IllegalArgumentException 参数不合法
+     */
+    public LastValueCache(int maxTopics, int history, long maxBytes) {
+        if (maxTopics <= 0 || history < 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException(
+                    "maxTopics and maxBytes should be positive and history should not be negative");
+        }
+        this.maxTopics = maxTopics;
+        this.history = history;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 构造函数，不限制总字节数
+     */
+    public LastValueCache(int maxTopics, int history) {
+        this(maxTopics, history, Long.MAX_VALUE);
+    }
+
+    /**
+     * 把主题数、字节数、淘汰的主题数和太大没有缓存的消息数注册为指标
+     */
+    public void setMetrics(Metrics metrics) {
+        metrics.gauge("lastValue.topics", new Metrics.Gauge() {
+            public long get() {
+                return size();
+            }
+        });
+        metrics.gauge("lastValue.evicted", new Metrics.Gauge() {
+            public long get() {
+                return getEvictedCount();
+            }
+        });
+        metrics.gauge("lastValue.bytes", new Metrics.Gauge() {
+            public long get() {
+                return getBytes();
+            }
+        });
+        metrics.gauge("lastValue.skipped", new Metrics.Gauge() {
+            public long get() {
+                return getSkippedCount();
+            }
+        });
+    }
+
+    /**
+     * 记录一条消息
+     * @param topic 主题
+     * @param message 消息
+     */
+    public void put(String topic, MqttMessage message) {
+        put(topic, message.getPayload(), message.getQos(), message.isRetained());
+    }
+
+    /**
+     * 记录一条消息，payload为空的保留消息删除这个主题
+     * @param topic 主题
+     * @param payload 消息内容，缓存后不应再修改
+     * @param qos QoS
+     * @param retained 是否是保留消息
+     */
+    public void put(String topic, byte[] payload, int qos, boolean retained) {
+        if (retained && payload.length == 0) {
+            remove(topic);
+            return;
+        }
+        if (payload.length > maxBytes) {
+            skipped.incrementAndGet();
+            return;
+        }
+        Entry entry = entries.get(topic);
+        if (entry == null) {
+            Entry created = new Entry(topic, history, clock.get());
+            entry = entries.putIfAbsent(topic, created);
+            if (entry == null) {
+                entry = created;
+                queue.add(created);
+            }
+        }
+        long sequence = entry.next.getAndIncrement();
+        Sample sample = new Sample(payload, qos, retained, System.currentTimeMillis(), sequence);
+        int slot = (int) (sequence % Math.max(history, 1));
+        if (history > 0) {
+            //有历史时按环里的消息计字节数，最新值也在环里
+            bytes.addAndGet(payload.length);
+            Sample replaced = entry.ring.getAndSet(slot, sample);
+            if (replaced != null) {
+                bytes.addAndGet(-replaced.payload.length);
+            }
+        }
+        //并发写时序号大的为最新值
+        for (;;) {
+            Sample current = entry.latest.get();
+            if (current != null && current.sequence > sequence) {
+                break;
+            }
+            if (entry.latest.compareAndSet(current, sample)) {
+                if (history == 0) {
+                    bytes.addAndGet(payload.length - (current == null ? 0 : current.payload.length));
+                }
+                break;
+            }
+        }
+        entry.accessed = clock.incrementAndGet();
+        if (entries.get(topic) != entry) {
+            //写的同时主题被删除或淘汰了，清理者可能已经扫过槽位，自己把刚写的消息移出
+            release(entry, slot, sample);
+        } else if (entries.size() > maxTopics || bytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * 删除一个主题
+     * @param topic 主题
+     */
+    public void remove(String topic) {
+        Entry entry = entries.remove(topic);
+        if (entry != null) {
+            clear(entry);
+        }
+    }
+
+    /**
+     * @return 主题的最新消息，没有时返回null
+     */
+    public Sample get(String topic) {
+        Entry entry = entries.get(topic);
+        if (entry == null) {
+            return null;
+        }
+        touch(entry);
+        return entry.latest.get();
+    }
+
+    /**
+     * 读取主题最近的消息，从新到旧，最多out.length条、history条
+     * @param topic 主题
+     * @param out 存放结果的数组
+     * @return 读到的条数
+     */
+    public int recent(String topic, Sample[] out) {
+        Entry entry = entries.get(topic);
+        if (entry == null || history == 0) {
+            Sample latest = entry == null ? null : entry.latest.get();
+            if (latest == null || out.length == 0) {
+                return 0;
+            }
+            touch(entry);
+            out[0] = latest;
+            return 1;
+        }
+        touch(entry);
+        long head = entry.next.get();
+        int n = 0;
+        for (long sequence = head - 1; sequence >= 0 && sequence >= head - history && n < out.length; sequence--) {
+            Sample sample = entry.ring.get((int) (sequence % history));
+            //还没写完或已被更新的消息覆盖
+            if (sample != null && sample.sequence == sequence) {
+                out[n++] = sample;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return 缓存的主题数
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return 因主题数超限淘汰的主题数
+     */
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /**
+     * @return 缓存的payload总字节数
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return 超过maxBytes没有缓存的消息数
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * 记录读的访问时间，已经是当前计数时不写，避免多个读线程争用缓存行
+     */
+    private void touch(Entry entry) {
+        long now = clock.get();
+        if (entry.accessed != now) {
+            entry.accessed = now;
+        }
+    }
+
+    /**
+     * 抽样淘汰最久没有访问的主题，直到主题数不超过maxTopics、字节数不超过maxBytes
+     */
+    private void evict() {
+        Entry[] samples = new Entry[EVICTION_SAMPLES];
+        synchronized (evictLock) {
+            while (entries.size() > maxTopics || bytes.get() > maxBytes) {
+                int n = 0;
+                Entry coldest = null;
+                while (n < EVICTION_SAMPLES) {
+                    Entry entry = queue.poll();
+                    if (entry == null) {
+                        break;
+                    }
+                    if (entries.get(entry.topic) != entry) {
+                        //已经删除的主题，不放回队列
+                        continue;
+                    }
+                    samples[n++] = entry;
+                    if (coldest == null || entry.accessed < coldest.accessed) {
+                        coldest = entry;
+                    }
+                }
+                if (coldest == null) {
+                    return;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (samples[i] != coldest) {
+                        queue.add(samples[i]);
+                    }
+                }
+                if (entries.remove(coldest.topic, coldest)) {
+                    evicted.incrementAndGet();
+                    clear(coldest);
+                }
+            }
+        }
+    }
+
+    /**
+     * 把已经从entries中移除的主题的消息全部移出，减去它们的字节数
+     */
+    private void clear(Entry entry) {
+        if (history > 0) {
+            for (int i = 0; i < history; i++) {
+                Sample sample = entry.ring.getAndSet(i, null);
+                if (sample != null) {
+                    bytes.addAndGet(-sample.payload.length);
+                }
+            }
+            entry.latest.set(null);
+        } else {
+            Sample sample = entry.latest.getAndSet(null);
+            if (sample != null) {
+                bytes.addAndGet(-sample.payload.length);
+            }
+        }
+    }
+
+    /**
+     * 把写到已移除主题上的一条消息移出，已经被clear移出时不再减
+     */
+    private void release(Entry entry, int slot, Sample sample) {
+        boolean removed = history > 0 ? entry.ring.compareAndSet(slot, sample, null)
+                : entry.latest.compareAndSet(sample, null);
+        if (removed) {
+            bytes.addAndGet(-sample.payload.length);
+        }
+    }
+
+    private static final class Entry {
+        final String topic;
+        final AtomicReference<Sample> latest = new AtomicReference<Sample>();
+        final AtomicReferenceArray<Sample> ring;
+        final AtomicLong next = new AtomicLong();
+        //最后一次读写时的写入计数
+        volatile long accessed;
+
+        Entry(String topic, int history, long accessed) {
+            this.topic = topic;
+            this.ring = history == 0 ? null : new AtomicReferenceArray<Sample>(history);
+            this.accessed = accessed;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 端到端延迟测试: 按固定速率发布，测量从发布到订阅端messageArrived的时间
+ * 发送和接收在同一个进程里，payload开头放序号、计划发送时间和实际发送时间(System.nanoTime)。
+ * 发送端被阻塞(窗口占满、连接卡住)时后面的消息会晚发，只按实际发送时间算延迟会漏掉这段排队，
+ * 即coordinated omission；corrected按计划发送时间计算，uncorrected按实际发送时间，两个都输出。
+ * 结果以JSON输出，单位微秒
+ * 用法: LatencyBenchmark [host] [每秒消息数] [秒数] [payload字节数] [qos] [预热秒数] [JSON输出文件]
+ * host为embedded时在本进程启动EmbeddedBroker
+ */
+public class LatencyBenchmark {
+    //payload头: 序号(8) 计划发送时间(8) 实际发送时间(8)
+    private static final int HEADER_LENGTH = 24;
+    //直方图能记录的最大延迟，1分钟
+    private static final long MAX_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+    public static void main(String[] args) throws Exception {
+        String host = EmbeddedBroker.resolve(args.length > 0 ? args[0] : "embedded");
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int size = Math.max(HEADER_LENGTH, args.length > 3 ? Integer.parseInt(args[3]) : 128);
+        int qos = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        int warmup = args.length > 5 ? Integer.parseInt(args[5]) : 2;
+        String output = args.length > 6 ? args[6] : null;
+
+        final long warmupCount = (long) rate * warmup;
+        final long total = warmupCount + (long) rate * seconds;
+        final LatencyHistogram corrected = new LatencyHistogram(MAX_LATENCY);
+        final LatencyHistogram uncorrected = new LatencyHistogram(MAX_LATENCY);
+        final AtomicLong received = new AtomicLong();
+        String topic = Server.TOPIC + "/latency";
+
+        MqttClient subscriber = new MqttClient(host, "bench-latency-sub", new MemoryPersistence());
+        subscriber.setCallback(new MqttCallback() {
+            public void connectionLost(Throwable cause) {
+                cause.printStackTrace();
+            }
+
+            public void messageArrived(String topic, MqttMessage message) {
+                long now = System.nanoTime();
+                ByteBuffer buf = ByteBuffer.wrap(message.getPayload());
+                long seq = buf.getLong();
+                long intended = buf.getLong();
+                long actual = buf.getLong();
+                if (seq >= warmupCount) {
+                    corrected.record(now - intended);
+                    uncorrected.record(now - actual);
+                }
+                received.incrementAndGet();
+            }
+
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        subscriber.connect(options());
+        subscriber.subscribe(topic, qos);
+
+        AsyncPublisher publisher = new AsyncPublisher(
+                new MqttAsyncClient(host, "bench-latency-pub", new MemoryPersistence()),
+                AsyncPublisher.DEFAULT_WINDOW);
+        publisher.connect(options());
+
+        long interval = 1000000000L / rate;
+        long start = System.nanoTime();
+        for (long seq = 0; seq < total; seq++) {
+            long intended = start + seq * interval;
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                //长等待让出CPU，最后一小段自旋，避免park的唤醒误差
+                if (wait > 100000) {
+                    LockSupport.parkNanos(wait - 50000);
+                }
+            }
+            byte[] payload = new byte[size];
+            ByteBuffer.wrap(payload).putLong(seq).putLong(intended).putLong(System.nanoTime());
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(qos);
+            publisher.publish(topic, message);
+        }
+        publisher.flush();
+        long sendNanos = System.nanoTime() - start;
+
+        //最多等10秒没有新消息到达
+        long last = -1;
+        long idleSince = System.nanoTime();
+        while (received.get() < total && System.nanoTime() - idleSince < TimeUnit.SECONDS.toNanos(10)) {
+            long n = received.get();
+            if (n != last) {
+                last = n;
+                idleSince = System.nanoTime();
+            }
+            Thread.sleep(10);
+        }
+        publisher.close();
+        subscriber.disconnect();
+        subscriber.close();
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"host\":\"").append(host).append('"')
+                .append(",\"rate\":").append(rate)
+                .append(",\"achievedRate\":").append(String.format(Locale.ROOT, "%.1f", total * 1e9 / sendNanos))
+                .append(",\"seconds\":").append(seconds)
+                .append(",\"warmupSeconds\":").append(warmup)
+                .append(",\"size\":").append(size)
+                .append(",\"qos\":").append(qos)
+                .append(",\"sent\":").append(total)
+                .append(",\"received\":").append(received.get())
+                .append(",\"unit\":\"us\"")
+                .append(",\"corrected\":");
+        appendHistogram(json, corrected);
+        json.append(",\"uncorrected\":");
+        appendHistogram(json, uncorrected);
+        json.append('}');
+        System.out.println(json);
+        if (output != null) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8);
+            try {
+                writer.write(json.toString());
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private static void appendHistogram(StringBuilder json, LatencyHistogram h) {
+        json.append("{\"count\":").append(h.getCount())
+                .append(",\"min\":").append(micros(h.getMin()))
+                .append(",\"mean\":").append(micros((long) h.getMean()))
+                .append(",\"p50\":").append(micros(h.percentile(50)))
+                .append(",\"p90\":").append(micros(h.percentile(90)))
+                .append(",\"p99\":").append(micros(h.percentile(99)))
+                .append(",\"p999\":").append(micros(h.percentile(99.9)))
+                .append(",\"p9999\":").append(micros(h.percentile(99.99)))
+                .append(",\"max\":").append(micros(h.getMax()))
+                .append('}');
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+
+    private static MqttConnectOptions options() {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setConnectionTimeout(10);
+        options.setKeepAliveInterval(20);
+        return options;
+    }
+}
@@ -0,0 +1,153 @@
+package com.homework;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * HDR风格的对数-线性直方图，记录非负的long值(一般是纳秒)
+ * 第0段[0, 2^S)每个值一个槽，之后第k段[2^(S+k-1), 2^(S+k))分成2^(S-1)个宽度为2^k的槽，
+ * 相对误差不超过2^(1-S)，S=11时约0.1%。槽数只和最大值的位数有关，记录只是一次数组自增，
+ * 多个线程可以同时记录，不加锁
+ */
+public class LatencyHistogram {
+    //每段的精度位数
+    private static final int SUB_BITS = 11;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+
+    private final long highestTrackableValue;
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 构造函数
+     * @param highestTrackableValue 能区分的最大值，更大的值按这个值记录
+     */
+    public LatencyHistogram(long highestTrackableValue) {
+        if (highestTrackableValue < SUB_COUNT) {
+            highestTrackableValue = SUB_COUNT;
+        }
+        this.highestTrackableValue = highestTrackableValue;
+        this.counts = new AtomicLongArray(index(highestTrackableValue) + 1);
+    }
+
+    /**
+     * 记录一个值，负数按0记录
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > highestTrackableValue) {
+            value = highestTrackableValue;
+        }
+        counts.incrementAndGet(index(value));
+        totalCount.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            //重试
+        }
+        while (value < (m = min.get()) && !min.compareAndSet(m, value)) {
+            //重试
+        }
+    }
+
+    /**
+     * 把另一个直方图的记录加进来，两者的最大值必须相同
+     */
+    public void add(LatencyHistogram other) {
+        if (other.counts.length() != counts.length()) {
+            throw new IllegalArgumentException("histograms have different ranges");
+        }
+        for (int i = 0; i < counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        sum.addAndGet(other.sum.get());
+        long m;
+        long v = other.max.get();
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+            //重试
+        }
+        v = other.min.get();
+        while (v < (m = min.get()) && !min.compareAndSet(m, v)) {
+            //重试
+        }
+    }
+
+    /**
+     * @param percentile 百分位，0到100
+     * @return 该百分位的值(所在槽的上界)，没有记录时返回0
+     */
+    public long percentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMin() {
+        return totalCount.get() == 0 ? 0 : min.get();
+    }
+
+    public double getMean() {
+        long total = totalCount.get();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    /**
+     * 清空所有记录，和record并发时可能丢失少量记录
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int k = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return SUB_COUNT + (k - 1) * HALF_COUNT + (int) ((value >>> k) - HALF_COUNT);
+    }
+
+    /**
+     * @return 第index个槽能表示的最大值
+     */
+    static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int k = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((sub + 1) << k) - 1;
+    }
+}
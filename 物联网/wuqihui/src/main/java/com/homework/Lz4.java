@@ -0,0 +1,194 @@
+package com.homework;
+
+import java.util.Arrays;
+
+/**
+ * 纯Java实现的LZ4块格式压缩和解压
+ * 压缩用单次哈希查找的贪心匹配，输出与标准LZ4块格式兼容，哈希表由调用者传入以便复用
+ */
+public final class Lz4 {
+    //哈希表大小，2的HASH_LOG次方
+    public static final int HASH_LOG = 14;
+    public static final int HASH_TABLE_SIZE = 1 << HASH_LOG;
+
+    private static final int MIN_MATCH = 4;
+    //最后一个匹配必须在结尾12个字节之前开始，最后5个字节必须是字面量
+    private static final int MF_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+
+    private Lz4() {
+    }
+
+    /**
+     * @return 压缩srcLen个字节时输出可能的最大长度
+     */
+    public static int maxCompressedLength(int srcLen) {
+        return srcLen + srcLen / 255 + 16;
+    }
+
+    /**
+     * 压缩
+     * @param src 原始数据
+     * @param srcOff 起始位置
+     * @param srcLen 长度
+     * @param dst 输出，至少maxCompressedLength(srcLen)个字节
+     * @param dstOff 输出的起始位置
+     * @param table 长度为HASH_TABLE_SIZE的哈希表
+     * @return 压缩后的长度
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int[] table) {
+        int op = dstOff;
+        int anchor = srcOff;
+        int srcEnd = srcOff + srcLen;
+        if (srcLen >= MF_LIMIT + 1) {
+            Arrays.fill(table, -1);
+            int ip = srcOff;
+            int matchSearchLimit = srcEnd - MF_LIMIT;
+            int matchExtendLimit = srcEnd - LAST_LITERALS;
+            while (ip < matchSearchLimit) {
+                int seq = readInt(src, ip);
+                int h = hash(seq);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                    ip++;
+                    continue;
+                }
+                //向前扩展匹配
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLen = MIN_MATCH;
+                while (ip + matchLen < matchExtendLimit && src[ip + matchLen] == src[ref + matchLen]) {
+                    matchLen++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen, dst, op);
+                ip += matchLen;
+                anchor = ip;
+                if (ip - 2 >= srcOff && ip < matchSearchLimit) {
+                    table[hash(readInt(src, ip - 2))] = ip - 2;
+                }
+            }
+        }
+        //剩下的全部作为字面量
+        int literals = srcEnd - anchor;
+        op = writeLength(dst, op, literals, 0);
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOff;
+    }
+
+    /**
+     * 解压
+     * @param src 压缩数据
+     * @param srcOff 起始位置
+     * @param srcLen 长度
+     * @param dst 输出
+     * @param dstOff 输出的起始位置
+     * @param dstLen 解压后的长度
+     * @throws IllegalArgumentException 数据损坏
+     */
+    public static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+        int ip = srcOff;
+        int srcEnd = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+        while (ip < srcEnd) {
+            int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    check(ip < srcEnd);
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            check(literals <= srcEnd - ip && literals <= dstEnd - op);
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == srcEnd) {
+                break;
+            }
+            check(ip + 2 <= srcEnd);
+            int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+            ip += 2;
+            check(offset > 0 && offset <= op - dstOff);
+            int matchLen = token & 0x0F;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    check(ip < srcEnd);
+                    b = src[ip++] & 0xFF;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+            check(matchLen <= dstEnd - op);
+            //匹配可能和输出重叠，只能逐字节复制
+            int from = op - offset;
+            for (int i = 0; i < matchLen; i++) {
+                dst[op + i] = dst[from + i];
+            }
+            op += matchLen;
+        }
+        check(op == dstEnd);
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchLen,
+                                     byte[] dst, int op) {
+        int tokenPos = op;
+        op = writeLength(dst, op, literals, 0);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        int ml = matchLen - MIN_MATCH;
+        if (ml >= 15) {
+            dst[tokenPos] |= 15;
+            ml -= 15;
+            while (ml >= 255) {
+                dst[op++] = (byte) 255;
+                ml -= 255;
+            }
+            dst[op++] = (byte) ml;
+        } else {
+            dst[tokenPos] |= (byte) ml;
+        }
+        return op;
+    }
+
+    /**
+     * 写token的高4位和字面量长度的扩展字节
+     */
+    private static int writeLength(byte[] dst, int op, int literals, int low) {
+        if (literals >= 15) {
+            dst[op++] = (byte) (0xF0 | low);
+            int len = literals - 15;
+            while (len >= 255) {
+                dst[op++] = (byte) 255;
+                len -= 255;
+            }
+            dst[op++] = (byte) len;
+        } else {
+            dst[op++] = (byte) ((literals << 4) | low);
+        }
+        return op;
+    }
+
+    private static int readInt(byte[] buf, int i) {
+        return (buf[i] & 0xFF) | ((buf[i + 1] & 0xFF) << 8) | ((buf[i + 2] & 0xFF) << 16) | ((buf[i + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static void check(boolean condition) {
+        if (!condition) {
+            throw new IllegalArgumentException("corrupted LZ4 block");
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射追加日志的持久化，用来代替MemoryPersistence
+ * 所有put/remove都追加到当前映射的段文件中，内存里只保留key到记录位置的索引，
+ * 不像MqttDefaultFilePersistence那样每条消息建删一个文件；死记录超过活记录时整体压缩
+ * 默认只写入映射区域(页缓存)，进程崩溃不丢数据；syncOnWrite为true时每次写都force，机器掉电也不丢
+ *
+ * 记录格式: length(4) crc32(4) type(1) keyLength(2) key headerLength(4) header payload
+ * length为0表示段文件的有效内容到此为止，crc不对的尾部记录视为写了一半，恢复时丢弃
+ *
+ * 不再需要的段先解除映射再删除(Windows上映射着的文件删不掉)，删除失败的段按编号顺序留到下次put/remove再试，
+ * 只要比它新的段还在，重放它得到的结果不变
+ */
+public class MappedFilePersistence implements MqttClientPersistence {
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    //length和crc
+    private static final int RECORD_PREFIX = 8;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File baseDir;
+    private final int segmentSize;
+    private final boolean syncOnWrite;
+
+    private File dir;
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    private final List<Segment> segments = new ArrayList<Segment>();
+    //已经关闭、等待删除的段，编号从小到大
+    private final List<Segment> retired = new ArrayList<Segment>();
+    private Segment active;
+    private long liveBytes;
+    private long deadBytes;
+
+    /**
+     * 构造函数
+     * @param baseDir 持久化根目录，每个clientId和服务器地址各占一个子目录
+     */
+    public MappedFilePersistence(String baseDir) {
+        this(baseDir, DEFAULT_SEGMENT_SIZE, false);
+    }
+
+    /**
+     * 构造函数
+     * @param baseDir 持久化根目录
+     * @param segmentSize 每个段文件映射的大小
+     * @param syncOnWrite 是否每次写入都强制刷盘
+     */
+    public MappedFilePersistence(String baseDir, int segmentSize, boolean syncOnWrite) {
+        this.baseDir = new File(baseDir);
+        this.segmentSize = segmentSize;
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        dir = new File(baseDir, sanitize(clientId + "-" + serverURI));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new MqttPersistenceException(new IOException("cannot create " + dir));
+        }
+        try {
+            File[] files = dir.listFiles(new FilenameFilter() {
+                public boolean accept(File d, String name) {
+                    return name.endsWith(SEGMENT_SUFFIX);
+                }
+            });
+            Arrays.sort(files);
+            for (File file : files) {
+                Segment segment = new Segment(file, (int) Math.max(file.length(), segmentSize));
+                segment.replay();
+                segments.add(segment);
+            }
+            if (segments.isEmpty()) {
+                roll(0);
+            } else {
+                active = segments.get(segments.size() - 1);
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    public synchronized void close() throws MqttPersistenceException {
+        checkOpen();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        deleteRetired();
+        retired.clear();
+        index.clear();
+        active = null;
+        liveBytes = 0;
+        deadBytes = 0;
+    }
+
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        byte[] keyBytes = key.getBytes(UTF8);
+        int headerLength = persistable.getHeaderLength();
+        int payloadLength = persistable.getPayloadBytes() == null ? 0 : persistable.getPayloadLength();
+        int body = 1 + 2 + keyBytes.length + 4 + headerLength + payloadLength;
+        Segment segment = reserve(RECORD_PREFIX + body);
+        int position = segment.position;
+        MappedByteBuffer map = segment.map;
+        map.position(position + RECORD_PREFIX);
+        map.put(PUT).putShort((short) keyBytes.length).put(keyBytes).putInt(headerLength);
+        map.put(persistable.getHeaderBytes(), persistable.getHeaderOffset(), headerLength);
+        if (payloadLength > 0) {
+            map.put(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payloadLength);
+        }
+        segment.commit(position, body);
+        segment.live++;
+        Location old = index.put(key, new Location(segment, position, RECORD_PREFIX + body));
+        liveBytes += RECORD_PREFIX + body;
+        if (old != null) {
+            kill(old);
+        }
+        maybeCompact();
+    }
+
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        Location location = index.get(key);
+        return location == null ? null : location.read();
+    }
+
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        Location old = index.remove(key);
+        if (old == null) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(UTF8);
+        int body = 1 + 2 + keyBytes.length;
+        Segment segment = reserve(RECORD_PREFIX + body);
+        int position = segment.position;
+        segment.map.position(position + RECORD_PREFIX);
+        segment.map.put(REMOVE).putShort((short) keyBytes.length).put(keyBytes);
+        segment.commit(position, body);
+        //删除记录本身也是死记录
+        deadBytes += RECORD_PREFIX + body;
+        kill(old);
+        maybeCompact();
+    }
+
+    public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<String>(index.keySet()));
+    }
+
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        //逐个写删除记录，旧段没删掉时重放也不会把清掉的key找回来
+        for (String key : new ArrayList<String>(index.keySet())) {
+            remove(key);
+        }
+        try {
+            rewrite();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return index.containsKey(key);
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (active == null) {
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_CLOSED);
+        }
+    }
+
+    private void kill(Location location) {
+        liveBytes -= location.length;
+        deadBytes += location.length;
+        location.segment.live--;
+    }
+
+    /**
+     * 当前段放不下时换一个新段
+     */
+    private Segment reserve(int length) throws MqttPersistenceException {
+        //尾部要留出4个字节的0作为结束标记
+        if (active.position + length + 4 > active.capacity) {
+            try {
+                roll(length + 4);
+            } catch (IOException e) {
+                throw new MqttPersistenceException(e);
+            }
+        }
+        return active;
+    }
+
+    private void roll(int minSize) throws IOException {
+        int number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number + 1;
+        File file = new File(dir, String.format("%010d%s", number, SEGMENT_SUFFIX));
+        active = new Segment(file, Math.max(segmentSize, minSize));
+        segments.add(active);
+    }
+
+    /**
+     * 最旧的段里已经没有活记录时直接删除(它的删除记录对应的PUT只可能在它自己或更旧的段里)，
+     * 死记录仍比活记录多并且超过一个段时，把活记录重写到新段中
+     */
+    private void maybeCompact() throws MqttPersistenceException {
+        while (segments.size() > 1 && segments.get(0).live == 0) {
+            Segment head = segments.remove(0);
+            deadBytes -= head.position;
+            retire(head);
+        }
+        deleteRetired();
+        if (deadBytes > liveBytes && deadBytes > segmentSize) {
+            try {
+                rewrite();
+            } catch (IOException e) {
+                throw new MqttPersistenceException(e);
+            }
+        }
+    }
+
+    /**
+     * 活记录先写入编号更大的新段，再删除旧段，中途崩溃时重放新旧段得到的结果相同
+     */
+    private void rewrite() throws IOException {
+        List<Segment> old = new ArrayList<Segment>(segments);
+        Map<String, MqttPersistable> live = new HashMap<String, MqttPersistable>();
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            live.put(entry.getKey(), entry.getValue().read());
+        }
+        index.clear();
+        liveBytes = 0;
+        deadBytes = 0;
+        roll(0);
+        for (Map.Entry<String, MqttPersistable> entry : live.entrySet()) {
+            try {
+                put(entry.getKey(), entry.getValue());
+            } catch (MqttPersistenceException e) {
+                throw new IOException(e);
+            }
+        }
+        for (Segment segment : old) {
+            segments.remove(segment);
+            retire(segment);
+        }
+        deleteRetired();
+    }
+
+    private void retire(Segment segment) {
+        segment.close();
+        retired.add(segment);
+    }
+
+    /**
+     * 按编号从小到大删除等待删除的段，删不掉时停下，保证留下的总是比现有段旧的连续几个段
+     */
+    private void deleteRetired() {
+        while (!retired.isEmpty()) {
+            Segment segment = retired.get(0);
+            if (segment.file.exists() && !segment.file.delete()) {
+                System.out.println("cannot delete " + segment.file + ", will retry");
+                return;
+            }
+            retired.remove(0);
+        }
+    }
+
+    /**
+     * 立即解除映射，不等GC回收MappedByteBuffer，之后不能再访问这个buffer
+     */
+    private static void unmap(MappedByteBuffer map) {
+        try {
+            //Java 9以后
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), map);
+            return;
+        } catch (NoSuchMethodException e) {
+            //Java 8，走下面的DirectBuffer.cleaner
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Method cleanerMethod = map.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(map);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String sanitize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || c == '-' || c == '.' ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 一个映射到内存的段文件
+     */
+    private class Segment {
+        final File file;
+        final int number;
+        final int capacity;
+        final RandomAccessFile raf;
+        final MappedByteBuffer map;
+        //下一条记录的写入位置
+        int position;
+        //段中仍被索引引用的记录数
+        int live;
+
+        Segment(File file, int capacity) throws IOException {
+            this.file = file;
+            this.number = Integer.parseInt(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+            this.capacity = capacity;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        /**
+         * 先写记录体，最后写length，length不为0的记录才算写完
+         */
+        void commit(int start, int body) {
+            map.putInt(start + 4, crc(start + RECORD_PREFIX, body));
+            map.putInt(start + RECORD_PREFIX + body, 0);
+            map.putInt(start, body);
+            position = start + RECORD_PREFIX + body;
+            if (syncOnWrite) {
+                map.force();
+            }
+        }
+
+        int crc(int start, int length) {
+            ByteBuffer range = map.duplicate();
+            range.limit(start + length).position(start);
+            CRC32 crc32 = new CRC32();
+            crc32.update(range);
+            return (int) crc32.getValue();
+        }
+
+        /**
+         * 打开时重放段中的记录重建索引，遇到结束标记或写了一半的记录就停下
+         */
+        void replay() {
+            int pos = 0;
+            while (pos + RECORD_PREFIX <= capacity) {
+                int body = map.getInt(pos);
+                if (body <= 0 || pos + RECORD_PREFIX + body > capacity
+                        || map.getInt(pos + 4) != crc(pos + RECORD_PREFIX, body)) {
+                    break;
+                }
+                int p = pos + RECORD_PREFIX;
+                byte type = map.get(p);
+                byte[] keyBytes = new byte[map.getShort(p + 1) & 0xFFFF];
+                map.position(p + 3);
+                map.get(keyBytes);
+                String key = new String(keyBytes, UTF8);
+                Location old;
+                if (type == PUT) {
+                    live++;
+                    liveBytes += RECORD_PREFIX + body;
+                    old = index.put(key, new Location(this, pos, RECORD_PREFIX + body));
+                } else {
+                    deadBytes += RECORD_PREFIX + body;
+                    old = index.remove(key);
+                }
+                if (old != null) {
+                    kill(old);
+                }
+                pos += RECORD_PREFIX + body;
+            }
+            //清掉写了一半的尾部，后面从这里接着追加
+            for (int i = pos; i < Math.min(capacity, pos + RECORD_PREFIX + 4); i++) {
+                map.put(i, (byte) 0);
+            }
+            position = pos;
+        }
+
+        void close() {
+            map.force();
+            unmap(map);
+            try {
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 索引项: PUT记录在哪个段的什么位置
+     */
+    private static class Location {
+        final Segment segment;
+        final int position;
+        final int length;
+
+        Location(Segment segment, int position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+
+        StoredPersistable read() {
+            MappedByteBuffer map = segment.map;
+            int p = position + RECORD_PREFIX + 1;
+            int keyLength = map.getShort(p) & 0xFFFF;
+            p += 2 + keyLength;
+            byte[] header = new byte[map.getInt(p)];
+            p += 4;
+            byte[] payload = new byte[length - (p - position) - header.length];
+            map.position(p);
+            map.get(header);
+            map.get(payload);
+            return new StoredPersistable(header, payload);
+        }
+    }
+
+    /**
+     * 从段文件中读回的数据
+     */
+    private static class StoredPersistable implements MqttPersistable {
+        private final byte[] header;
+        private final byte[] payload;
+
+        StoredPersistable(byte[] header, byte[] payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        public int getHeaderLength() {
+            return header.length;
+        }
+
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        public int getPayloadLength() {
+            return payload.length;
+        }
+
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.homework;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * 给消息加上发布方分配的64位id，接收方据此丢弃QoS1重投的重复消息
+ * magic(1) version(1) id(8) 然后是原来的payload
+ * magic取0xFA，UTF-8文本不会以这个字节开头，所以普通文本消息不会被误认成带id的消息；
+ * 发送方先打包、压缩，最后加id，接收方的顺序相反
+ */
+public final class MessageId {
+    public static final byte MAGIC = (byte) 0xFA;
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 10;
+
+    private MessageId() {
+    }
+
+    /**
+     * @return 随机的起始id，进程每次启动的id段不同，重启后不会和上次发出的id撞上
+     */
+    public static long randomStart() {
+        return new SecureRandom().nextLong();
+    }
+
+    /**
+     * @return 加了id头的payload
+     */
+    public static byte[] stamp(long id, byte[] payload) {
+        byte[] buf = new byte[HEADER_LENGTH + payload.length];
+        buf[0] = MAGIC;
+        buf[1] = VERSION;
+        for (int i = 0; i < 8; i++) {
+            buf[2 + i] = (byte) (id >>> (56 - 8 * i));
+        }
+        System.arraycopy(payload, 0, buf, HEADER_LENGTH, payload.length);
+        return buf;
+    }
+
+    public static boolean isStamped(byte[] payload) {
+        return payload.length >= HEADER_LENGTH && payload[0] == MAGIC && payload[1] == VERSION;
+    }
+
+    /**
+     * @return 带id头的payload中的id
+     */
+    public static long idOf(byte[] payload) {
+        long id = 0;
+        for (int i = 0; i < 8; i++) {
+            id = (id << 8) | (payload[2 + i] & 0xFF);
+        }
+        return id;
+    }
+
+    /**
+     * @return 去掉id头的payload
+     */
+    public static byte[] strip(byte[] payload) {
+        return Arrays.copyOfRange(payload, HEADER_LENGTH, payload.length);
+    }
+}
@@ -0,0 +1,290 @@
+package com.homework;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个进程(Server或Client)的运行指标
+ * 计数器用LongAdder，延迟用LatencyHistogram，记录时都不加锁；在途消息数、队列深度这类当前值
+ * 用Gauge在读取时才计算。所有指标以只读属性的形式通过JMX暴露(com.homework:type=Metrics,name=...)，
+ * 也可以定时把快照和每秒速率打印出来
+ */
+public class Metrics implements DynamicMBean {
+    //延迟直方图能区分的最大值，60秒
+    private static final long MAX_LATENCY = TimeUnit.SECONDS.toNanos(60);
+    //单独统计的主题数上限，更多的主题计入OTHER_TOPIC，防止主题很多时指标无限增长
+    public static final int MAX_TOPICS = 1000;
+    public static final String OTHER_TOPIC = "_other";
+
+    private final String name;
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private final ConcurrentHashMap<String, Boolean> topics = new ConcurrentHashMap<String, Boolean>();
+    private ObjectName objectName;
+    private ScheduledFuture<?> reporter;
+    //上次打印时的计数器值，用来算速率，只在打印线程里访问
+    private Map<String, Long> lastCounters = new TreeMap<String, Long>();
+    private long lastDump = System.nanoTime();
+
+    /**
+     * 读取时计算的当前值
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    /**
+     * 构造函数
+     * @param name 名字，用于JMX的ObjectName和打印
+     */
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 计数器加delta
+     */
+    public void count(String counter, long delta) {
+        LongAdder adder = counters.get(counter);
+        if (adder == null) {
+            LongAdder created = new LongAdder();
+            adder = counters.putIfAbsent(counter, created);
+            if (adder == null) {
+                adder = created;
+            }
+        }
+        adder.add(delta);
+    }
+
+    /**
+     * 记录一条消息，同时计入总数和所属主题
+     * @param direction 方向，比如"published"、"received"
+     * @param topic 主题
+     * @param bytes payload字节数
+     */
+    public void message(String direction, String topic, int bytes) {
+        count(direction + ".messages", 1);
+        count(direction + ".bytes", bytes);
+        String key = topicKey(topic);
+        count("topic." + key + "." + direction + ".messages", 1);
+        count("topic." + key + "." + direction + ".bytes", bytes);
+    }
+
+    /**
+     * @return 名为name的直方图，没有时创建
+     */
+    public LatencyHistogram histogram(String histogram) {
+        LatencyHistogram h = histograms.get(histogram);
+        if (h == null) {
+            LatencyHistogram created = new LatencyHistogram(MAX_LATENCY);
+            h = histograms.putIfAbsent(histogram, created);
+            if (h == null) {
+                h = created;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * 记录一次延迟，单位纳秒
+     */
+    public void record(String histogram, long nanos) {
+        histogram(histogram).record(nanos);
+    }
+
+    /**
+     * 注册一个当前值，同名的会被替换
+     */
+    public void gauge(String gauge, Gauge value) {
+        gauges.put(gauge, value);
+    }
+
+    /**
+     * @return 所有指标的当前值，按名字排序；直方图展开为count、p50、p99、p999、max，单位微秒
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            try {
+                values.put(entry.getKey(), entry.getValue().get());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            String prefix = entry.getKey();
+            values.put(prefix + ".count", h.getCount());
+            values.put(prefix + ".p50Micros", TimeUnit.NANOSECONDS.toMicros(h.percentile(50)));
+            values.put(prefix + ".p99Micros", TimeUnit.NANOSECONDS.toMicros(h.percentile(99)));
+            values.put(prefix + ".p999Micros", TimeUnit.NANOSECONDS.toMicros(h.percentile(99.9)));
+            values.put(prefix + ".maxMicros", TimeUnit.NANOSECONDS.toMicros(h.getMax()));
+        }
+        return values;
+    }
+
+    /**
+     * 打印当前快照，计数器后面附上距上次打印的每秒速率
+     */
+    public synchronized void dump(PrintStream out) {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - lastDump) / 1e9;
+        Map<String, Long> current = new TreeMap<String, Long>();
+        StringBuilder sb = new StringBuilder();
+        sb.append("==== metrics ").append(name).append(" ====\n");
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            String key = entry.getKey();
+            long value = entry.getValue();
+            sb.append(key).append(" = ").append(value);
+            if (counters.containsKey(key)) {
+                current.put(key, value);
+                Long last = lastCounters.get(key);
+                double rate = (value - (last == null ? 0 : last)) / seconds;
+                sb.append(String.format(Locale.ROOT, " (%.1f/s)", rate));
+            }
+            sb.append('\n');
+        }
+        out.print(sb);
+        lastCounters = current;
+        lastDump = now;
+    }
+
+    /**
+     * 每隔periodMillis毫秒打印一次
+     */
+    public synchronized void startReporter(ScheduledExecutorService scheduler, long periodMillis,
+                                           final PrintStream out) {
+        if (reporter != null) {
+            reporter.cancel(false);
+        }
+        reporter = scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                dump(out);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 注册到平台MBeanServer，jconsole等工具可以看到
+     */
+    public synchronized void register() {
+        try {
+            objectName = new ObjectName("com.homework:type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 停止定时打印，从MBeanServer注销
+     */
+    public synchronized void close() {
+        if (reporter != null) {
+            reporter.cancel(false);
+            reporter = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            objectName = null;
+        }
+    }
+
+    private String topicKey(String topic) {
+        if (topics.containsKey(topic)) {
+            return topic;
+        }
+        if (topics.size() >= MAX_TOPICS) {
+            return OTHER_TOPIC;
+        }
+        topics.putIfAbsent(topic, Boolean.TRUE);
+        return topic;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if ("resetHistograms".equals(actionName)) {
+            for (LatencyHistogram h : histograms.values()) {
+                h.reset();
+            }
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    /**
+     * 属性随着新主题和新指标出现而增加，每次都按当前的快照生成
+     */
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Long> values = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String key : values.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(key, "long", key, true, false, false);
+        }
+        MBeanOperationInfo[] operations = {
+                new MBeanOperationInfo("resetHistograms", "清空所有延迟直方图",
+                        new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)
+        };
+        return new MBeanInfo(getClass().getName(), "MQTT metrics " + name, attributes, null, operations, null);
+    }
+}
@@ -0,0 +1,316 @@
+package com.homework;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MQTT 3.1.1报文的编码和解码，EmbeddedBroker和NIO客户端共用
+ * 编码方法返回一个可以直接写入通道的ByteBuffer(已flip)；
+ * 解码先用frameLength判断缓冲区里是否有一个完整的报文，再按类型解析报文体
+ */
+public final class MqttPackets {
+    public static final int CONNECT = 1;
+    public static final int CONNACK = 2;
+    public static final int PUBLISH = 3;
+    public static final int PUBACK = 4;
+    public static final int PUBREC = 5;
+    public static final int PUBREL = 6;
+    public static final int PUBCOMP = 7;
+    public static final int SUBSCRIBE = 8;
+    public static final int SUBACK = 9;
+    public static final int UNSUBSCRIBE = 10;
+    public static final int UNSUBACK = 11;
+    public static final int PINGREQ = 12;
+    public static final int PINGRESP = 13;
+    public static final int DISCONNECT = 14;
+
+    //CONNACK的返回码
+    public static final int ACCEPTED = 0;
+    public static final int REFUSED_PROTOCOL = 1;
+    public static final int REFUSED_IDENTIFIER = 2;
+
+    //SUBACK中表示订阅失败的返回码
+    public static final int SUBSCRIBE_FAILURE = 0x80;
+
+    //剩余长度最多4个字节
+    public static final int MAX_REMAINING_LENGTH = 268435455;
+
+    private MqttPackets() {
+    }
+
+    /**
+     * CONNECT报文的内容
+     */
+    public static final class Connect {
+        public String protocolName;
+        public int protocolLevel;
+        public boolean cleanSession;
+        public int keepAlive;
+        public String clientId;
+        public String willTopic;
+        public byte[] willPayload;
+        public int willQos;
+        public boolean willRetain;
+        public String userName;
+        public byte[] password;
+    }
+
+    /**
+     * PUBLISH报文的内容
+     */
+    public static final class Publish {
+        public String topic;
+        public int qos;
+        public boolean retain;
+        public boolean dup;
+        public int packetId;
+        public byte[] payload;
+    }
+
+    /**
+     * 判断buf中从position开始是否有一个完整的报文，不移动position
+     * @return 完整报文的总字节数，数据还不够时返回-1
+     * @throws IllegalArgumentException 剩余长度编码不合法
+     */
+    public static int frameLength(ByteBuffer buf) {
+        int total = frameSize(buf);
+        return total > 0 && buf.remaining() >= total ? total : -1;
+    }
+
+    /**
+     * 只解析buf中从position开始的固定头，报文体不必已经读到，不移动position
+     * @return 报文的总字节数(固定头加剩余长度)，固定头还不完整时返回-1
+     * @throws IllegalArgumentException 剩余长度编码不合法
+     */
+    public static int frameSize(ByteBuffer buf) {
+        int pos = buf.position() + 1;
+        int multiplier = 1;
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            if (pos >= buf.limit()) {
+                return -1;
+            }
+            int b = buf.get(pos++) & 0xFF;
+            length += (b & 0x7F) * multiplier;
+            if ((b & 0x80) == 0) {
+                return pos - buf.position() + length;
+            }
+            multiplier *= 128;
+        }
+        throw new IllegalArgumentException("malformed remaining length");
+    }
+
+    /**
+     * 跳过固定头，position移到报文体开始处
+     * @return 报文体的长度
+     */
+    public static int skipFixedHeader(ByteBuffer buf) {
+        buf.get();
+        int multiplier = 1;
+        int length = 0;
+        int b;
+        do {
+            b = buf.get() & 0xFF;
+            length += (b & 0x7F) * multiplier;
+            multiplier *= 128;
+        } while ((b & 0x80) != 0);
+        return length;
+    }
+
+    /**
+     * 解析CONNECT报文体
+     */
+    public static Connect readConnect(ByteBuffer body) {
+        Connect c = new Connect();
+        c.protocolName = readString(body);
+        c.protocolLevel = body.get() & 0xFF;
+        int flags = body.get() & 0xFF;
+        c.cleanSession = (flags & 0x02) != 0;
+        c.keepAlive = body.getShort() & 0xFFFF;
+        c.clientId = readString(body);
+        if ((flags & 0x04) != 0) {
+            c.willQos = (flags >> 3) & 0x03;
+            c.willRetain = (flags & 0x20) != 0;
+            c.willTopic = readString(body);
+            c.willPayload = readBytes(body);
+        }
+        if ((flags & 0x80) != 0) {
+            c.userName = readString(body);
+        }
+        if ((flags & 0x40) != 0) {
+            c.password = readBytes(body);
+        }
+        return c;
+    }
+
+    /**
+     * 解析PUBLISH报文体
+     * @param flags 固定头的低4位
+     */
+    public static Publish readPublish(int flags, ByteBuffer body) {
+        Publish p = new Publish();
+        p.dup = (flags & 0x08) != 0;
+        p.qos = (flags >> 1) & 0x03;
+        p.retain = (flags & 0x01) != 0;
+        p.topic = readString(body);
+        if (p.qos > 0) {
+            p.packetId = body.getShort() & 0xFFFF;
+        }
+        p.payload = new byte[body.remaining()];
+        body.get(p.payload);
+        return p;
+    }
+
+    public static ByteBuffer connect(Connect c) {
+        byte[] protocol = utf8(c.protocolName != null ? c.protocolName : "MQTT");
+        byte[] clientId = utf8(c.clientId);
+        byte[] willTopic = c.willTopic != null ? utf8(c.willTopic) : null;
+        byte[] userName = c.userName != null ? utf8(c.userName) : null;
+        int length = 2 + protocol.length + 1 + 1 + 2 + 2 + clientId.length;
+        int flags = c.cleanSession ? 0x02 : 0;
+        if (willTopic != null) {
+            length += 2 + willTopic.length + 2 + c.willPayload.length;
+            flags |= 0x04 | (c.willQos << 3) | (c.willRetain ? 0x20 : 0);
+        }
+        if (userName != null) {
+            length += 2 + userName.length;
+            flags |= 0x80;
+        }
+        if (c.password != null) {
+            length += 2 + c.password.length;
+            flags |= 0x40;
+        }
+        ByteBuffer buf = header(CONNECT << 4, length);
+        putBytes(buf, protocol);
+        buf.put((byte) (c.protocolLevel != 0 ? c.protocolLevel : 4));
+        buf.put((byte) flags);
+        buf.putShort((short) c.keepAlive);
+        putBytes(buf, clientId);
+        if (willTopic != null) {
+            putBytes(buf, willTopic);
+            putBytes(buf, c.willPayload);
+        }
+        if (userName != null) {
+            putBytes(buf, userName);
+        }
+        if (c.password != null) {
+            putBytes(buf, c.password);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public static ByteBuffer connack(boolean sessionPresent, int returnCode) {
+        ByteBuffer buf = header(CONNACK << 4, 2);
+        buf.put((byte) (sessionPresent ? 1 : 0)).put((byte) returnCode);
+        buf.flip();
+        return buf;
+    }
+
+    public static ByteBuffer publish(String topic, int qos, boolean retain, boolean dup, int packetId,
+                                     byte[] payload) {
+        byte[] name = utf8(topic);
+        int length = 2 + name.length + (qos > 0 ? 2 : 0) + payload.length;
+        ByteBuffer buf = header((PUBLISH << 4) | (dup ? 0x08 : 0) | (qos << 1) | (retain ? 1 : 0), length);
+        putBytes(buf, name);
+        if (qos > 0) {
+            buf.putShort((short) packetId);
+        }
+        buf.put(payload);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * PUBACK、PUBREC、PUBREL、PUBCOMP、UNSUBACK这些只带报文id的报文
+     */
+    public static ByteBuffer ack(int type, int packetId) {
+        //PUBREL的固定头标志位必须是0010
+        ByteBuffer buf = header((type << 4) | (type == PUBREL ? 0x02 : 0), 2);
+        buf.putShort((short) packetId);
+        buf.flip();
+        return buf;
+    }
+
+    public static ByteBuffer subscribe(int packetId, String[] filters, int[] qos) {
+        byte[][] names = new byte[filters.length][];
+        int length = 2;
+        for (int i = 0; i < filters.length; i++) {
+            names[i] = utf8(filters[i]);
+            length += 2 + names[i].length + 1;
+        }
+        ByteBuffer buf = header((SUBSCRIBE << 4) | 0x02, length);
+        buf.putShort((short) packetId);
+        for (int i = 0; i < filters.length; i++) {
+            putBytes(buf, names[i]);
+            buf.put((byte) qos[i]);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public static ByteBuffer suback(int packetId, byte[] returnCodes) {
+        ByteBuffer buf = header(SUBACK << 4, 2 + returnCodes.length);
+        buf.putShort((short) packetId).put(returnCodes);
+        buf.flip();
+        return buf;
+    }
+
+    public static ByteBuffer unsubscribe(int packetId, String[] filters) {
+        byte[][] names = new byte[filters.length][];
+        int length = 2;
+        for (int i = 0; i < filters.length; i++) {
+            names[i] = utf8(filters[i]);
+            length += 2 + names[i].length;
+        }
+        ByteBuffer buf = header((UNSUBSCRIBE << 4) | 0x02, length);
+        buf.putShort((short) packetId);
+        for (byte[] name : names) {
+            putBytes(buf, name);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * PINGREQ、PINGRESP、DISCONNECT这些只有固定头的报文
+     */
+    public static ByteBuffer empty(int type) {
+        ByteBuffer buf = header(type << 4, 0);
+        buf.flip();
+        return buf;
+    }
+
+    public static String readString(ByteBuffer buf) {
+        return new String(readBytes(buf), StandardCharsets.UTF_8);
+    }
+
+    public static byte[] readBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer header(int first, int length) {
+        if (length > MAX_REMAINING_LENGTH) {
+            throw new IllegalArgumentException("packet too large: " + length);
+        }
+        int lengthBytes = length < 128 ? 1 : length < 16384 ? 2 : length < 2097152 ? 3 : 4;
+        ByteBuffer buf = ByteBuffer.allocate(1 + lengthBytes + length);
+        buf.put((byte) first);
+        do {
+            int b = length % 128;
+            length /= 128;
+            buf.put((byte) (length > 0 ? b | 0x80 : b));
+        } while (length > 0);
+        return buf;
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] bytes) {
+        buf.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
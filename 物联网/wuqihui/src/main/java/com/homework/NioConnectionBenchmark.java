@@ -0,0 +1,158 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * NioMqttEngine的连接规模测试: 在一个JVM里用少量selector线程打开成千上万个NioMqttClient连接，
+ * 统计建连速度、每个连接的堆内存和线程数，再让每个连接发布若干条消息，统计吞吐量和送达延迟。
+ * FleetSimulator测的是手写的设备状态机，这里测的是应用真正使用的客户端
+ * 用法: NioConnectionBenchmark [host] [连接数] [selector线程数] [每个连接的消息数] [payload字节数] [qos]
+ *       [同时建连的线程数]
+ * host为embedded时在本进程启动EmbeddedBroker，这时的内存统计包括broker一侧；
+ * 大量连接时注意ulimit -n和本机的临时端口范围
+ */
+public class NioConnectionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String host = EmbeddedBroker.resolve(args.length > 0 ? args[0] : "embedded");
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int size = args.length > 4 ? Integer.parseInt(args[4]) : SensorRecord.LENGTH;
+        int qos = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+        int connectors = args.length > 6 ? Integer.parseInt(args[6]) : 64;
+
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapBefore = usedHeap();
+        NioMqttEngine engine = new NioMqttEngine(threads);
+        final NioMqttClient[] clients = new NioMqttClient[connections];
+        final MqttCallback callback = new MqttCallback() {
+            public void connectionLost(Throwable cause) {
+            }
+
+            public void messageArrived(String topic, MqttMessage message) {
+            }
+
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        };
+        for (int i = 0; i < connections; i++) {
+            clients[i] = new NioMqttClient(engine, host, "nio-bench-" + i);
+            clients[i].setCallback(callback);
+        }
+
+        //connect等待CONNACK，用一组线程同时发起
+        final LatencyHistogram connectLatency = new LatencyHistogram(TimeUnit.MINUTES.toNanos(5));
+        final AtomicInteger failed = new AtomicInteger();
+        final MqttConnectOptions options = new MqttConnectOptions();
+        options.setKeepAliveInterval(60);
+        options.setConnectionTimeout(30);
+        ExecutorService connector = Executors.newFixedThreadPool(connectors);
+        final CountDownLatch connectDone = new CountDownLatch(connections);
+        long start = System.nanoTime();
+        for (final NioMqttClient client : clients) {
+            connector.execute(new Runnable() {
+                public void run() {
+                    long begin = System.nanoTime();
+                    try {
+                        client.connect(options);
+                        connectLatency.record(System.nanoTime() - begin);
+                    } catch (MqttException e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        connectDone.countDown();
+                    }
+                }
+            });
+        }
+        connectDone.await();
+        long connectNanos = System.nanoTime() - start;
+        connector.shutdown();
+        connector.awaitTermination(10, TimeUnit.SECONDS);
+        int connected = connections - failed.get();
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.println(String.format("connect: %d/%d clients connected in %.3f s (%.0f connects/s), %d failed",
+                connected, connections, connectNanos / 1e9, connected / (connectNanos / 1e9), failed.get()));
+        System.out.println(String.format("connect latency: p50=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms",
+                connectLatency.percentile(50) / 1e6, connectLatency.percentile(99) / 1e6,
+                connectLatency.percentile(99.9) / 1e6, connectLatency.getMax() / 1e6));
+        if (connected > 0) {
+            System.out.println(String.format("memory: %.1f KB heap per connection, %d selector threads for %d clients",
+                    (heapAfter - heapBefore) / 1024.0 / connected, threadsAfter - threadsBefore, connections));
+        }
+
+        //每个连接轮流发一条，共messages轮，在途窗口由每个客户端的maxInflight限制
+        final LatencyHistogram deliveryLatency = new LatencyHistogram(TimeUnit.MINUTES.toNanos(5));
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong publishFailed = new AtomicLong();
+        long total = (long) connected * messages;
+        final CountDownLatch publishDone = new CountDownLatch((int) Math.min(Integer.MAX_VALUE, total));
+        byte[] payload = new byte[Math.max(SensorRecord.LENGTH, size)];
+        start = System.nanoTime();
+        for (int round = 0; round < messages; round++) {
+            for (int i = 0; i < connections; i++) {
+                if (!clients[i].isConnected()) {
+                    continue;
+                }
+                MqttMessage message = new MqttMessage(payload);
+                message.setQos(qos);
+                final long begin = System.nanoTime();
+                CompletableFuture<IMqttDeliveryToken> future;
+                try {
+                    future = clients[i].publish(Server.TOPIC + "/nio/" + i, message);
+                } catch (MqttException e) {
+                    publishFailed.incrementAndGet();
+                    publishDone.countDown();
+                    continue;
+                }
+                future.whenComplete(new BiConsumer<IMqttDeliveryToken, Throwable>() {
+                    public void accept(IMqttDeliveryToken token, Throwable failure) {
+                        if (failure == null) {
+                            delivered.incrementAndGet();
+                            deliveryLatency.record(System.nanoTime() - begin);
+                        } else {
+                            publishFailed.incrementAndGet();
+                        }
+                        publishDone.countDown();
+                    }
+                });
+            }
+        }
+        publishDone.await(5, TimeUnit.MINUTES);
+        long publishNanos = System.nanoTime() - start;
+        System.out.println(String.format("publish: %d msgs (qos %d, %d bytes) in %.3f s, %.0f msg/s, %d failed",
+                delivered.get(), qos, payload.length, publishNanos / 1e9, delivered.get() / (publishNanos / 1e9),
+                publishFailed.get()));
+        System.out.println(String.format("delivery latency: p50=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms",
+                deliveryLatency.percentile(50) / 1e6, deliveryLatency.percentile(99) / 1e6,
+                deliveryLatency.percentile(99.9) / 1e6, deliveryLatency.getMax() / 1e6));
+
+        for (NioMqttClient client : clients) {
+            client.close();
+        }
+        engine.close();
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,743 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 运行在NioMqttEngine上的MQTT客户端，接口和Paho的MqttClient相近:
+ * connect(MqttConnectOptions)、subscribe、publish、setCallback(MqttCallback)，
+ * 实现了Publisher，可以直接放在BatchingPublisher、CompressingPublisher下面。
+ * 回调在selector线程上执行，不能阻塞，耗时的处理应该像Client那样包一层DispatchingCallback；
+ * messageArrived返回后才确认QoS1/QoS2消息。
+ * 只支持tcp://，在途消息只保存在内存中，连接断开时未完成的发布以REASON_CODE_CONNECTION_LOST失败
+ */
+public class NioMqttClient implements Publisher {
+    //同时发送的最大缓冲区数
+    private static final int MAX_GATHER = 64;
+
+    private final NioMqttEngine engine;
+    private final NioMqttEngine.Loop loop;
+    private final String serverURI;
+    private final InetSocketAddress address;
+    private final String clientId;
+    private volatile MqttCallback callback;
+
+    private volatile boolean connected;
+    private Semaphore window = new Semaphore(MqttConnectOptions.MAX_INFLIGHT_DEFAULT);
+    private final AtomicInteger lastId = new AtomicInteger();
+    //等待确认的发布、订阅和取消订阅，按报文id
+    private final ConcurrentHashMap<Integer, Token> pending = new ConcurrentHashMap<Integer, Token>();
+    private volatile Token connectToken;
+    private volatile Token disconnectToken;
+
+    //下面的字段只在selector线程里访问
+    private SocketChannel channel;
+    private SelectionKey key;
+    //报文体还没读完的报文，按整个报文的长度分配，后面的数据直接读进去
+    private ByteBuffer partial;
+    //上次读到的不完整的固定头，最多4个字节，下次读之前放到读缓冲区开头
+    private final ByteBuffer header = ByteBuffer.allocate(5);
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final Set<Integer> incomingQos2 = new HashSet<Integer>();
+    private long keepAliveMillis;
+    private long lastSend;
+    private long pingSentAt;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushScheduled.set(false);
+            if (channel == null) {
+                //发送线程检查连接状态之后连接断开了: lost已经清理过pending，之后登记的token只能在这里失败
+                failPending(new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+                outbound.clear();
+                return;
+            }
+            flush();
+        }
+    };
+
+    /**
+     * 构造函数
+     * @param engine 所属的引擎
+     * @param serverURI 服务器地址，tcp://host:port
+     * @param clientId 客户端id
+     */
+    public NioMqttClient(NioMqttEngine engine, String serverURI, String clientId) {
+        URI uri = URI.create(serverURI);
+        if (!"tcp".equals(uri.getScheme())) {
+            throw new IllegalArgumentException("only tcp:// is supported: " + serverURI);
+        }
+        this.engine = engine;
+        this.loop = engine.nextLoop();
+        this.serverURI = serverURI;
+        this.address = new InetSocketAddress(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 1883);
+        this.clientId = clientId;
+    }
+
+    public void setCallback(MqttCallback callback) {
+        this.callback = callback;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getServerURI() {
+        return serverURI;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * 连接服务器，等待CONNACK或超时
+     * @param options 连接设置，不支持SSL和多个服务器地址
+     * @throws MqttException
+     */
+    public void connect(MqttConnectOptions options) throws MqttException {
+        if (connected || connectToken != null) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_CONNECTED);
+        }
+        final MqttPackets.Connect c = new MqttPackets.Connect();
+        if (options.getMqttVersion() == MqttConnectOptions.MQTT_VERSION_3_1) {
+            c.protocolName = "MQIsdp";
+            c.protocolLevel = 3;
+        }
+        c.clientId = clientId;
+        c.cleanSession = options.isCleanSession();
+        c.keepAlive = options.getKeepAliveInterval();
+        c.userName = options.getUserName();
+        if (options.getPassword() != null) {
+            c.password = new String(options.getPassword()).getBytes(StandardCharsets.UTF_8);
+        }
+        if (options.getWillDestination() != null) {
+            MqttMessage will = options.getWillMessage();
+            c.willTopic = options.getWillDestination();
+            c.willPayload = will.getPayload();
+            c.willQos = will.getQos();
+            c.willRetain = will.isRetained();
+        }
+        window = new Semaphore(options.getMaxInflight());
+        final Token token = new Token(null, null);
+        connectToken = token;
+        loop.execute(new Runnable() {
+            public void run() {
+                open(c);
+            }
+        });
+        try {
+            token.waitForCompletion(options.getConnectionTimeout() > 0
+                    ? TimeUnit.SECONDS.toMillis(options.getConnectionTimeout()) : -1);
+        } catch (MqttException e) {
+            connectToken = null;
+            loop.execute(new Runnable() {
+                public void run() {
+                    closeChannel();
+                }
+            });
+            throw e;
+        }
+    }
+
+    /**
+     * 订阅并等待SUBACK
+     * @throws MqttException 服务器拒绝订阅时原因码为REASON_CODE_SUBSCRIBE_FAILED
+     */
+    public void subscribe(String[] topicFilters, int[] qos) throws MqttException {
+        checkConnected();
+        Token token = new Token(topicFilters, null);
+        int id = register(token);
+        enqueue(MqttPackets.subscribe(id, topicFilters, qos));
+        token.waitForCompletion();
+    }
+
+    public void subscribe(String topicFilter, int qos) throws MqttException {
+        subscribe(new String[] {topicFilter}, new int[] {qos});
+    }
+
+    /**
+     * 取消订阅并等待UNSUBACK
+     * @throws MqttException
+     */
+    public void unsubscribe(String[] topicFilters) throws MqttException {
+        checkConnected();
+        Token token = new Token(topicFilters, null);
+        int id = register(token);
+        enqueue(MqttPackets.unsubscribe(id, topicFilters));
+        token.waitForCompletion();
+    }
+
+    public void unsubscribe(String topicFilter) throws MqttException {
+        unsubscribe(new String[] {topicFilter});
+    }
+
+    /**
+     * 异步发布，在途的QoS1/QoS2消息达到maxInflight时阻塞
+     * QoS0的消息放进发送队列就算完成
+     */
+    public CompletableFuture<IMqttDeliveryToken> publish(String topic, MqttMessage message)
+            throws MqttException, InterruptedException {
+        checkConnected();
+        Token token = new Token(new String[] {topic}, message);
+        if (message.getQos() == 0) {
+            enqueue(MqttPackets.publish(topic, 0, message.isRetained(), false, 0, message.getPayload()));
+            token.complete(null);
+            return token.future;
+        }
+        Semaphore w = window;
+        w.acquire();
+        token.window = w;
+        int id;
+        try {
+            id = register(token);
+        } catch (MqttException e) {
+            w.release();
+            throw e;
+        }
+        enqueue(MqttPackets.publish(topic, message.getQos(), message.isRetained(), false, id,
+                message.getPayload()));
+        return token.future;
+    }
+
+    /**
+     * 发送DISCONNECT并关闭连接，不会触发connectionLost
+     * @throws MqttException
+     */
+    public void disconnect() throws MqttException {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        Token token = new Token(null, null);
+        //DISCONNECT必须在设置disconnectToken之前入队，flush看到token时它一定已经在队列里
+        outbound.add(MqttPackets.empty(MqttPackets.DISCONNECT));
+        disconnectToken = token;
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+        token.waitForCompletion(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    /**
+     * 断开连接，引擎仍然可以被其他客户端使用
+     */
+    public void close() {
+        loop.execute(new Runnable() {
+            public void run() {
+                lost(new IOException("client closed"));
+            }
+        });
+    }
+
+    private void checkConnected() throws MqttException {
+        if (!connected) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        }
+    }
+
+    /**
+     * 分配报文id并登记token
+     */
+    private int register(Token token) throws MqttException {
+        for (int i = 0; i < 65535; i++) {
+            int id = lastId.incrementAndGet() & 0xFFFF;
+            if (id != 0 && pending.putIfAbsent(id, token) == null) {
+                token.messageId = id;
+                return id;
+            }
+        }
+        throw new MqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+    }
+
+    private void enqueue(ByteBuffer buf) {
+        outbound.add(buf);
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    private void open(MqttPackets.Connect c) {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(loop.selector, 0, this);
+            loop.attach(this);
+            keepAliveMillis = c.keepAlive * 1000L;
+            //上一个连接断开后才入队的报文和登记的token属于旧连接，不能在新连接上发出去
+            failPending(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+            outbound.clear();
+            //CONNECT先放进队列，连上之后第一个发出去
+            outbound.add(MqttPackets.connect(c));
+            if (channel.connect(address)) {
+                finishConnect();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    void finishConnect() {
+        try {
+            if (channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                flush();
+            }
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    /**
+     * 读取并处理报文。固定头读全了但报文体没读完的报文，按它的总长度从池里取一个缓冲区，
+     * 已经读到的部分只拷贝这一次，之后的数据直接读进这个缓冲区，大报文也不会反复拼接
+     * @param shared selector线程共用的读缓冲区
+     */
+    void read(ByteBuffer shared) {
+        try {
+            if (partial != null) {
+                if (channel.read(partial) < 0) {
+                    lost(new EOFException("connection closed by server"));
+                    return;
+                }
+                if (partial.hasRemaining()) {
+                    return;
+                }
+                ByteBuffer frame = partial;
+                partial = null;
+                frame.flip();
+                handle(frame);
+                engine.pool.release(frame);
+                if (channel == null) {
+                    return;
+                }
+            }
+            shared.clear();
+            header.flip();
+            shared.put(header);
+            header.clear();
+            int n = channel.read(shared);
+            if (n < 0) {
+                lost(new EOFException("connection closed by server"));
+                return;
+            }
+            shared.flip();
+            int length;
+            while (channel != null && (length = MqttPackets.frameLength(shared)) > 0) {
+                ByteBuffer frame = shared.slice();
+                frame.limit(length);
+                shared.position(shared.position() + length);
+                handle(frame);
+            }
+            if (channel == null || !shared.hasRemaining()) {
+                return;
+            }
+            int total = MqttPackets.frameSize(shared);
+            if (total < 0) {
+                header.put(shared);
+                return;
+            }
+            partial = engine.pool.acquire(total);
+            partial.limit(total);
+            partial.put(shared);
+        } catch (IOException e) {
+            lost(e);
+        } catch (RuntimeException e) {
+            lost(e);
+        }
+    }
+
+    private void handle(ByteBuffer frame) {
+        int first = frame.get(frame.position()) & 0xFF;
+        int type = first >>> 4;
+        MqttPackets.skipFixedHeader(frame);
+        switch (type) {
+            case MqttPackets.CONNACK: {
+                boolean sessionPresent = (frame.get() & 0x01) != 0;
+                int rc = frame.get() & 0xFF;
+                Token token = connectToken;
+                connectToken = null;
+                if (rc != MqttPackets.ACCEPTED) {
+                    closeChannel();
+                    if (token != null) {
+                        token.complete(new MqttException(rc));
+                    }
+                    return;
+                }
+                connected = true;
+                if (token != null) {
+                    token.sessionPresent = sessionPresent;
+                    token.complete(null);
+                }
+                break;
+            }
+            case MqttPackets.PUBLISH:
+                onPublish(MqttPackets.readPublish(first & 0x0F, frame));
+                break;
+            case MqttPackets.PUBACK:
+            case MqttPackets.PUBCOMP:
+                delivered(frame.getShort() & 0xFFFF);
+                break;
+            case MqttPackets.PUBREC:
+                send(MqttPackets.ack(MqttPackets.PUBREL, frame.getShort() & 0xFFFF));
+                break;
+            case MqttPackets.PUBREL: {
+                int id = frame.getShort() & 0xFFFF;
+                incomingQos2.remove(id);
+                send(MqttPackets.ack(MqttPackets.PUBCOMP, id));
+                break;
+            }
+            case MqttPackets.SUBACK: {
+                Token token = pending.remove(frame.getShort() & 0xFFFF);
+                if (token == null) {
+                    return;
+                }
+                token.grantedQos = new int[frame.remaining()];
+                boolean failed = false;
+                for (int i = 0; i < token.grantedQos.length; i++) {
+                    token.grantedQos[i] = frame.get() & 0xFF;
+                    failed |= token.grantedQos[i] == MqttPackets.SUBSCRIBE_FAILURE;
+                }
+                token.complete(failed ? new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED) : null);
+                break;
+            }
+            case MqttPackets.UNSUBACK: {
+                Token token = pending.remove(frame.getShort() & 0xFFFF);
+                if (token != null) {
+                    token.complete(null);
+                }
+                break;
+            }
+            case MqttPackets.PINGRESP:
+                pingSentAt = 0;
+                break;
+            default:
+                lost(new IOException("unexpected packet type " + type));
+        }
+    }
+
+    private void onPublish(MqttPackets.Publish p) {
+        //QoS2在收到PUBREL之前重发的PUBLISH不再回调
+        boolean duplicate = p.qos == 2 && !incomingQos2.add(p.packetId);
+        MqttCallback cb = callback;
+        if (!duplicate && cb != null) {
+            MqttMessage message = new MqttMessage(p.payload);
+            message.setQos(p.qos);
+            message.setRetained(p.retain);
+            try {
+                cb.messageArrived(p.topic, message);
+            } catch (Exception e) {
+                //和Paho一样，回调抛出异常时断开连接，消息不确认
+                lost(e);
+                return;
+            }
+        }
+        if (p.qos == 1) {
+            send(MqttPackets.ack(MqttPackets.PUBACK, p.packetId));
+        } else if (p.qos == 2) {
+            send(MqttPackets.ack(MqttPackets.PUBREC, p.packetId));
+        }
+    }
+
+    private void delivered(int id) {
+        Token token = pending.remove(id);
+        if (token == null) {
+            return;
+        }
+        token.complete(null);
+        MqttCallback cb = callback;
+        if (cb != null) {
+            cb.deliveryComplete(token);
+        }
+    }
+
+    /**
+     * 在selector线程里发送，不经过队列
+     */
+    private void send(ByteBuffer buf) {
+        outbound.add(buf);
+        flush();
+    }
+
+    /**
+     * 把队列里的报文聚合起来一次写出
+     */
+    void flush() {
+        if (channel == null || !channel.isConnected()) {
+            return;
+        }
+        try {
+            while (true) {
+                ByteBuffer buf;
+                while (writing.size() < MAX_GATHER && (buf = outbound.poll()) != null) {
+                    writing.add(buf);
+                }
+                if (!writing.isEmpty()) {
+                    int n = writing.size();
+                    writing.toArray(gather);
+                    channel.write(gather, 0, n);
+                    while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+                        writing.poll();
+                    }
+                    lastSend = System.nanoTime() / 1000000;
+                    if (!writing.isEmpty()) {
+                        //内核缓冲区满了，等可写时再继续
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    continue;
+                }
+                Token token = disconnectToken;
+                if (token == null) {
+                    break;
+                }
+                if (!outbound.isEmpty()) {
+                    continue;
+                }
+                //DISCONNECT已经写出
+                disconnectToken = null;
+                closeChannel();
+                token.complete(null);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    void checkKeepAlive(long now) {
+        if (!connected || keepAliveMillis <= 0) {
+            return;
+        }
+        if (pingSentAt > 0 && now - pingSentAt > keepAliveMillis) {
+            lost(new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+        } else if (pingSentAt == 0 && now - lastSend >= keepAliveMillis) {
+            pingSentAt = now;
+            send(MqttPackets.empty(MqttPackets.PINGREQ));
+        }
+    }
+
+    /**
+     * 连接断开: 未完成的操作全部失败，通知回调
+     */
+    void lost(Throwable cause) {
+        if (channel == null && connectToken == null) {
+            return;
+        }
+        boolean wasConnected = connected;
+        connected = false;
+        closeChannel();
+        MqttException failure = cause instanceof MqttException ? (MqttException) cause
+                : new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, cause);
+        Token token = connectToken;
+        if (token != null) {
+            connectToken = null;
+            token.complete(failure);
+        }
+        failPending(failure);
+        token = disconnectToken;
+        if (token != null) {
+            disconnectToken = null;
+            token.complete(null);
+            return;
+        }
+        MqttCallback cb = callback;
+        if (wasConnected && cb != null) {
+            cb.connectionLost(failure);
+        }
+    }
+
+    /**
+     * 等待确认的发布、订阅和取消订阅全部失败
+     */
+    private void failPending(MqttException failure) {
+        for (Integer id : pending.keySet()) {
+            Token token = pending.remove(id);
+            if (token != null) {
+                token.complete(failure);
+            }
+        }
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        loop.detach(this);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+        key = null;
+        writing.clear();
+        outbound.clear();
+        incomingQos2.clear();
+        pingSentAt = 0;
+        header.clear();
+        if (partial != null) {
+            engine.pool.release(partial);
+            partial = null;
+        }
+    }
+
+    /**
+     * 与Paho兼容的token，同时提供CompletableFuture
+     */
+    private final class Token implements IMqttDeliveryToken {
+        final CompletableFuture<IMqttDeliveryToken> future = new CompletableFuture<IMqttDeliveryToken>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final String[] topics;
+        private final MqttMessage message;
+        private volatile MqttException exception;
+        private volatile IMqttActionListener listener;
+        private volatile Object userContext;
+        volatile int messageId;
+        volatile int[] grantedQos;
+        volatile boolean sessionPresent;
+        //占用的发送窗口，完成时归还
+        volatile Semaphore window;
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        Token(String[] topics, MqttMessage message) {
+            this.topics = topics;
+            this.message = message;
+        }
+
+        void complete(MqttException failure) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            exception = failure;
+            if (window != null) {
+                window.release();
+            }
+            done.countDown();
+            IMqttActionListener l = listener;
+            if (l != null) {
+                if (failure == null) {
+                    l.onSuccess(this);
+                } else {
+                    l.onFailure(this, failure);
+                }
+            }
+            if (failure == null) {
+                future.complete(this);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }
+
+        public void waitForCompletion() throws MqttException {
+            waitForCompletion(-1);
+        }
+
+        public void waitForCompletion(long timeout) throws MqttException {
+            try {
+                if (timeout < 0) {
+                    done.await();
+                } else if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MqttException(e);
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+
+        public boolean isComplete() {
+            return done.getCount() == 0;
+        }
+
+        public MqttException getException() {
+            return exception;
+        }
+
+        public void setActionCallback(IMqttActionListener listener) {
+            this.listener = listener;
+        }
+
+        public IMqttActionListener getActionCallback() {
+            return listener;
+        }
+
+        /**
+         * @return 不是Paho的客户端，返回null
+         */
+        public IMqttAsyncClient getClient() {
+            return null;
+        }
+
+        public String[] getTopics() {
+            return topics;
+        }
+
+        public void setUserContext(Object userContext) {
+            this.userContext = userContext;
+        }
+
+        public Object getUserContext() {
+            return userContext;
+        }
+
+        public int getMessageId() {
+            return messageId;
+        }
+
+        public int[] getGrantedQos() {
+            return grantedQos;
+        }
+
+        public boolean getSessionPresent() {
+            return sessionPresent;
+        }
+
+        public MqttWireMessage getResponse() {
+            return null;
+        }
+
+        public MqttMessage getMessage() {
+            return message;
+        }
+    }
+}
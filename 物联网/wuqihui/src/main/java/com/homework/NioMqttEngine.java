@@ -0,0 +1,162 @@
+package com.homework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多路复用的MQTT客户端引擎，多个NioMqttClient共用少量selector线程
+ * Paho的每个MqttClient都有自己的发送、接收和回调线程，网关这种一个进程代理很多设备的场景线程数会爆炸；
+ * 这里每个selector线程管理一批连接，读缓冲区每个线程一个，没读完的报文按总长度从共享的BufferPool取缓冲区，
+ * 其他线程的操作(连接、发送)通过任务队列交给所属的selector线程执行
+ */
+public class NioMqttEngine {
+    //每个selector线程共用的读缓冲区大小
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Loop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    final BufferPool pool = new BufferPool(1024);
+    private volatile boolean running = true;
+
+    /**
+     * 构造函数
+     * @param threads selector线程数
+     * @throws IOException
+     */
+    public NioMqttEngine(int threads) throws IOException {
+        loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop(i);
+            loops[i].thread.start();
+        }
+    }
+
+    /**
+     * 构造函数，每个CPU一个selector线程
+     * @throws IOException
+     */
+    public NioMqttEngine() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return 轮流分配给新连接的selector线程
+     */
+    Loop nextLoop() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * 关闭所有连接并停止selector线程
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (Loop loop : loops) {
+            loop.thread.join();
+        }
+    }
+
+    /**
+     * 一个selector线程
+     */
+    final class Loop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean woken = new AtomicBoolean();
+        //在这个线程上的连接，只在本线程访问
+        private final List<NioMqttClient> clients = new ArrayList<NioMqttClient>();
+        private long lastCheck;
+
+        Loop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "nio-mqtt-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * 在本线程中执行任务，多次调用只唤醒selector一次
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread && woken.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        void attach(NioMqttClient client) {
+            clients.add(client);
+        }
+
+        void detach(NioMqttClient client) {
+            clients.remove(client);
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(1000);
+                    woken.set(false);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioMqttClient client = (NioMqttClient) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            client.finishConnect();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            client.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.flush();
+                        }
+                    }
+                    long now = System.nanoTime() / 1000000;
+                    if (now - lastCheck >= 1000) {
+                        lastCheck = now;
+                        for (NioMqttClient client : new ArrayList<NioMqttClient>(clients)) {
+                            client.checkKeepAlive(now);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (NioMqttClient client : new ArrayList<NioMqttClient>(clients)) {
+                    client.lost(new IOException("engine closed"));
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
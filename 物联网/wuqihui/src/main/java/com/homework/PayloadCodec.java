@@ -0,0 +1,201 @@
+package com.homework;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 消息内容的压缩编解码
+ * 超过阈值的payload压缩后加6字节的头: magic(1) codec(1) originalLength(4)，压缩后不变小的原样发送；
+ * magic取0xFC，UTF-8文本不会以这个字节开头，没有头的消息解码时原样返回；
+ * 不压缩的二进制payload恰好以0xFC开头时加上STORED头，避免被误当成压缩数据
+ * Deflater、Inflater、LZ4哈希表和压缩用的临时缓冲区按线程复用，每条消息只分配最终结果的数组
+ */
+public class PayloadCodec {
+    public static final byte MAGIC = (byte) 0xFC;
+    public static final int HEADER_LENGTH = 6;
+    public static final int DEFAULT_THRESHOLD = 256;
+    //压缩比的理论上限: LZ4一个扩展字节最多多表示255字节，deflate最多约1032:1；
+    //头里的原始长度超过压缩数据长度乘以它时一定是损坏的，不按它分配数组
+    private static final int MAX_LZ4_RATIO = 255;
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    /**
+     * 压缩算法，id写在消息头里
+     */
+    public enum Compression {
+        STORED(0), DEFLATE(1), LZ4(2);
+
+        private final byte id;
+
+        Compression(int id) {
+            this.id = (byte) id;
+        }
+
+        static Compression of(byte id) {
+            for (Compression c : values()) {
+                if (c.id == id) {
+                    return c;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+    private static final ThreadLocal<int[]> LZ4_TABLE = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[Lz4.HASH_TABLE_SIZE];
+        }
+    };
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
+    private final Compression compression;
+    private final int threshold;
+
+    /**
+     * 构造函数
+     * @param compression 压缩算法
+     * @param threshold 小于这个字节数的payload不压缩
+     */
+    public PayloadCodec(Compression compression, int threshold) {
+        this.compression = compression;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return 压缩后带头的payload，不值得压缩时返回原数组
+     */
+    public byte[] encode(byte[] payload) {
+        if (payload.length < threshold || compression == Compression.STORED) {
+            return stored(payload);
+        }
+        byte[] scratch = scratch(HEADER_LENGTH + Lz4.maxCompressedLength(payload.length));
+        int length;
+        if (compression == Compression.LZ4) {
+            length = Lz4.compress(payload, 0, payload.length, scratch, HEADER_LENGTH, LZ4_TABLE.get());
+        } else {
+            length = deflate(payload, scratch);
+        }
+        if (length < 0 || HEADER_LENGTH + length >= payload.length) {
+            return stored(payload);
+        }
+        writeHeader(scratch, compression, payload.length);
+        return Arrays.copyOf(scratch, HEADER_LENGTH + length);
+    }
+
+    /**
+     * 解码，没有压缩头的payload原样返回
+     * @throws IllegalArgumentException 压缩数据损坏，或头里的原始长度不可能由这么长的压缩数据得到
+     */
+    public static byte[] decode(byte[] payload) {
+        if (!isEncoded(payload)) {
+            return payload;
+        }
+        Compression compression = Compression.of(payload[1]);
+        int length = ((payload[2] & 0xFF) << 24) | ((payload[3] & 0xFF) << 16)
+                | ((payload[4] & 0xFF) << 8) | (payload[5] & 0xFF);
+        if (compression == null || length < 0) {
+            throw new IllegalArgumentException("unknown payload encoding");
+        }
+        long compressed = payload.length - HEADER_LENGTH;
+        if (compression == Compression.STORED && length != compressed) {
+            throw new IllegalArgumentException("corrupted stored payload");
+        }
+        if (length > compressed * (compression == Compression.LZ4 ? MAX_LZ4_RATIO : MAX_DEFLATE_RATIO)) {
+            throw new IllegalArgumentException("declared length " + length + " too large for " + compressed
+                    + " compressed bytes");
+        }
+        byte[] out = new byte[length];
+        if (compression == Compression.STORED) {
+            System.arraycopy(payload, HEADER_LENGTH, out, 0, length);
+        } else if (compression == Compression.LZ4) {
+            Lz4.decompress(payload, HEADER_LENGTH, payload.length - HEADER_LENGTH, out, 0, length);
+        } else {
+            inflate(payload, out);
+        }
+        return out;
+    }
+
+    /**
+     * @return 不压缩时的payload，只有以MAGIC开头时才需要加头
+     */
+    private static byte[] stored(byte[] payload) {
+        if (payload.length == 0 || payload[0] != MAGIC) {
+            return payload;
+        }
+        byte[] out = new byte[HEADER_LENGTH + payload.length];
+        writeHeader(out, Compression.STORED, payload.length);
+        System.arraycopy(payload, 0, out, HEADER_LENGTH, payload.length);
+        return out;
+    }
+
+    private static void writeHeader(byte[] buf, Compression compression, int length) {
+        buf[0] = MAGIC;
+        buf[1] = compression.id;
+        buf[2] = (byte) (length >>> 24);
+        buf[3] = (byte) (length >>> 16);
+        buf[4] = (byte) (length >>> 8);
+        buf[5] = (byte) length;
+    }
+
+    public static boolean isEncoded(byte[] payload) {
+        return payload.length >= HEADER_LENGTH && payload[0] == MAGIC;
+    }
+
+    /**
+     * @return 压缩后的长度，缓冲区不够(数据压缩不了)时返回-1
+     */
+    private static int deflate(byte[] payload, byte[] scratch) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        int length = deflater.deflate(scratch, HEADER_LENGTH, scratch.length - HEADER_LENGTH);
+        return deflater.finished() ? length : -1;
+    }
+
+    private static void inflate(byte[] payload, byte[] out) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(payload, HEADER_LENGTH, payload.length - HEADER_LENGTH);
+        try {
+            int n = 0;
+            while (n < out.length && !inflater.finished()) {
+                int read = inflater.inflate(out, n, out.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != out.length) {
+                throw new IllegalArgumentException("truncated deflate payload");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("corrupted deflate payload", e);
+        }
+    }
+
+    private static byte[] scratch(int size) {
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < size) {
+            scratch = new byte[Math.max(size, scratch.length * 2)];
+            SCRATCH.set(scratch);
+        }
+        return scratch;
+    }
+}
@@ -0,0 +1,141 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+import java.io.File;
+
+/**
+ * MemoryPersistence、MqttDefaultFilePersistence与MappedFilePersistence的持久化发布吞吐量对比
+ * 不带host时只在持久化层模拟QoS1发布: 发送前put，收到PUBACK(窗口外)后remove；
+ * 带host时通过AsyncPublisher向服务器做真实的QoS1发布
+ * 用法: PersistenceBenchmark [消息数] [payload字节数] [窗口大小] [host]，host为embedded时在本进程启动EmbeddedBroker
+ */
+public class PersistenceBenchmark {
+    private static final String DIR = "bench-persistence";
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        int window = args.length > 2 ? Integer.parseInt(args[2]) : AsyncPublisher.DEFAULT_WINDOW;
+        String host = args.length > 3 ? EmbeddedBroker.resolve(args[3]) : null;
+
+        String[] names = {"memory", "default-file", "mapped-file"};
+        for (int round = 0; round < 2; round++) {
+            //第一轮用来预热
+            for (String name : names) {
+                delete(new File(DIR));
+                MqttClientPersistence persistence = create(name);
+                double seconds = host == null
+                        ? store(persistence, count, size, window)
+                        : publish(persistence, host, count, size, window);
+                if (round == 1) {
+                    System.out.println(String.format("%-13s %d msgs in %.3f s, %.0f msg/s",
+                            name, count, seconds, count / seconds));
+                }
+            }
+        }
+        delete(new File(DIR));
+    }
+
+    private static MqttClientPersistence create(String name) {
+        if ("memory".equals(name)) {
+            return new MemoryPersistence();
+        } else if ("default-file".equals(name)) {
+            return new MqttDefaultFilePersistence(DIR);
+        }
+        return new MappedFilePersistence(DIR);
+    }
+
+    /**
+     * 模拟Paho对QoS1消息的持久化: 发送前put("s-id")，确认后remove("s-id")
+     * @return 耗时，单位秒
+     */
+    private static double store(MqttClientPersistence persistence, int count, int size, int window)
+            throws Exception {
+        persistence.open("bench", "tcp://localhost:1883");
+        Record record = new Record(new byte[4], new byte[size]);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            persistence.put("s-" + (i % 65535 + 1), record);
+            if (i >= window) {
+                persistence.remove("s-" + ((i - window) % 65535 + 1));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        persistence.clear();
+        persistence.close();
+        return elapsed / 1e9;
+    }
+
+    /**
+     * @return 耗时，单位秒
+     */
+    private static double publish(MqttClientPersistence persistence, String host, int count, int size, int window)
+            throws Exception {
+        AsyncPublisher publisher = new AsyncPublisher(new MqttAsyncClient(host, "bench-persist", persistence), window);
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        publisher.connect(options);
+        byte[] payload = new byte[size];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(1);
+            publisher.publish(Server.TOPIC + "/bench", message);
+        }
+        publisher.flush();
+        long elapsed = System.nanoTime() - start;
+        publisher.close();
+        return elapsed / 1e9;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class Record implements MqttPersistable {
+        private final byte[] header;
+        private final byte[] payload;
+
+        Record(byte[] header, byte[] payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        public int getHeaderLength() {
+            return header.length;
+        }
+
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        public int getPayloadLength() {
+            return payload.length;
+        }
+
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * 阻塞发布(Server.publish的做法)与AsyncPublisher流水线发布的吞吐量对比
+ * 用法: PublishBenchmark [host] [消息数] [payload字节数] [qos] [窗口大小]
+ * host为embedded时在本进程启动EmbeddedBroker
+ */
+public class PublishBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String host = EmbeddedBroker.resolve(args.length > 0 ? args[0] : Server.HOST);
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 128;
+        int qos = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        int window = args.length > 4 ? Integer.parseInt(args[4]) : AsyncPublisher.DEFAULT_WINDOW;
+        byte[] payload = new byte[size];
+
+        double blocking = blocking(host, count, payload, qos);
+        System.out.println("blocking  : " + format(count, blocking));
+        double pipelined = pipelined(host, count, payload, qos, window);
+        System.out.println("pipelined : " + format(count, pipelined) + " (window=" + window + ")");
+        System.out.println("speedup   : " + String.format("%.2f", blocking / pipelined) + "x");
+    }
+
+    /**
+     * 每条消息都等待token完成，与Server.publish相同
+     * @return 耗时，单位秒
+     */
+    private static double blocking(String host, int count, byte[] payload, int qos) throws MqttException {
+        MqttClient client = new MqttClient(host, "bench-blocking", new MemoryPersistence());
+        client.connect(options());
+        MqttTopic topic = client.getTopic(Server.TOPIC + "/bench");
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(qos);
+            topic.publish(message).waitForCompletion();
+        }
+        long elapsed = System.nanoTime() - start;
+        client.disconnect();
+        client.close();
+        return elapsed / 1e9;
+    }
+
+    /**
+     * 通过AsyncPublisher保持window条消息在途
+     * @return 耗时，单位秒
+     */
+    private static double pipelined(String host, int count, byte[] payload, int qos, int window)
+            throws MqttException, InterruptedException {
+        AsyncPublisher publisher = new AsyncPublisher(
+                new MqttAsyncClient(host, "bench-pipelined", new MemoryPersistence()), window);
+        publisher.connect(options());
+        String topic = Server.TOPIC + "/bench";
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(qos);
+            publisher.publish(topic, message);
+        }
+        publisher.flush();
+        long elapsed = System.nanoTime() - start;
+        publisher.close();
+        return elapsed / 1e9;
+    }
+
+    private static MqttConnectOptions options() {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setConnectionTimeout(10);
+        options.setKeepAliveInterval(20);
+        return options;
+    }
+
+    private static String format(int count, double seconds) {
+        return String.format("%d msgs in %.3f s, %.0f msg/s", count, seconds, count / seconds);
+    }
+}
@@ -0,0 +1,24 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 异步发布消息的接口，批量、压缩等发布器都包在它外面
+ */
+public interface Publisher {
+
+    /**
+     * 发布一条消息，可以在消息送达前返回
+     * @param topic 主题
+     * @param message 消息
+     * @return 消息送达时完成的future
+     * @throws MqttException
+     * @throws InterruptedException 等待发送窗口时被中断
+     */
+    CompletableFuture<IMqttDeliveryToken> publish(String topic, MqttMessage message)
+            throws MqttException, InterruptedException;
+}
@@ -4,11 +4,64 @@ import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
 
 
 public class PushCallBack implements MqttCallback {
+    //接收文件存放的目录
+    public static final String RECEIVE_DIR = "C:\\Users\\Administrator\\Desktop\\" +
+            "软院学习资料\\物联网\\qch\\";
+    //每收到这么多条二进制读数打印一条作为样本
+    private static final long SAMPLE_EVERY = 10000;
+
+    //工作线程会并发调用messageArrived，每个线程用自己的享元解析二进制读数
+    private static final ThreadLocal<SensorRecordFlyweight> RECORD = new ThreadLocal<SensorRecordFlyweight>() {
+        protected SensorRecordFlyweight initialValue() {
+            return new SensorRecordFlyweight();
+        }
+    };
+
+    private GroupCommitSink sink;
+    private FileChunkReceiver fileReceiver;
+    //解析出的二进制读数条数，读数本身不逐条打印
+    private final AtomicLong readings = new AtomicLong();
+
+    /**
+     * 只打印收到的消息，不落盘，Server用它接收发布完成的通知
+     */
+    public PushCallBack() {
+    }
+
+    /**
+     * 构造函数
+     * @param sink 消息追加写入的落盘器
+     * @param fileReceiver 分块文件的接收者
+     */
+    public PushCallBack(GroupCommitSink sink, FileChunkReceiver fileReceiver) {
+        this.sink = sink;
+        this.fileReceiver = fileReceiver;
+    }
+
+    /**
+     * 记录解析出的二进制读数条数
+     */
+    public void setMetrics(Metrics metrics) {
+        metrics.gauge("readings.parsed", new Metrics.Gauge() {
+            public long get() {
+                return getReadingCount();
+            }
+        });
+    }
+
+    /**
+     * @return 解析出的二进制读数条数
+     */
+    public long getReadingCount() {
+        return readings.get();
+    }
+
     public void connectionLost(Throwable cause) {
         // 连接丢失后，一般在这里面进行重连
         System.out.println("连接断开，可以做重连");
@@ -20,15 +73,28 @@ public class PushCallBack implements MqttCallback {
 
     public void messageArrived(String topic, MqttMessage message) throws Exception {
         // subscribe后得到的消息会执行到这里面
-        System.out.println("接收消息主题 : " + "qchTopic");
+        if (fileReceiver != null && fileReceiver.accepts(topic)) {
+            // 分块文件直接写入磁盘，不再整体打印
+            fileReceiver.receive(message.getPayload());
+            return;
+        }
+        System.out.println("接收消息主题 : " + topic);
         System.out.println("接收消息Qos : " + message.getQos());
-        System.out.println("接收到的文件存储在根目录的received.txt文件");
-        System.out.println("接收消息内容 : \n" + new String(message.getPayload()));
-        FileOutputStream fis = new FileOutputStream("C:\\Users\\Administrator\\Desktop\\" +
-                "软院学习资料\\物联网\\qch\\received.txt");
-        OutputStreamWriter isr = new OutputStreamWriter(fis);
-        isr.write(new String(message.getPayload()));
-        isr.flush();
-        isr.close();
+        System.out.println("接收消息长度 : " + message.getPayload().length);
+        if (SensorRecord.isRecord(message.getPayload())) {
+            SensorRecordFlyweight record = RECORD.get();
+            boolean valid = record.wrap(ByteBuffer.wrap(message.getPayload()), 0);
+            while (valid) {
+                if (readings.incrementAndGet() % SAMPLE_EVERY == 1) {
+                    System.out.println("接收读数样本 : 设备" + record.deviceId() + " 时间" + record.timestamp()
+                            + " 数值" + record.doubleValue());
+                }
+                valid = record.next();
+            }
+        }
+        if (sink != null) {
+            // 只入队，原始字节由写线程追加到received.log，不在回调线程里做编码转换和磁盘IO
+            sink.append(message.getPayload());
+        }
     }
 }
@@ -0,0 +1,61 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 把消息解析成一条条读数(设备、时间、数值)的处理器，用Client.route注册到传感器主题上
+ * 二进制消息按SensorRecord解析，一条消息里可以有多条记录；文本消息可以是"数值"，
+ * 也可以是"设备id,毫秒时间戳,数值"，只有数值时设备id为0、时间为收到的时间；解析不了的消息忽略
+ */
+public abstract class ReadingListener implements IMqttMessageListener {
+    //分发通道的工作线程会并发调用，每个线程用自己的享元
+    private static final ThreadLocal<SensorRecordFlyweight> RECORD = new ThreadLocal<SensorRecordFlyweight>() {
+        protected SensorRecordFlyweight initialValue() {
+            return new SensorRecordFlyweight();
+        }
+    };
+
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        byte[] payload = message.getPayload();
+        if (SensorRecord.isRecord(payload)) {
+            SensorRecordFlyweight record = RECORD.get();
+            boolean valid = record.wrap(ByteBuffer.wrap(payload), 0);
+            while (valid) {
+                onReading(topic, record.deviceId(), record.timestamp(), record.doubleValue());
+                valid = record.next();
+            }
+            return;
+        }
+        String text = new String(payload, StandardCharsets.UTF_8).trim();
+        try {
+            int first = text.indexOf(',');
+            if (first < 0) {
+                onReading(topic, 0, System.currentTimeMillis(), Double.parseDouble(text));
+                return;
+            }
+            int second = text.indexOf(',', first + 1);
+            if (second < 0) {
+                return;
+            }
+            onReading(topic, Long.parseLong(text.substring(0, first).trim()),
+                    Long.parseLong(text.substring(first + 1, second).trim()),
+                    Double.parseDouble(text.substring(second + 1).trim()));
+        } catch (NumberFormatException e) {
+            //不是读数
+        }
+    }
+
+    /**
+     * 处理一条读数
+     * @param topic 主题
+     * @param deviceId 设备id
+     * @param timestamp 毫秒时间戳
+     * @param value 数值
+     * @throws Exception
+     */
+    protected abstract void onReading(String topic, long deviceId, long timestamp, double value) throws Exception;
+}
@@ -0,0 +1,414 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 断线自动重连
+ * 作为客户端的回调包在真正的回调外面，start发起第一次连接，连接失败或connectionLost后按带抖动的指数退避不断重连，
+ * 连上后重新订阅记录下来的主题，再全速补发断线期间缓存的消息；
+ * 断线期间的消息默认缓存在内存里，给了DiskSpool时写到磁盘，进程重启后也能补发；
+ * 从断线到重连后第一条消息送达(收到消息或发布完成)的时间记为恢复时间
+ */
+public class Reconnector implements MqttCallback {
+    public static final long DEFAULT_INITIAL_DELAY = 500;
+    public static final long DEFAULT_MAX_DELAY = 30000;
+    public static final int DEFAULT_BUFFER_CAPACITY = 10000;
+
+    private final MqttClient client;
+    private final MqttConnectOptions options;
+    private final MqttCallback delegate;
+    private final ScheduledExecutorService scheduler;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int bufferCapacity;
+    //不为null时断线期间的消息写到磁盘而不是buffer
+    private final DiskSpool spool;
+
+    //已订阅的主题和QoS，重连后重新订阅
+    private final Map<String, Integer> subscriptions = new LinkedHashMap<String, Integer>();
+    //断线期间发布的消息
+    private final ArrayDeque<Pending> buffer = new ArrayDeque<Pending>();
+
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong droppedPublishes = new AtomicLong();
+    private volatile long disconnectedAt;
+    private volatile boolean recovering;
+    private volatile long lastRecoveryMillis = -1;
+    private volatile boolean stopped;
+    private volatile boolean connectedOnce;
+
+    /**
+     * 构造函数
+     * @param client 客户端
+     * @param options 连接设置，重连时沿用
+     * @param delegate 真正处理消息的回调
+     * @param scheduler 执行重连的线程池
+     */
+    public Reconnector(MqttClient client, MqttConnectOptions options, MqttCallback delegate,
+                       ScheduledExecutorService scheduler) {
+        this(client, options, delegate, scheduler, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * 构造函数
+     * @param client 客户端
+     * @param options 连接设置，重连时沿用
+     * @param delegate 真正处理消息的回调
+     * @param scheduler 执行重连的线程池
+     * @param initialDelay 第一次重连前的等待时间，单位毫秒
+     * @param maxDelay 退避的上限，单位毫秒
+     * @param bufferCapacity 断线期间最多缓存的消息数，超过时丢弃最旧的
+     */
+    public Reconnector(MqttClient client, MqttConnectOptions options, MqttCallback delegate,
+                       ScheduledExecutorService scheduler, long initialDelay, long maxDelay, int bufferCapacity) {
+        this(client, options, delegate, scheduler, initialDelay, maxDelay, bufferCapacity, null);
+    }
+
+    /**
+     * 构造函数，断线期间的消息缓存到磁盘
+     * @param client 客户端
+     * @param options 连接设置，重连时沿用
+     * @param delegate 真正处理消息的回调
+     * @param scheduler 执行重连的线程池
+     * @param spool 磁盘缓存，容量由它的配额决定
+     */
+    public Reconnector(MqttClient client, MqttConnectOptions options, MqttCallback delegate,
+                       ScheduledExecutorService scheduler, DiskSpool spool) {
+        this(client, options, delegate, scheduler, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_BUFFER_CAPACITY,
+                spool);
+    }
+
+    private Reconnector(MqttClient client, MqttConnectOptions options, MqttCallback delegate,
+                        ScheduledExecutorService scheduler, long initialDelay, long maxDelay, int bufferCapacity,
+                        DiskSpool spool) {
+        this.client = client;
+        this.options = options;
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.bufferCapacity = bufferCapacity;
+        this.spool = spool;
+    }
+
+    /**
+     * 在scheduler上发起第一次连接，失败时和断线重连一样按退避重试，连上后订阅记录的主题、补发缓存的消息
+     * (包括磁盘缓存里上次进程退出时没补发完的)。启动时服务器不可用也不会放弃
+     */
+    public void start() {
+        scheduler.execute(new Runnable() {
+            public void run() {
+                reconnect(0);
+            }
+        });
+    }
+
+    /**
+     * 订阅并记住主题，重连后自动重新订阅；还没连上时只记下来，连上后再订阅
+     * @throws MqttException
+     */
+    public void subscribe(String[] topics, int[] qos) throws MqttException {
+        synchronized (subscriptions) {
+            for (int i = 0; i < topics.length; i++) {
+                subscriptions.put(topics[i], qos[i]);
+            }
+        }
+        if (!client.isConnected()) {
+            return;
+        }
+        try {
+            client.subscribe(topics, qos);
+        } catch (MqttException e) {
+            if (e.getReasonCode() != MqttException.REASON_CODE_CLIENT_NOT_CONNECTED
+                    && e.getReasonCode() != MqttException.REASON_CODE_CONNECTION_LOST) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 发布消息，不等待完成；未连接时先缓存，重连后补发。
+     * 在途消息数达到maxInflight时和补发一样短暂等待后重试，而不是把REASON_CODE_MAX_INFLIGHT抛给调用者
+     * @return 直接发布时的token，进了缓存时返回null
+     * @throws MqttException 连接正常但发布失败，或者等待在途消息完成时被中断
+     */
+    public IMqttDeliveryToken publish(String topic, MqttMessage message) throws MqttException {
+        synchronized (buffer) {
+            //还有缓存的消息没补发完时也进缓存，保证顺序
+            if (!client.isConnected() || !isBufferEmpty()) {
+                enqueue(new Pending(topic, message));
+                return null;
+            }
+        }
+        while (true) {
+            try {
+                return client.getTopic(topic).publish(message);
+            } catch (MqttException e) {
+                if (e.getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                    continue;
+                }
+                if (e.getReasonCode() != MqttException.REASON_CODE_CLIENT_NOT_CONNECTED
+                        && e.getReasonCode() != MqttException.REASON_CODE_CONNECTION_LOST) {
+                    throw e;
+                }
+                synchronized (buffer) {
+                    enqueue(new Pending(topic, message));
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 停止重连，主动断开前调用
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    public void connectionLost(Throwable cause) {
+        disconnectedAt = System.nanoTime();
+        recovering = true;
+        delegate.connectionLost(cause);
+        schedule(0);
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        recovered();
+        delegate.deliveryComplete(token);
+    }
+
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        recovered();
+        delegate.messageArrived(topic, message);
+    }
+
+    /**
+     * @return 重连成功的次数
+     */
+    public long getReconnectCount() {
+        return reconnects.get();
+    }
+
+    /**
+     * @return 最近一次从断线到第一条消息送达的毫秒数，还没有恢复过时为-1
+     */
+    public long getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    /**
+     * @return 缓存满时丢弃的消息数，包括磁盘缓存超过配额淘汰的
+     */
+    public long getDroppedPublishes() {
+        return droppedPublishes.get() + (spool == null ? 0 : spool.getEvictedCount());
+    }
+
+    /**
+     * 把重连次数、丢弃数、恢复时间和待补发的消息数注册为指标
+     */
+    public void setMetrics(Metrics metrics) {
+        metrics.gauge("reconnect.count", new Metrics.Gauge() {
+            public long get() {
+                return getReconnectCount();
+            }
+        });
+        metrics.gauge("reconnect.lastRecoveryMillis", new Metrics.Gauge() {
+            public long get() {
+                return getLastRecoveryMillis();
+            }
+        });
+        metrics.gauge("reconnect.droppedPublishes", new Metrics.Gauge() {
+            public long get() {
+                return getDroppedPublishes();
+            }
+        });
+        metrics.gauge("reconnect.buffered", new Metrics.Gauge() {
+            public long get() {
+                if (spool != null) {
+                    return spool.size();
+                }
+                synchronized (buffer) {
+                    return buffer.size();
+                }
+            }
+        });
+    }
+
+    private void recovered() {
+        if (recovering && client.isConnected()) {
+            recovering = false;
+            lastRecoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - disconnectedAt);
+            System.out.println("连接已恢复，耗时" + lastRecoveryMillis + "毫秒");
+        }
+    }
+
+    private void schedule(final int attempt) {
+        if (stopped) {
+            return;
+        }
+        //指数退避，实际等待时间在[delay/2, delay]之间随机，避免大量客户端同时重连
+        long delay = Math.min(maxDelay, initialDelay << Math.min(attempt, 20));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                reconnect(attempt);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect(int attempt) {
+        if (stopped || client.isConnected()) {
+            return;
+        }
+        try {
+            client.connect(options);
+        } catch (MqttException e) {
+            System.out.println("第" + (attempt + 1) + "次连接失败: " + e.getMessage());
+            schedule(attempt + 1);
+            return;
+        }
+        //start发起的第一次连接不算重连
+        if (connectedOnce) {
+            reconnects.incrementAndGet();
+        }
+        connectedOnce = true;
+        System.out.println("第" + (attempt + 1) + "次连接成功");
+        try {
+            resubscribe();
+            replay();
+        } catch (MqttException e) {
+            //连上后又断了，connectionLost会重新开始重连
+            e.printStackTrace();
+        }
+    }
+
+    private void resubscribe() throws MqttException {
+        String[] topics;
+        int[] qos;
+        synchronized (subscriptions) {
+            if (subscriptions.isEmpty()) {
+                return;
+            }
+            topics = new String[subscriptions.size()];
+            qos = new int[subscriptions.size()];
+            int i = 0;
+            for (Map.Entry<String, Integer> entry : subscriptions.entrySet()) {
+                topics[i] = entry.getKey();
+                qos[i++] = entry.getValue();
+            }
+        }
+        client.subscribe(topics, qos);
+    }
+
+    /**
+     * 补发缓存的消息，只投递不等待完成，受maxInflight限制时短暂等待后重试；
+     * 同时在途的消息数因此不超过maxInflight，积压很多时也不会一下子压垮服务器。
+     * 磁盘缓存的消息交给客户端(由它的持久化负责)后才提交读位置
+     */
+    private void replay() throws MqttException {
+        long replayed = 0;
+        while (true) {
+            Pending pending;
+            synchronized (buffer) {
+                pending = peekPending();
+                if (pending == null) {
+                    if (replayed > 0) {
+                        System.out.println("补发了" + replayed + "条缓存的消息");
+                    }
+                    return;
+                }
+            }
+            try {
+                client.getTopic(pending.topic).publish(pending.message);
+            } catch (MqttException e) {
+                if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            synchronized (buffer) {
+                pollPending();
+            }
+            replayed++;
+        }
+    }
+
+    private boolean isBufferEmpty() {
+        return spool == null ? buffer.isEmpty() : spool.isEmpty();
+    }
+
+    private Pending peekPending() {
+        if (spool == null) {
+            return buffer.peek();
+        }
+        try {
+            DiskSpool.Entry entry = spool.peek();
+            return entry == null ? null : new Pending(entry.topic, entry.message);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void pollPending() {
+        if (spool == null) {
+            buffer.poll();
+        } else {
+            spool.remove();
+        }
+    }
+
+    private void enqueue(Pending pending) {
+        if (spool != null) {
+            try {
+                spool.append(pending.topic, pending.message);
+            } catch (IOException e) {
+                e.printStackTrace();
+                droppedPublishes.incrementAndGet();
+            }
+            return;
+        }
+        if (buffer.size() >= bufferCapacity) {
+            buffer.poll();
+            droppedPublishes.incrementAndGet();
+        }
+        buffer.add(pending);
+    }
+
+    private static class Pending {
+        final String topic;
+        final MqttMessage message;
+
+        Pending(String topic, MqttMessage message) {
+            this.topic = topic;
+            this.message = message;
+        }
+    }
+}
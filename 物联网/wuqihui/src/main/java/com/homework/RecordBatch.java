@@ -0,0 +1,183 @@
+package com.homework;
+
+import java.util.Arrays;
+
+/**
+ * 把多条小记录打包成一条消息的帧格式
+ * magic(1) version(1) count(4) 然后每条记录: length(varint) data
+ * magic取0xFB，UTF-8文本不会以这个字节开头，所以普通文本消息不会被误认成批；
+ * 不经过BatchingPublisher的二进制payload恰好以magic和version开头时用escape包成只有一条记录的批，
+ * 和PayloadCodec给以0xFC开头的payload加STORED头一样
+ */
+public final class RecordBatch {
+    public static final byte MAGIC = (byte) 0xFB;
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 6;
+
+    private byte[] buf;
+    private int length;
+    private int count;
+
+    /**
+     * 构造函数
+     * @param initialCapacity 初始缓冲区大小
+     */
+    public RecordBatch(int initialCapacity) {
+        buf = new byte[Math.max(initialCapacity, HEADER_LENGTH + 16)];
+        reset();
+    }
+
+    /**
+     * @return 追加一条记录后批的字节数
+     */
+    public static int sizeWith(int batchLength, int recordLength) {
+        return batchLength + varintLength(recordLength) + recordLength;
+    }
+
+    public void add(byte[] record, int offset, int len) {
+        ensure(varintLength(len) + len);
+        int v = len;
+        while ((v & ~0x7F) != 0) {
+            buf[length++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[length++] = (byte) v;
+        System.arraycopy(record, offset, buf, length, len);
+        length += len;
+        count++;
+    }
+
+    /**
+     * @return 打包好的消息内容
+     */
+    public byte[] toByteArray() {
+        buf[2] = (byte) (count >>> 24);
+        buf[3] = (byte) (count >>> 16);
+        buf[4] = (byte) (count >>> 8);
+        buf[5] = (byte) count;
+        return Arrays.copyOf(buf, length);
+    }
+
+    public void reset() {
+        buf[0] = MAGIC;
+        buf[1] = VERSION;
+        length = HEADER_LENGTH;
+        count = 0;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public static boolean isBatch(byte[] payload) {
+        return payload.length >= HEADER_LENGTH && payload[0] == MAGIC && payload[1] == VERSION;
+    }
+
+    /**
+     * 不打包发布的payload在交给压缩和加id之前调用，订阅端拆批后得到原来的内容
+     * @return 以magic和version开头时是只有这一条记录的批，否则原样返回
+     */
+    public static byte[] escape(byte[] payload) {
+        if (payload.length < 2 || payload[0] != MAGIC || payload[1] != VERSION) {
+            return payload;
+        }
+        RecordBatch batch = new RecordBatch(HEADER_LENGTH + varintLength(payload.length) + payload.length);
+        batch.add(payload, 0, payload.length);
+        return batch.toByteArray();
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + extra));
+        }
+    }
+
+    private static int varintLength(int v) {
+        int n = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 逐条读出批里的记录
+     * 构造时先检查整个帧: 记录数和头里的一致，最后一条记录正好在payload末尾结束，
+     * 所以一个损坏的批在交出第一条记录之前就会被拒绝，不会只投递一半
+     */
+    public static final class Reader {
+        private final byte[] payload;
+        private final int remaining;
+        private int position = HEADER_LENGTH;
+        private int read;
+        //skip读到的最后一条记录的长度
+        private int recordLength;
+
+        /**
+         * 构造函数
+         * @param payload 批
+         * @throws IllegalArgumentException 不是批，或者帧被截断、记录数不对、末尾有多余的字节
+         */
+        public Reader(byte[] payload) {
+            if (!isBatch(payload)) {
+                throw new IllegalArgumentException("payload is not a record batch");
+            }
+            this.payload = payload;
+            this.remaining = ((payload[2] & 0xFF) << 24) | ((payload[3] & 0xFF) << 16)
+                    | ((payload[4] & 0xFF) << 8) | (payload[5] & 0xFF);
+            if (remaining < 0) {
+                throw new IllegalArgumentException("invalid record count");
+            }
+            for (int i = 0; i < remaining; i++) {
+                position = skip(position);
+            }
+            if (position != payload.length) {
+                throw new IllegalArgumentException("record count does not match batch length");
+            }
+            position = HEADER_LENGTH;
+        }
+
+        public boolean hasNext() {
+            return read < remaining;
+        }
+
+        /**
+         * @return 下一条记录
+         */
+        public byte[] next() {
+            int end = skip(position);
+            byte[] record = Arrays.copyOfRange(payload, end - recordLength, end);
+            position = end;
+            read++;
+            return record;
+        }
+
+        /**
+         * @return from处的记录之后的位置
+         * @throws IllegalArgumentException 批被截断
+         */
+        private int skip(int from) {
+            int len = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (from >= payload.length || shift > 28) {
+                    throw new IllegalArgumentException("truncated record batch");
+                }
+                b = payload[from++];
+                len |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (len < 0 || len > payload.length - from) {
+                throw new IllegalArgumentException("truncated record batch");
+            }
+            recordLength = len;
+            return from + len;
+        }
+    }
+}
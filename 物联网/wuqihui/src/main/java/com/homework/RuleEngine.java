@@ -0,0 +1,357 @@
+package com.homework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在收到每条读数时检查告警规则
+ * 规则在构造时编译成几个按规则下标排列的基本类型数组，并按主题过滤器分组；一个主题第一次出现时
+ * 只和各个不同的过滤器匹配一次，得到它适用的规则下标，之后直接查表。
+ * 连续违反计数和变化率用的上一条读数按(主题, 设备)分开记录，同一主题上不同设备的读数互不影响。
+ * 和AnomalyDetector一样，序列不是对象而是一个下标: (主题, 设备id)在开放寻址表里查到下标，
+ * 状态存在按下标排列的基本类型数组里，检查一条读数不分配对象。
+ * 序列按哈希分到STRIPES个分片，每个分片各自加锁；序列数超过maxSeries后新序列的读数不检查并计数。
+ * 规则不可变，修改规则时新建一个RuleEngine替换
+ */
+public class RuleEngine {
+    private static final byte RANGE = 0;
+    private static final byte RATE = 1;
+    private static final int STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final AlertRule[] rules;
+    private final byte[] kinds;
+    private final double[] froms;
+    private final double[] tos;
+    private final boolean[] fromInclusive;
+    private final boolean[] toInclusive;
+    private final double[] maxRates;
+    private final int[] consecutive;
+    //不同的主题过滤器和各自的规则下标
+    private final String[] filters;
+    private final int[][] filterRules;
+    private final int maxSeries;
+    private final Sink sink;
+    //每个主题适用的规则下标，主题数达到maxSeries后不再缓存，新主题每次重新匹配
+    private final ConcurrentHashMap<String, int[]> topicRules = new ConcurrentHashMap<String, int[]>();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong alerts = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile Metrics metrics;
+
+    /**
+     * 规则触发时的回调，在检查读数的线程里调用，调用时不持有锁
+     */
+    public interface Sink {
+        void onAlert(AlertRule rule, String topic, long deviceId, long timestamp, double value);
+    }
+
+    /**
+     * 构造函数，编译规则
+     * @param rules 规则
+     * @param maxSeries (主题, 设备)序列数上限，超出后新序列的读数不检查
+     * @param sink 规则触发时的回调
+     * @throws IllegalArgumentException maxSeries不是正数
+     */
+    public RuleEngine(List<AlertRule> rules, int maxSeries, Sink sink) {
+        if (maxSeries <= 0) {
+            throw new IllegalArgumentException("maxSeries should be positive");
+        }
+        int n = rules.size();
+        this.maxSeries = maxSeries;
+        this.rules = rules.toArray(new AlertRule[n]);
+        this.sink = sink;
+        kinds = new byte[n];
+        froms = new double[n];
+        tos = new double[n];
+        fromInclusive = new boolean[n];
+        toInclusive = new boolean[n];
+        maxRates = new double[n];
+        consecutive = new int[n];
+        Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+        for (int r = 0; r < n; r++) {
+            AlertRule rule = this.rules[r];
+            kinds[r] = rule.getKind() == AlertRule.Kind.RANGE ? RANGE : RATE;
+            froms[r] = rule.getFrom();
+            tos[r] = rule.getTo();
+            fromInclusive[r] = rule.isFromInclusive();
+            toInclusive[r] = rule.isToInclusive();
+            maxRates[r] = rule.getMaxRate();
+            consecutive[r] = rule.getConsecutive();
+            List<Integer> group = groups.get(rule.getFilter());
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(rule.getFilter(), group);
+            }
+            group.add(r);
+        }
+        filters = groups.keySet().toArray(new String[groups.size()]);
+        filterRules = new int[filters.length][];
+        for (int f = 0; f < filters.length; f++) {
+            List<Integer> group = groups.get(filters[f]);
+            filterRules[f] = new int[group.size()];
+            for (int i = 0; i < group.size(); i++) {
+                filterRules[f][i] = group.get(i);
+            }
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * 记录每条读数的检查时间，并把规则数、序列数、告警数和因序列数超限没有检查的读数注册为指标
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge("rules.count", new Metrics.Gauge() {
+            public long get() {
+                return rules.length;
+            }
+        });
+        metrics.gauge("rules.series", new Metrics.Gauge() {
+            public long get() {
+                return seriesCount();
+            }
+        });
+        metrics.gauge("rules.alerts", new Metrics.Gauge() {
+            public long get() {
+                return getAlertCount();
+            }
+        });
+        metrics.gauge("rules.rejected", new Metrics.Gauge() {
+            public long get() {
+                return getRejectedCount();
+            }
+        });
+    }
+
+    /**
+     * 检查一条读数
+     * @param topic 主题
+     * @param deviceId 设备id
+     * @param timestamp 毫秒时间戳
+     * @param value 数值
+     */
+    public void evaluate(String topic, long deviceId, long timestamp, double value) {
+        int[] ruleIds = topicRules.get(topic);
+        if (ruleIds == null) {
+            ruleIds = compile(topic);
+        }
+        if (ruleIds.length == 0) {
+            return;
+        }
+        Metrics m = metrics;
+        long start = m == null ? 0 : System.nanoTime();
+        //触发的规则下标，只在有规则触发时分配，释放锁后再交给Sink
+        int[] fired = null;
+        int firedCount = 0;
+        long hash = mix(deviceId * 0x9E3779B97F4A7C15L + topic.hashCode());
+        Stripe stripe = stripes[(int) (hash >>> 60) & (STRIPES - 1)];
+        synchronized (stripe) {
+            int s = stripe.index(topic, deviceId, hash, ruleIds.length);
+            if (s < 0) {
+                rejected.incrementAndGet();
+                return;
+            }
+            //和这个设备上一条读数比较的每秒变化量，时间不递增时不检查变化率规则
+            double rate = Double.NaN;
+            boolean hasLast = stripe.hasLast[s];
+            long lastTimestamp = stripe.lastTimestamp[s];
+            boolean newer = !hasLast || timestamp > lastTimestamp;
+            if (hasLast && newer) {
+                rate = Math.abs(value - stripe.lastValue[s]) * 1000 / (timestamp - lastTimestamp);
+            }
+            int[] runs = stripe.runs;
+            int base = stripe.offsets[s];
+            for (int i = 0; i < ruleIds.length; i++) {
+                int r = ruleIds[i];
+                boolean violated;
+                if (kinds[r] == RANGE) {
+                    violated = !inRange(value, froms[r], tos[r], fromInclusive[r], toInclusive[r]);
+                } else if (rate == rate) {
+                    violated = rate > maxRates[r];
+                } else {
+                    continue;
+                }
+                if (!violated) {
+                    runs[base + i] = 0;
+                } else if (runs[base + i] < consecutive[r] && ++runs[base + i] == consecutive[r]) {
+                    if (fired == null) {
+                        fired = new int[ruleIds.length];
+                    }
+                    fired[firedCount++] = r;
+                }
+            }
+            if (newer) {
+                stripe.hasLast[s] = true;
+                stripe.lastValue[s] = value;
+                stripe.lastTimestamp[s] = timestamp;
+            }
+        }
+        for (int i = 0; i < firedCount; i++) {
+            alerts.incrementAndGet();
+            sink.onAlert(rules[fired[i]], topic, deviceId, timestamp, value);
+        }
+        if (m != null) {
+            m.record("rules.evaluate", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 和ValidationUtility.checkInRange(double, ...)的判断相同
+     */
+    static boolean inRange(double value, double from, double to, boolean fromInclusive, boolean toInclusive) {
+        boolean valid;
+        if (fromInclusive) {
+            valid = (value >= from);
+        } else {
+            valid = (value > from);
+        }
+        if (valid) {
+            if (toInclusive) {
+                valid = (value <= to);
+            } else {
+                valid = (value < to);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * 找出适用于这个主题的规则
+     */
+    private int[] compile(String topic) {
+        List<Integer> matched = new ArrayList<Integer>();
+        for (int f = 0; f < filters.length; f++) {
+            if (TopicRouter.matches(filters[f], topic)) {
+                for (int r : filterRules[f]) {
+                    matched.add(r);
+                }
+            }
+        }
+        int[] ruleIds = new int[matched.size()];
+        for (int i = 0; i < ruleIds.length; i++) {
+            ruleIds[i] = matched.get(i);
+        }
+        if (topicRules.size() < maxSeries) {
+            topicRules.putIfAbsent(topic, ruleIds);
+        }
+        return ruleIds;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return 编译后的规则
+     */
+    public AlertRule[] getRules() {
+        return rules.clone();
+    }
+
+    /**
+     * @return 触发的告警数
+     */
+    public long getAlertCount() {
+        return alerts.get();
+    }
+
+    /**
+     * @return 当前的(主题, 设备)序列数
+     */
+    public long seriesCount() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.size;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return 因序列数超限没有检查的读数
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * 一个分片: (主题, 设备id)到序列下标的开放寻址表，和按下标排列的检查状态
+     */
+    private final class Stripe {
+        //表中存序列下标+1，0表示空位；装载因子不超过0.5
+        int[] slots = new int[INITIAL_CAPACITY * 2];
+        String[] topics = new String[INITIAL_CAPACITY];
+        long[] devices = new long[INITIAL_CAPACITY];
+        boolean[] hasLast = new boolean[INITIAL_CAPACITY];
+        double[] lastValue = new double[INITIAL_CAPACITY];
+        long[] lastTimestamp = new long[INITIAL_CAPACITY];
+        //序列的连续违反计数在runs中的起点，每个序列占它的主题适用的规则数个位置，
+        //达到consecutive后不再增加，直到恢复正常
+        int[] offsets = new int[INITIAL_CAPACITY];
+        int[] runs = new int[INITIAL_CAPACITY];
+        int runsUsed;
+        int size;
+
+        /**
+         * @return 序列下标，没有时分配一个，序列数超限时返回-1
+         */
+        int index(String topic, long deviceId, long hash, int ruleCount) {
+            int mask = slots.length - 1;
+            int i = (int) hash & mask;
+            for (int slot; (slot = slots[i]) != 0; i = (i + 1) & mask) {
+                int s = slot - 1;
+                if (devices[s] == deviceId && topics[s].equals(topic)) {
+                    return s;
+                }
+            }
+            if ((long) size * STRIPES >= maxSeries) {
+                return -1;
+            }
+            if (size == topics.length) {
+                grow();
+                return index(topic, deviceId, hash, ruleCount);
+            }
+            if (runsUsed + ruleCount > runs.length) {
+                runs = Arrays.copyOf(runs, Math.max(runs.length * 2, runsUsed + ruleCount));
+            }
+            int s = size++;
+            topics[s] = topic;
+            devices[s] = deviceId;
+            offsets[s] = runsUsed;
+            runsUsed += ruleCount;
+            slots[i] = s + 1;
+            return s;
+        }
+
+        private void grow() {
+            int capacity = topics.length * 2;
+            topics = Arrays.copyOf(topics, capacity);
+            devices = Arrays.copyOf(devices, capacity);
+            hasLast = Arrays.copyOf(hasLast, capacity);
+            lastValue = Arrays.copyOf(lastValue, capacity);
+            lastTimestamp = Arrays.copyOf(lastTimestamp, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            slots = new int[capacity * 2];
+            int mask = slots.length - 1;
+            for (int s = 0; s < size; s++) {
+                int i = (int) mix(devices[s] * 0x9E3779B97F4A7C15L + topics[s].hashCode()) & mask;
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = s + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.homework;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 传感器读数的定长二进制格式(大端)
+ * offset 0  magic(1) 0xFD
+ * offset 1  version(1)
+ * offset 2  length(1)    本条记录的字节数，版本1为28
+ * offset 3  valueType(1) 1为long，2为double
+ * offset 4  deviceId(8)
+ * offset 12 timestamp(8) 毫秒
+ * offset 20 value(8)
+ * 新版本只能在末尾追加字段并增大length，旧的订阅端按length跳过不认识的字段；
+ * 不兼容的修改必须换magic。一条消息里可以连续放多条记录
+ */
+public final class SensorRecord {
+    public static final byte MAGIC = (byte) 0xFD;
+    public static final byte VERSION = 1;
+    public static final int LENGTH = 28;
+
+    public static final byte TYPE_LONG = 1;
+    public static final byte TYPE_DOUBLE = 2;
+
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 1;
+    static final int LENGTH_OFFSET = 2;
+    static final int TYPE_OFFSET = 3;
+    static final int DEVICE_OFFSET = 4;
+    static final int TIMESTAMP_OFFSET = 12;
+    static final int VALUE_OFFSET = 20;
+
+    private SensorRecord() {
+    }
+
+    /**
+     * 在buf当前位置写入一条double读数
+     */
+    public static void write(ByteBuffer buf, long deviceId, long timestamp, double value) {
+        header(buf, TYPE_DOUBLE, deviceId, timestamp);
+        buf.putDouble(value);
+    }
+
+    /**
+     * 在buf当前位置写入一条long读数
+     */
+    public static void write(ByteBuffer buf, long deviceId, long timestamp, long value) {
+        header(buf, TYPE_LONG, deviceId, timestamp);
+        buf.putLong(value);
+    }
+
+    /**
+     * @return 单条double读数的消息内容
+     */
+    public static byte[] encode(long deviceId, long timestamp, double value) {
+        ByteBuffer buf = ByteBuffer.allocate(LENGTH);
+        write(buf, deviceId, timestamp, value);
+        return buf.array();
+    }
+
+    /**
+     * @return payload是否以传感器记录开头
+     */
+    public static boolean isRecord(byte[] payload) {
+        return payload.length >= LENGTH && payload[MAGIC_OFFSET] == MAGIC
+                && (payload[LENGTH_OFFSET] & 0xFF) >= LENGTH;
+    }
+
+    private static void header(ByteBuffer buf, byte type, long deviceId, long timestamp) {
+        buf.put(MAGIC).put(VERSION).put((byte) LENGTH).put(type).putLong(deviceId).putLong(timestamp);
+    }
+}
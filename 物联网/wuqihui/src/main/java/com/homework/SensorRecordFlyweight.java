@@ -0,0 +1,76 @@
+package com.homework;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 直接在ByteBuffer上读取SensorRecord的享元
+ * 只记录缓冲区和偏移，字段都按绝对位置读取，解析一条记录不创建任何对象；
+ * 一个实例可以用next()依次走过同一条消息里的多条记录。实例不是线程安全的，每个线程各用一个
+ */
+public final class SensorRecordFlyweight {
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    /**
+     * 指向buffer中offset处的记录
+     * @return 该位置是否是完整的、可以读取的记录
+     */
+    public boolean wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        if (offset + SensorRecord.LENGTH > buffer.limit()
+                || buffer.get(offset + SensorRecord.MAGIC_OFFSET) != SensorRecord.MAGIC) {
+            length = 0;
+            return false;
+        }
+        length = buffer.get(offset + SensorRecord.LENGTH_OFFSET) & 0xFF;
+        //比已知版本短的记录不合法，更长的是新版本追加了字段，照样能读
+        if (length < SensorRecord.LENGTH || offset + length > buffer.limit()) {
+            length = 0;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 移到下一条记录
+     * @return 下一条是否是完整的记录
+     */
+    public boolean next() {
+        return length > 0 && wrap(buffer, offset + length);
+    }
+
+    public int version() {
+        return buffer.get(offset + SensorRecord.VERSION_OFFSET) & 0xFF;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte valueType() {
+        return buffer.get(offset + SensorRecord.TYPE_OFFSET);
+    }
+
+    public long deviceId() {
+        return buffer.getLong(offset + SensorRecord.DEVICE_OFFSET);
+    }
+
+    public long timestamp() {
+        return buffer.getLong(offset + SensorRecord.TIMESTAMP_OFFSET);
+    }
+
+    public long longValue() {
+        long raw = buffer.getLong(offset + SensorRecord.VALUE_OFFSET);
+        return valueType() == SensorRecord.TYPE_DOUBLE ? (long) Double.longBitsToDouble(raw) : raw;
+    }
+
+    /**
+     * @return 数值，long类型的读数转换成double
+     */
+    public double doubleValue() {
+        long raw = buffer.getLong(offset + SensorRecord.VALUE_OFFSET);
+        return valueType() == SensorRecord.TYPE_LONG ? (double) raw : Double.longBitsToDouble(raw);
+    }
+}
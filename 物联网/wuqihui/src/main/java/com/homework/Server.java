@@ -1,23 +1,31 @@
 package com.homework;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
-import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.MqttTopic;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import java.io.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class Server {
     //tcp://MQTT安装的服务器地址:MQTT定义的端口号
-    public static final String HOST = "tcp://192.168.1.112:1883";
+    //可以用-Dmqtt.host=tcp://127.0.0.1:1883改成本机的EmbeddedBroker
+    public static final String HOST = System.getProperty("mqtt.host", "tcp://192.168.1.112:1883");
     //定义一个主题
     public static final String TOPIC = "wqhTopic";
     //定义MQTT的ID，可以在MQTT服务配置中指定
     private static final String clientid = "server11";
+    //在途消息的持久化目录
+    public static final String PERSISTENCE_DIR = "mqtt-persistence";
+    //要发送的文件
+    private static final String SEND_FILE = "C:\\Users\\Administrator\\Desktop\\" +
+            "软院学习资料\\物联网\\qch\\send.txt";
 
     private MqttClient client;
     private MqttTopic topic;
@@ -25,14 +33,20 @@ public class Server {
     private String passWord = "123456";
 
     private MqttMessage message;
+    private Reconnector reconnector;
+    //发布的消息数、字节数、送达延迟和重连情况，通过JMX查看
+    private final Metrics metrics = new Metrics(clientid);
+    //发布的消息id，Client据此丢弃重投的重复消息
+    private final AtomicLong messageIds = new AtomicLong(MessageId.randomStart());
 
     /**
      * 构造函数
      * @throws MqttException
      */
     public Server() throws MqttException {
-        // MemoryPersistence设置clientid的保存形式，默认为以内存保存
-        client = new MqttClient(HOST, clientid, new MemoryPersistence());
+        // cleanSession为false，在途的QoS1/QoS2消息保存到磁盘上的映射日志，进程崩溃后重连还能继续投递
+        client = new MqttClient(HOST, clientid, new MappedFilePersistence(PERSISTENCE_DIR));
+        metrics.register();
         connect();
     }
 
@@ -49,10 +63,14 @@ public class Server {
         // 设置会话心跳时间
         options.setKeepAliveInterval(20);
         try {
-            client.setCallback(new PushCallBack());
-            client.connect(options);
-
+            // 断线后自动重连，断线期间发布的消息写到磁盘缓存，重连后按顺序补发
+            reconnector = new Reconnector(client, options, new PushCallBack(),
+                    Executors.newSingleThreadScheduledExecutor(), new DiskSpool(new File(PERSISTENCE_DIR, "spool")));
+            reconnector.setMetrics(metrics);
+            client.setCallback(reconnector);
             topic = client.getTopic(TOPIC);
+            // 在后台连接，服务器不可用时按退避重试；连上后补发缓存的消息，包括上次进程退出时没补发完的
+            reconnector.start();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -67,8 +85,17 @@ public class Server {
      */
     public void publish(MqttTopic topic , MqttMessage message) throws MqttPersistenceException,
             MqttException {
-        MqttDeliveryToken token = topic.publish(message);
+        // 一律交给reconnector: 断线或者缓存还没补发完时进缓存，保证同一主题的消息不乱序
+        long start = System.nanoTime();
+        IMqttDeliveryToken token = reconnector.publish(topic.getName(), message);
+        if (token == null) {
+            metrics.count("publish.buffered", 1);
+            System.out.println("connection is down, message is buffered for resend");
+            return;
+        }
         token.waitForCompletion();
+        metrics.message("published", topic.getName(), message.getPayload().length);
+        metrics.record("publish.deliveryComplete", System.nanoTime() - start);
         System.out.println("message is published completely! "
                 + token.isComplete());
     }
@@ -78,10 +105,15 @@ public class Server {
      * @param args
      * @throws MqttException
      */
-    public static void main(String[] args) throws MqttException, FileNotFoundException, IOException {
+    public static void main(String[] args) throws MqttException, FileNotFoundException, IOException,
+            InterruptedException {
+        if (args.length > 0 && "chunked".equals(args[0])) {
+            // 分块传输模式: chunked [文件路径]，大文件不再整个读入内存
+            sendChunked(args.length > 1 ? args[1] : SEND_FILE);
+            return;
+        }
         Server server = new Server();
-        FileInputStream fis = new FileInputStream("C:\\Users\\Administrator\\Desktop\\" +
-                "软院学习资料\\物联网\\qch\\send.txt");
+        FileInputStream fis = new FileInputStream(SEND_FILE);
         //FileInputStream fis = new FileInputStream("./要发送的文件.txt");
         InputStreamReader isr = new InputStreamReader(fis);
         int n ;
@@ -95,8 +127,34 @@ public class Server {
         server.message = new MqttMessage();
         server.message.setQos(1);
         server.message.setRetained(true);
-        server.message.setPayload(sb.toString().getBytes());
+        // 超过阈值的内容压缩后发送，Client端的DecompressingCallback会透明解压；最后加上消息id用于去重
+        // 不打包发送，内容恰好像一个批时先转义，Client端的UnbatchingCallback会还原
+        byte[] encoded = new PayloadCodec(PayloadCodec.Compression.DEFLATE,
+                PayloadCodec.DEFAULT_THRESHOLD).encode(RecordBatch.escape(sb.toString().getBytes()));
+        server.message.setPayload(MessageId.stamp(server.messageIds.incrementAndGet(), encoded));
         server.publish(server.topic , server.message);
         System.out.println(server.message.isRetained() + "------ratained状态");
     }
+
+    /**
+     *  以分块、可续传的方式发送文件
+     * @param path 文件路径
+     */
+    private static void sendChunked(String path) throws MqttException, IOException, InterruptedException {
+        AsyncPublisher publisher = new AsyncPublisher(
+                new MqttAsyncClient(HOST, clientid + "-file", new MappedFilePersistence(PERSISTENCE_DIR)),
+                AsyncPublisher.DEFAULT_WINDOW);
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(false);
+        options.setUserName("wuqihui");
+        options.setPassword("123456".toCharArray());
+        options.setConnectionTimeout(10);
+        options.setKeepAliveInterval(20);
+        publisher.connect(options);
+        try {
+            new FileChunkSender(publisher, FileChunk.DEFAULT_CHUNK_SIZE).send(new File(path));
+        } finally {
+            publisher.close();
+        }
+    }
 }
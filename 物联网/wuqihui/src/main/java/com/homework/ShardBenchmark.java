@@ -0,0 +1,67 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * ShardedPublisher的吞吐量随连接数变化的测试，连接数从1增加到N
+ * 用法: ShardBenchmark [host] [最大连接数] [消息数] [payload字节数] [qos] [每条连接的窗口] [主题数]
+ * 应该对着本机的broker测，否则测到的主要是网络延迟；host为embedded时在本进程启动EmbeddedBroker
+ */
+public class ShardBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String host = EmbeddedBroker.resolve(args.length > 0 ? args[0] : "tcp://127.0.0.1:1883");
+        int maxConnections = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : 128;
+        int qos = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        int window = args.length > 5 ? Integer.parseInt(args[5]) : AsyncPublisher.DEFAULT_WINDOW;
+        int topicCount = args.length > 6 ? Integer.parseInt(args[6]) : 1024;
+
+        String[] topics = new String[topicCount];
+        for (int i = 0; i < topicCount; i++) {
+            topics[i] = Server.TOPIC + "/bench/" + i;
+        }
+        byte[] payload = new byte[size];
+        double base = 0;
+        for (int n = 1; n <= maxConnections; n++) {
+            double seconds = run(host, n, count, payload, qos, window, topics);
+            double rate = count / seconds;
+            if (n == 1) {
+                base = rate;
+            }
+            System.out.println(String.format("connections=%2d  %d msgs in %.3f s, %.0f msg/s, %.2fx",
+                    n, count, seconds, rate, rate / base));
+        }
+    }
+
+    /**
+     * @return 耗时，单位秒
+     */
+    private static double run(String host, int connections, int count, byte[] payload, int qos, int window,
+                              String[] topics) throws MqttException, InterruptedException {
+        ShardedPublisher publisher = new ShardedPublisher(host, "bench-shard", connections, window, null);
+        publisher.connect(options());
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(qos);
+            publisher.publish(topics[i % topics.length], message);
+        }
+        publisher.flush();
+        long elapsed = System.nanoTime() - start;
+        publisher.close();
+        return elapsed / 1e9;
+    }
+
+    private static MqttConnectOptions options() {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setConnectionTimeout(10);
+        options.setKeepAliveInterval(20);
+        return options;
+    }
+}
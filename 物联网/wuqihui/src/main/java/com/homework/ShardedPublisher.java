@@ -0,0 +1,164 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 把主题分摊到多条连接上的发布器
+ * 单个MqttClient的所有消息都经过同一条TCP连接和同一个Paho发送线程，这里开N条连接，
+ * 每条连接一个AsyncPublisher，用一致性哈希按主题选择连接。同一个主题总是走同一条连接，
+ * 所以单个主题内的顺序不变；增减连接数时只有约1/N的主题换连接
+ */
+public class ShardedPublisher implements Publisher {
+    //每条连接在哈希环上的虚拟节点数，越多分布越均匀
+    public static final int VIRTUAL_NODES = 160;
+
+    private final AsyncPublisher[] shards;
+    //哈希环，points升序，owners[i]是points[i]所属的连接
+    private final int[] points;
+    private final int[] owners;
+
+    /**
+     * 构造函数
+     * @param host 服务器地址
+     * @param clientIdPrefix 客户端id前缀，第i条连接的id为"前缀-i"；为null时随机生成前缀
+     * @param connections 连接数
+     * @param window 每条连接的在途窗口大小
+     * @param persistenceDir 在途消息的持久化目录，为null时只保存在内存中
+     * @throws MqttException
+     */
+    public ShardedPublisher(String host, String clientIdPrefix, int connections, int window,
+                            String persistenceDir) throws MqttException {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections should be positive");
+        }
+        String prefix = clientIdPrefix != null ? clientIdPrefix : MqttAsyncClient.generateClientId();
+        shards = new AsyncPublisher[connections];
+        for (int i = 0; i < connections; i++) {
+            // MappedFilePersistence按客户端id分子目录，所有连接可以共用一个根目录
+            MqttClientPersistence persistence = persistenceDir != null
+                    ? new MappedFilePersistence(persistenceDir) : new MemoryPersistence();
+            shards[i] = new AsyncPublisher(new MqttAsyncClient(host, prefix + "-" + i, persistence), window);
+        }
+        points = new int[connections * VIRTUAL_NODES];
+        owners = new int[points.length];
+        buildRing();
+    }
+
+    /**
+     * 连接所有的服务器连接
+     * @param options 连接设置，所有连接共用
+     * @throws MqttException
+     */
+    public void connect(MqttConnectOptions options) throws MqttException {
+        for (AsyncPublisher shard : shards) {
+            shard.connect(options);
+        }
+    }
+
+    public CompletableFuture<IMqttDeliveryToken> publish(String topic, MqttMessage message)
+            throws MqttException, InterruptedException {
+        return shards[shardOf(topic)].publish(topic, message);
+    }
+
+    /**
+     * @return 该主题所在连接的下标
+     */
+    public int shardOf(String topic) {
+        if (shards.length == 1) {
+            return 0;
+        }
+        int h = hash(topic);
+        int i = Arrays.binarySearch(points, h);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        //超过环上最大的点时回到第一个点
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * 等待所有连接的在途消息完成
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        for (AsyncPublisher shard : shards) {
+            shard.flush();
+        }
+    }
+
+    /**
+     * @return 所有连接在途的消息数
+     */
+    public int inFlight() {
+        int n = 0;
+        for (AsyncPublisher shard : shards) {
+            n += shard.inFlight();
+        }
+        return n;
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+    /**
+     * 等待在途消息完成后断开所有连接
+     * @throws MqttException
+     * @throws InterruptedException
+     */
+    public void close() throws MqttException, InterruptedException {
+        MqttException failure = null;
+        for (AsyncPublisher shard : shards) {
+            try {
+                shard.close();
+            } catch (MqttException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void buildRing() {
+        long[] ring = new long[points.length];
+        for (int i = 0; i < shards.length; i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                long point = hash("shard-" + i + "#" + v);
+                //高32位是环上的位置，低32位是连接下标，排序后一起拆开
+                ring[i * VIRTUAL_NODES + v] = (point << 32) | i;
+            }
+        }
+        Arrays.sort(ring);
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = (int) (ring[i] >> 32);
+            owners[i] = (int) ring[i];
+        }
+    }
+
+    /**
+     * FNV-1a加上murmur3的最终混合，String.hashCode对相近的主题名分布太集中
+     */
+    private static int hash(String s) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
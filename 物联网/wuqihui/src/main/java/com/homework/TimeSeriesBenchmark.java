@@ -0,0 +1,86 @@
+package com.homework;
+
+import java.io.File;
+
+/**
+ * TimeSeriesStore的写入和扫描吞吐量
+ * 多个线程各写一部分主题，每个主题若干设备，时间戳按固定间隔递增并带少量乱序；
+ * 写完后flush，再全量扫描一遍、按时间范围扫描最后1%的数据
+ * 用法: TimeSeriesBenchmark [点数] [主题数] [写线程数] [目录]
+ */
+public class TimeSeriesBenchmark {
+    private static final int DEVICES = 100;
+
+    public static void main(String[] args) throws Exception {
+        final int points = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        final int topics = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final int threads = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        File dir = new File(args.length > 3 ? args[3] : "bench-tsdb");
+        delete(dir);
+        final TimeSeriesStore store = new TimeSeriesStore(dir);
+        final long base = System.currentTimeMillis();
+        final int perThread = points / threads;
+
+        long start = System.nanoTime();
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            writers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            int topic = (i % topics) / threads * threads + index;
+                            long ts = base + i / topics * 10L - (i % 7 == 0 ? 5 : 0);
+                            store.append("sensors/" + (topic % topics), i % DEVICES, ts, i * 0.5);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        store.flush();
+        double writeSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("append %d points in %.3f s, %.0f points/s",
+                perThread * threads, writeSeconds, perThread * threads / writeSeconds));
+
+        final long[] count = new long[1];
+        TimeSeriesStore.Visitor counter = new TimeSeriesStore.Visitor() {
+            public void accept(long deviceId, long timestamp, double value) {
+                count[0]++;
+            }
+        };
+        long end = base + (long) perThread / topics * 10L;
+        start = System.nanoTime();
+        for (String topic : store.topics()) {
+            store.scan(topic, Long.MIN_VALUE, Long.MAX_VALUE, counter);
+        }
+        double scanSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("full scan %d points in %.3f s, %.0f points/s",
+                count[0], scanSeconds, count[0] / scanSeconds));
+
+        count[0] = 0;
+        start = System.nanoTime();
+        for (String topic : store.topics()) {
+            store.scan(topic, end - (end - base) / 100, end, counter);
+        }
+        scanSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("range scan %d points in %.3f s", count[0], scanSeconds));
+        store.close();
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,334 @@
+package com.homework;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * TimeSeriesStore上的时间范围查询
+ * 先用主题过滤器(可以有"+"和"#")在主题表里找出匹配的主题id，再逐个分区剪枝:
+ * 分区的时间范围和[from, to]不重叠的跳过，分区里没有这些主题的跳过，序列的最小/最大时间不重叠的跳过；
+ * 剩下的序列按块切成小段，用fork-join并行扫描，扫描时再按稀疏索引跳过块。
+ * 聚合查询每段算出部分结果再合并，不保存任何读数；原始读数的查询边扫描边回调
+ * 分区里有哪些主题就在内存里，比按主题建Bloom过滤器更准，所以剪枝不用Bloom过滤器
+ */
+public class TimeSeriesQuery {
+    //一个扫描任务最多处理的块数，更大的序列拆成多个任务
+    private static final int SPLIT_BLOCKS = 64;
+
+    private final TimeSeriesStore store;
+    private final ForkJoinPool pool;
+
+    public enum Aggregation {
+        COUNT, SUM, MIN, MAX, AVG
+    }
+
+    /**
+     * 原始读数的回调，会在多个线程中同时调用；一个序列按SPLIT_BLOCKS块分段，段内按写入顺序回调
+     */
+    public interface PointVisitor {
+        void accept(String topic, long deviceId, long timestamp, double value);
+    }
+
+    /**
+     * 构造函数
+     * @param store 时序存储
+     * @param pool 执行扫描的线程池
+     */
+    public TimeSeriesQuery(TimeSeriesStore store, ForkJoinPool pool) {
+        this.store = store;
+        this.pool = pool;
+    }
+
+    /**
+     * 构造函数，使用公共的ForkJoinPool
+     * @param store 时序存储
+     */
+    public TimeSeriesQuery(TimeSeriesStore store) {
+        this(store, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 按主题聚合[from, to]内的读数
+     * @param topicFilter 主题过滤器
+     * @param from 起始时间(含)，毫秒
+     * @param to 结束时间(含)，毫秒
+     * @param aggregation 聚合方式
+     * @return 每个有数据的主题的聚合结果
+     * @throws IOException
+     */
+    public Result query(String topicFilter, long from, long to, Aggregation aggregation) throws IOException {
+        Plan plan = plan(topicFilter, from, to);
+        Map<String, Aggregate> groups = new TreeMap<String, Aggregate>();
+        if (!plan.units.isEmpty()) {
+            try {
+                groups = pool.invoke(new AggregateTask(plan.units, 0, plan.units.size(), from, to));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        Map<String, Double> values = new TreeMap<String, Double>();
+        for (Map.Entry<String, Aggregate> entry : groups.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().value(aggregation));
+        }
+        return new Result(values, plan.scanned, plan.pruned);
+    }
+
+    /**
+     * 流式访问[from, to]内的原始读数
+     * @param topicFilter 主题过滤器
+     * @param from 起始时间(含)，毫秒
+     * @param to 结束时间(含)，毫秒
+     * @param visitor 回调，必须是线程安全的
+     * @throws IOException
+     */
+    public void query(String topicFilter, long from, long to, PointVisitor visitor) throws IOException {
+        Plan plan = plan(topicFilter, from, to);
+        if (plan.units.isEmpty()) {
+            return;
+        }
+        try {
+            pool.invoke(new StreamTask(plan.units, 0, plan.units.size(), from, to, visitor));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 剪枝，把剩下的序列切成扫描单元
+     */
+    private Plan plan(String topicFilter, long from, long to) throws IOException {
+        List<String> topics = store.topics();
+        List<Integer> matched = new ArrayList<Integer>();
+        for (int id = 0; id < topics.size(); id++) {
+            if (TopicRouter.matches(topicFilter, topics.get(id))) {
+                matched.add(id);
+            }
+        }
+        Plan plan = new Plan();
+        if (matched.isEmpty()) {
+            return plan;
+        }
+        Collection<TimeSeriesStore.Partition> partitions = store.partitions(from, to);
+        for (TimeSeriesStore.Partition p : partitions) {
+            boolean used = false;
+            if (p.end > from) {
+                for (int id : matched) {
+                    TimeSeriesStore.Series series = p.series(id, false);
+                    if (series == null || series.maxTs() < from || series.minTs() > to) {
+                        continue;
+                    }
+                    used = true;
+                    int blocks = series.blocks();
+                    for (int b = 0; b < blocks; b += SPLIT_BLOCKS) {
+                        plan.units.add(new Unit(topics.get(id), series, b, Math.min(blocks, b + SPLIT_BLOCKS)));
+                    }
+                }
+            }
+            if (used) {
+                plan.scanned++;
+            } else {
+                plan.pruned++;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * 查询结果
+     */
+    public static final class Result {
+        private final Map<String, Double> values;
+        private final int scannedSegments;
+        private final int prunedSegments;
+
+        Result(Map<String, Double> values, int scannedSegments, int prunedSegments) {
+            this.values = values;
+            this.scannedSegments = scannedSegments;
+            this.prunedSegments = prunedSegments;
+        }
+
+        /**
+         * @return 主题到聚合值，按主题排序
+         */
+        public Map<String, Double> values() {
+            return values;
+        }
+
+        /**
+         * @return 扫描过的分区数
+         */
+        public int getScannedSegments() {
+            return scannedSegments;
+        }
+
+        /**
+         * @return 时间范围重叠、但按主题或序列时间范围剪掉的分区数
+         */
+        public int getPrunedSegments() {
+            return prunedSegments;
+        }
+
+        public String toString() {
+            return values + " (scanned " + scannedSegments + ", pruned " + prunedSegments + ")";
+        }
+    }
+
+    /**
+     * 可以合并的部分聚合结果
+     */
+    static final class Aggregate implements TimeSeriesStore.Visitor {
+        long count;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        public void accept(long deviceId, long timestamp, double value) {
+            count++;
+            sum += value;
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        void merge(Aggregate other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        double value(Aggregation aggregation) {
+            switch (aggregation) {
+                case COUNT:
+                    return count;
+                case SUM:
+                    return sum;
+                case MIN:
+                    return min;
+                case MAX:
+                    return max;
+                default:
+                    return count == 0 ? Double.NaN : sum / count;
+            }
+        }
+    }
+
+    private static final class Plan {
+        final List<Unit> units = new ArrayList<Unit>();
+        int scanned;
+        int pruned;
+    }
+
+    /**
+     * 一个序列中连续的若干块
+     */
+    private static final class Unit {
+        final String topic;
+        final TimeSeriesStore.Series series;
+        final int firstBlock;
+        final int endBlock;
+
+        Unit(String topic, TimeSeriesStore.Series series, int firstBlock, int endBlock) {
+            this.topic = topic;
+            this.series = series;
+            this.firstBlock = firstBlock;
+            this.endBlock = endBlock;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class AggregateTask extends RecursiveTask<Map<String, Aggregate>> {
+        private final List<Unit> units;
+        private final int lo;
+        private final int hi;
+        private final long from;
+        private final long to;
+
+        AggregateTask(List<Unit> units, int lo, int hi, long from, long to) {
+            this.units = units;
+            this.lo = lo;
+            this.hi = hi;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected Map<String, Aggregate> compute() {
+            if (hi - lo == 1) {
+                Unit unit = units.get(lo);
+                Aggregate aggregate = new Aggregate();
+                try {
+                    unit.series.scan(from, to, unit.firstBlock, unit.endBlock, aggregate);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                Map<String, Aggregate> result = new TreeMap<String, Aggregate>();
+                if (aggregate.count > 0) {
+                    result.put(unit.topic, aggregate);
+                }
+                return result;
+            }
+            int mid = (lo + hi) >>> 1;
+            AggregateTask left = new AggregateTask(units, lo, mid, from, to);
+            left.fork();
+            Map<String, Aggregate> result = new AggregateTask(units, mid, hi, from, to).compute();
+            for (Map.Entry<String, Aggregate> entry : left.join().entrySet()) {
+                Aggregate existing = result.get(entry.getKey());
+                if (existing == null) {
+                    result.put(entry.getKey(), entry.getValue());
+                } else {
+                    existing.merge(entry.getValue());
+                }
+            }
+            return result;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class StreamTask extends RecursiveAction {
+        private final List<Unit> units;
+        private final int lo;
+        private final int hi;
+        private final long from;
+        private final long to;
+        private final PointVisitor visitor;
+
+        StreamTask(List<Unit> units, int lo, int hi, long from, long to, PointVisitor visitor) {
+            this.units = units;
+            this.lo = lo;
+            this.hi = hi;
+            this.from = from;
+            this.to = to;
+            this.visitor = visitor;
+        }
+
+        protected void compute() {
+            if (hi - lo == 1) {
+                final Unit unit = units.get(lo);
+                try {
+                    unit.series.scan(from, to, unit.firstBlock, unit.endBlock, new TimeSeriesStore.Visitor() {
+                        public void accept(long deviceId, long timestamp, double value) {
+                            visitor.accept(unit.topic, deviceId, timestamp, value);
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new StreamTask(units, lo, mid, from, to, visitor),
+                    new StreamTask(units, mid, hi, from, to, visitor));
+        }
+    }
+}
@@ -0,0 +1,744 @@
+package com.homework;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * 只追加的时序数据存储
+ * 数据按时间分区，每个分区一个目录(名字是"起始毫秒-结束毫秒")，分区里每个主题一个序列，
+ * 序列由BLOCK_ROWS个点一块的压缩块组成，块内时间戳、数值、设备id分列存放，
+ * 块头记录块内的最小、最大时间作为稀疏索引，乱序到达的数据也能按块跳过(格式见Series)。
+ * 主题名到id的对应关系在根目录的topics.log里
+ *
+ * 点到达时就编码进当前块，块写满时用一次positional write追加，不是每个点一次系统调用；
+ * 只有最新的OPEN_PARTITIONS个分区保持文件打开，更早分区的迟到数据写入时再打开。
+ * 读取时映射块文件，在映射区上直接解码，不拷贝到堆里。
+ * 每条块记录带crc，进程崩溃后打开时截掉写了一半的尾部
+ */
+public class TimeSeriesStore {
+    public static final long DEFAULT_PARTITION_MILLIS = 3600000;
+    //稀疏索引的粒度，也是写缓冲区的行数
+    public static final int BLOCK_ROWS = 1024;
+    private static final int OPEN_PARTITIONS = 2;
+    private static final int RECORD_PREFIX = 8;
+    private static final String CATALOG = "topics.log";
+
+    private final File dir;
+    private final long partitionMillis;
+    private final ConcurrentSkipListMap<Long, Partition> partitions = new ConcurrentSkipListMap<Long, Partition>();
+    private final ConcurrentHashMap<String, Integer> topicIds = new ConcurrentHashMap<String, Integer>();
+    //按id排列的主题名，只在synchronized(topicNames)中访问
+    private final List<String> topicNames = new ArrayList<String>();
+    private final FileChannel catalog;
+    private long catalogSize;
+    private volatile Partition latest;
+
+    /**
+     * 一个读数的回调
+     */
+    public interface Visitor {
+        void accept(long deviceId, long timestamp, double value);
+    }
+
+    /**
+     * 构造函数，打开或创建存储目录
+     * @param dir 存储目录
+     * @param partitionMillis 新分区覆盖的毫秒数，已有的分区保持原来的范围
+     * @throws IOException
+     */
+    public TimeSeriesStore(File dir, long partitionMillis) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        this.dir = dir;
+        this.partitionMillis = partitionMillis;
+        catalog = new RandomAccessFile(new File(dir, CATALOG), "rw").getChannel();
+        loadCatalog();
+        File[] dirs = dir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.isDirectory() && f.getName().matches("-?\\d+--?\\d+");
+            }
+        });
+        for (File d : dirs) {
+            String name = d.getName();
+            int dash = name.indexOf('-', 1);
+            Partition p = new Partition(Long.parseLong(name.substring(0, dash)),
+                    Long.parseLong(name.substring(dash + 1)), d);
+            p.recover(topicNames.size());
+            partitions.put(p.start, p);
+        }
+        if (!partitions.isEmpty()) {
+            latest = partitions.lastEntry().getValue();
+        }
+    }
+
+    /**
+     * 构造函数，每小时一个分区
+     * @throws IOException
+     */
+    public TimeSeriesStore(File dir) throws IOException {
+        this(dir, DEFAULT_PARTITION_MILLIS);
+    }
+
+    /**
+     * 追加一条读数，可以多线程调用
+     * @throws IOException
+     */
+    public void append(String topic, long deviceId, long timestamp, double value) throws IOException {
+        int id = topicId(topic);
+        partitionFor(timestamp).series(id, true).append(deviceId, timestamp, value);
+    }
+
+    /**
+     * 把所有缓冲区里的读数写到文件，定时调用可以限制崩溃时丢失的数据量
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        for (Partition p : partitions.values()) {
+            p.flush();
+        }
+    }
+
+    /**
+     * 按到达顺序依次访问一个主题在[from, to]内的读数，没有写出的缓冲区会先写出
+     * @throws IOException
+     */
+    public void scan(String topic, long from, long to, Visitor visitor) throws IOException {
+        Integer id = topicIds.get(topic);
+        if (id == null) {
+            return;
+        }
+        for (Partition p : partitions(from, to)) {
+            Series series = p.series(id, false);
+            if (series != null) {
+                series.scan(from, to, visitor);
+            }
+        }
+    }
+
+    /**
+     * @return 所有主题，按第一次写入的顺序
+     */
+    public List<String> topics() {
+        synchronized (topicNames) {
+            return new ArrayList<String>(topicNames);
+        }
+    }
+
+    String topicName(int id) {
+        synchronized (topicNames) {
+            return topicNames.get(id);
+        }
+    }
+
+    /**
+     * @return 和[from, to]有重叠的分区，按时间顺序
+     */
+    Collection<Partition> partitions(long from, long to) {
+        if (from > to) {
+            return new ArrayList<Partition>();
+        }
+        Long first = partitions.floorKey(from);
+        return partitions.subMap(first == null ? from : first, true, to, true).values();
+    }
+
+    /**
+     * 写出所有缓冲区并关闭文件
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        for (Partition p : partitions.values()) {
+            p.seal();
+        }
+        catalog.close();
+    }
+
+    private int topicId(String topic) throws IOException {
+        Integer id = topicIds.get(topic);
+        if (id != null) {
+            return id;
+        }
+        synchronized (topicNames) {
+            id = topicIds.get(topic);
+            if (id != null) {
+                return id;
+            }
+            byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_PREFIX + name.length);
+            CRC32 crc = new CRC32();
+            crc.update(name);
+            buf.putInt(name.length).putInt((int) crc.getValue()).put(name);
+            buf.flip();
+            while (buf.hasRemaining()) {
+                catalog.write(buf, catalogSize + buf.position());
+            }
+            //数据文件按id引用主题，主题必须先落盘
+            catalog.force(false);
+            catalogSize += buf.limit();
+            id = topicNames.size();
+            topicNames.add(topic);
+            topicIds.put(topic, id);
+            return id;
+        }
+    }
+
+    private void loadCatalog() throws IOException {
+        long size = catalog.size();
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        while (buf.hasRemaining() && catalog.read(buf, buf.position()) >= 0) {
+            //继续读
+        }
+        buf.flip();
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= RECORD_PREFIX) {
+            int length = buf.getInt(buf.position());
+            int checksum = buf.getInt(buf.position() + 4);
+            if (length < 0 || length > buf.remaining() - RECORD_PREFIX) {
+                break;
+            }
+            crc.reset();
+            crc.update(buf.array(), buf.position() + RECORD_PREFIX, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            String topic = new String(buf.array(), buf.position() + RECORD_PREFIX, length, StandardCharsets.UTF_8);
+            topicIds.put(topic, topicNames.size());
+            topicNames.add(topic);
+            buf.position(buf.position() + RECORD_PREFIX + length);
+        }
+        catalogSize = buf.position();
+        if (catalogSize < size) {
+            System.out.println("truncated torn tail of " + CATALOG + " at " + catalogSize);
+            catalog.truncate(catalogSize);
+        }
+    }
+
+    private Partition partitionFor(long timestamp) throws IOException {
+        Partition p = latest;
+        if (p != null && timestamp >= p.start && timestamp < p.end) {
+            return p;
+        }
+        Map.Entry<Long, Partition> entry = partitions.floorEntry(timestamp);
+        if (entry != null && timestamp < entry.getValue().end) {
+            return entry.getValue();
+        }
+        synchronized (partitions) {
+            entry = partitions.floorEntry(timestamp);
+            if (entry != null && timestamp < entry.getValue().end) {
+                return entry.getValue();
+            }
+            long start = Math.floorDiv(timestamp, partitionMillis) * partitionMillis;
+            long end = start + partitionMillis;
+            //分区长度改过时不和已有的分区重叠
+            if (entry != null) {
+                start = Math.max(start, entry.getValue().end);
+            }
+            Long next = partitions.higherKey(timestamp);
+            if (next != null) {
+                end = Math.min(end, next);
+            }
+            File d = new File(dir, start + "-" + end);
+            if (!d.isDirectory() && !d.mkdirs()) {
+                throw new IOException("cannot create " + d);
+            }
+            p = new Partition(start, end, d);
+            partitions.put(start, p);
+            if (latest == null || start > latest.start) {
+                latest = p;
+                sealOld();
+            }
+            return p;
+        }
+    }
+
+    /**
+     * 关闭最新的OPEN_PARTITIONS个分区之前的分区的文件
+     */
+    private void sealOld() throws IOException {
+        int open = 0;
+        for (Partition p : partitions.descendingMap().values()) {
+            if (++open > OPEN_PARTITIONS) {
+                p.seal();
+            }
+        }
+    }
+
+    /**
+     * 一个时间分区
+     */
+    static final class Partition {
+        final long start;
+        final long end;
+        final File dir;
+        private final ConcurrentHashMap<Integer, Series> series = new ConcurrentHashMap<Integer, Series>();
+
+        Partition(long start, long end, File dir) {
+            this.start = start;
+            this.end = end;
+            this.dir = dir;
+        }
+
+        Series series(int topicId, boolean create) {
+            Series s = series.get(topicId);
+            if (s == null && create) {
+                Series created = new Series(new File(dir, String.valueOf(topicId)));
+                s = series.putIfAbsent(topicId, created);
+                if (s == null) {
+                    s = created;
+                }
+            }
+            return s;
+        }
+
+        /**
+         * @return 这个分区里有数据的主题id
+         */
+        Collection<Integer> topicIds() {
+            return series.keySet();
+        }
+
+        void flush() throws IOException {
+            for (Series s : series.values()) {
+                s.flush();
+            }
+        }
+
+        void seal() throws IOException {
+            for (Series s : series.values()) {
+                s.seal();
+            }
+        }
+
+        /**
+         * @param topics topics.log中的主题数，id不在其中的数据文件改名为*.orphan，避免之后分配的新主题写进去
+         */
+        void recover(int topics) throws IOException {
+            String[] names = dir.list(new FilenameFilter() {
+                public boolean accept(File d, String name) {
+                    return name.endsWith(".gor");
+                }
+            });
+            for (String name : names) {
+                int id = Integer.parseInt(name.substring(0, name.length() - 4));
+                if (id >= topics) {
+                    System.out.println("no topic for " + new File(dir, name) + ", renamed to *.orphan");
+                    for (String suffix : new String[] {".gor", ".tail"}) {
+                        File file = new File(dir, id + suffix);
+                        file.renameTo(new File(dir, id + suffix + ".orphan"));
+                    }
+                    continue;
+                }
+                Series s = new Series(new File(dir, String.valueOf(id)));
+                s.recover();
+                series.put(id, s);
+            }
+        }
+    }
+
+    /**
+     * 一个分区里一个主题的数据
+     * 主题id.gor是写满的块，每块BLOCK_ROWS个点，一块一条记录:
+     * length(4) crc32(4) index(4) count(4) minTs(8) maxTs(8) gorillaLength(4) gorilla devices
+     * 时间戳和数值用GorillaEncoder编码，设备id记与上一个的差值(zigzag变长整数)，三列在块内分开存放；
+     * 块头的最小、最大时间就是稀疏索引。没写满的块在内存里随点到达逐个编码，flush时写到主题id.tail，
+     * tail有两个槽轮流写，写到一半崩溃时另一个槽还是完整的；块写满后追加到.gor，tail里的旧块按index作废
+     */
+    static final class Series {
+        private static final int BLOCK_HEADER = 28;
+        //一个点编码后最多约18字节，设备id最多10字节
+        private static final int SLOT_SIZE = RECORD_PREFIX + BLOCK_HEADER + BLOCK_ROWS * 30;
+        //一次映射的最大字节数
+        private static final int MAP_BYTES = 256 * 1024 * 1024;
+
+        private final File data;
+        private final File tail;
+        //写入用的文件和编码器，分区关闭后为null
+        private FileChannel dataChannel;
+        private FileChannel tailChannel;
+        private GorillaEncoder encoder;
+        private byte[] devices;
+        private int devicesLength;
+        private long lastDevice;
+        //.gor的长度和写满的块
+        private long dataSize;
+        private int blocks;
+        private long[] blockOffset = new long[16];
+        private long[] blockMin = new long[16];
+        private long[] blockMax = new long[16];
+        //没写满的块
+        private int pending;
+        private long pendingMin;
+        private long pendingMax;
+        private boolean dirty;
+        //最后写入的tail槽，-1表示没有
+        private int tailSlot = -1;
+        private long minTs = Long.MAX_VALUE;
+        private long maxTs = Long.MIN_VALUE;
+
+        Series(File base) {
+            String path = base.getPath();
+            data = new File(path + ".gor");
+            tail = new File(path + ".tail");
+        }
+
+        synchronized void append(long deviceId, long timestamp, double value) throws IOException {
+            if (encoder == null) {
+                open();
+            }
+            add(deviceId, timestamp, value);
+            dirty = true;
+            if (pending == BLOCK_ROWS) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * 把没写满的块写到tail
+         */
+        synchronized void flush() throws IOException {
+            if (!dirty) {
+                return;
+            }
+            ByteBuffer record = pendingRecord();
+            int slot = tailSlot == 0 ? 1 : 0;
+            while (record.hasRemaining()) {
+                tailChannel.write(record, (long) slot * SLOT_SIZE + record.position());
+            }
+            tailSlot = slot;
+            dirty = false;
+        }
+
+        synchronized void seal() throws IOException {
+            if (encoder == null) {
+                return;
+            }
+            flush();
+            dataChannel.close();
+            tailChannel.close();
+            dataChannel = tailChannel = null;
+            encoder = null;
+            devices = null;
+        }
+
+        synchronized long rows() {
+            return (long) blocks * BLOCK_ROWS + pending;
+        }
+
+        synchronized long minTs() {
+            return minTs;
+        }
+
+        synchronized long maxTs() {
+            return maxTs;
+        }
+
+        /**
+         * @return 块数，包括没写满的块
+         */
+        synchronized int blocks() {
+            return blocks + (pending > 0 ? 1 : 0);
+        }
+
+        /**
+         * 访问[from, to]内的读数，只在取快照时加锁，访问期间不阻塞写入
+         */
+        void scan(long from, long to, Visitor visitor) throws IOException {
+            scan(from, to, 0, Integer.MAX_VALUE, visitor);
+        }
+
+        /**
+         * 只访问第firstBlock块(含)到第endBlock块(不含)之间的读数，可以把一个大序列分给多个线程
+         */
+        void scan(long from, long to, int firstBlock, int endBlock, Visitor visitor) throws IOException {
+            int end;
+            long[] offsets;
+            long[] mins;
+            long[] maxs;
+            ByteBuffer partial = null;
+            synchronized (this) {
+                if (maxTs < from || minTs > to) {
+                    return;
+                }
+                end = Math.min(endBlock, blocks);
+                if (firstBlock < end) {
+                    offsets = Arrays.copyOfRange(blockOffset, firstBlock, end + 1);
+                    if (end == blocks) {
+                        offsets[end - firstBlock] = dataSize;
+                    }
+                    mins = Arrays.copyOfRange(blockMin, firstBlock, end);
+                    maxs = Arrays.copyOfRange(blockMax, firstBlock, end);
+                } else {
+                    offsets = mins = maxs = new long[0];
+                }
+                if (endBlock > blocks && firstBlock <= blocks && pending > 0
+                        && pendingMax >= from && pendingMin <= to) {
+                    partial = encoder != null ? pendingRecord() : readTail(tailSlot);
+                }
+            }
+            GorillaDecoder decoder = new GorillaDecoder();
+            if (mins.length > 0) {
+                RandomAccessFile file = new RandomAccessFile(data, "r");
+                try {
+                    int b = 0;
+                    while (b < mins.length) {
+                        if (maxs[b] < from || mins[b] > to) {
+                            b++;
+                            continue;
+                        }
+                        //映射从b开始、不超过MAP_BYTES的连续若干块
+                        int last = b;
+                        while (last + 1 < mins.length && offsets[last + 2] - offsets[b] <= MAP_BYTES) {
+                            last++;
+                        }
+                        MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                offsets[b], offsets[last + 1] - offsets[b]);
+                        for (int i = b; i <= last; i++) {
+                            if (maxs[i] >= from && mins[i] <= to) {
+                                decode(map, (int) (offsets[i] - offsets[b]), decoder, from, to, visitor);
+                            }
+                        }
+                        b = last + 1;
+                    }
+                } finally {
+                    file.close();
+                }
+            }
+            if (partial != null) {
+                decode(partial, 0, decoder, from, to, visitor);
+            }
+        }
+
+        /**
+         * 解码offset处的一条块记录
+         */
+        private static void decode(ByteBuffer buf, int offset, GorillaDecoder decoder, long from, long to,
+                                   Visitor visitor) {
+            int body = offset + RECORD_PREFIX;
+            int count = buf.getInt(body + 4);
+            int gorillaLength = buf.getInt(body + 24);
+            decoder.reset(buf, body + BLOCK_HEADER, count);
+            int position = body + BLOCK_HEADER + gorillaLength;
+            long device = 0;
+            while (decoder.next()) {
+                long zigzag = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = buf.get(position++);
+                    zigzag |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                device += (zigzag >>> 1) ^ -(zigzag & 1);
+                long timestamp = decoder.timestamp();
+                if (timestamp >= from && timestamp <= to) {
+                    visitor.accept(device, timestamp, decoder.value());
+                }
+            }
+        }
+
+        /**
+         * 读出写满的块，截掉崩溃时写了一半的尾部，再从tail找回没写满的块
+         */
+        void recover() throws IOException {
+            long size = data.length();
+            if (size > 0) {
+                RandomAccessFile file = new RandomAccessFile(data, "rw");
+                try {
+                    long offset = 0;
+                    while (offset < size) {
+                        ByteBuffer record = readRecord(file.getChannel(), offset, size - offset);
+                        if (record == null || record.getInt(RECORD_PREFIX) != blocks
+                                || record.getInt(RECORD_PREFIX + 4) != BLOCK_ROWS) {
+                            break;
+                        }
+                        addBlock(offset, record.getLong(RECORD_PREFIX + 8), record.getLong(RECORD_PREFIX + 16));
+                        offset += record.limit();
+                    }
+                    if (offset < size) {
+                        System.out.println("truncated torn tail of " + data.getPath() + " at " + offset);
+                        file.getChannel().truncate(offset);
+                    }
+                    dataSize = offset;
+                } finally {
+                    file.close();
+                }
+            }
+            //两个槽里属于当前块、点数多的那个是最后写的
+            ByteBuffer best = null;
+            for (int slot = 0; slot < 2; slot++) {
+                ByteBuffer record = readTail(slot);
+                if (record != null && record.getInt(RECORD_PREFIX) == blocks
+                        && (best == null || record.getInt(RECORD_PREFIX + 4) > best.getInt(RECORD_PREFIX + 4))) {
+                    best = record;
+                    tailSlot = slot;
+                }
+            }
+            if (best != null) {
+                pending = best.getInt(RECORD_PREFIX + 4);
+                pendingMin = best.getLong(RECORD_PREFIX + 8);
+                pendingMax = best.getLong(RECORD_PREFIX + 16);
+                minTs = Math.min(minTs, pendingMin);
+                maxTs = Math.max(maxTs, pendingMax);
+            }
+        }
+
+        private void open() throws IOException {
+            dataChannel = new RandomAccessFile(data, "rw").getChannel();
+            tailChannel = new RandomAccessFile(tail, "rw").getChannel();
+            encoder = new GorillaEncoder(BLOCK_ROWS * 4);
+            devices = new byte[BLOCK_ROWS * 2];
+            devicesLength = 0;
+            lastDevice = 0;
+            if (pending > 0) {
+                //重新编码tail里没写满的块，之后接着追加
+                ByteBuffer record = readTail(tailSlot);
+                final int count = pending;
+                pending = 0;
+                decode(record, 0, new GorillaDecoder(), Long.MIN_VALUE, Long.MAX_VALUE, new Visitor() {
+                    public void accept(long deviceId, long timestamp, double value) {
+                        add(deviceId, timestamp, value);
+                    }
+                });
+                if (pending != count) {
+                    throw new IOException("cannot restore " + tail);
+                }
+            }
+        }
+
+        private void add(long deviceId, long timestamp, double value) {
+            encoder.add(timestamp, value);
+            long delta = deviceId - lastDevice;
+            long zigzag = (delta << 1) ^ (delta >> 63);
+            if (devicesLength + 10 > devices.length) {
+                devices = Arrays.copyOf(devices, devices.length * 2);
+            }
+            while ((zigzag & ~0x7FL) != 0) {
+                devices[devicesLength++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            devices[devicesLength++] = (byte) zigzag;
+            lastDevice = deviceId;
+            if (pending == 0) {
+                pendingMin = timestamp;
+                pendingMax = timestamp;
+            } else {
+                pendingMin = Math.min(pendingMin, timestamp);
+                pendingMax = Math.max(pendingMax, timestamp);
+            }
+            pending++;
+            minTs = Math.min(minTs, timestamp);
+            maxTs = Math.max(maxTs, timestamp);
+        }
+
+        /**
+         * 把写满的块追加到.gor，tail里的旧内容随之作废
+         */
+        private void writeBlock() throws IOException {
+            ByteBuffer record = pendingRecord();
+            int length = record.limit();
+            while (record.hasRemaining()) {
+                dataChannel.write(record, dataSize + record.position());
+            }
+            addBlock(dataSize, pendingMin, pendingMax);
+            dataSize += length;
+            encoder.reset();
+            devicesLength = 0;
+            lastDevice = 0;
+            pending = 0;
+            dirty = false;
+        }
+
+        private void addBlock(long offset, long min, long max) {
+            if (blocks == blockOffset.length) {
+                blockOffset = Arrays.copyOf(blockOffset, blocks * 2);
+                blockMin = Arrays.copyOf(blockMin, blocks * 2);
+                blockMax = Arrays.copyOf(blockMax, blocks * 2);
+            }
+            blockOffset[blocks] = offset;
+            blockMin[blocks] = min;
+            blockMax[blocks] = max;
+            blocks++;
+            minTs = Math.min(minTs, min);
+            maxTs = Math.max(maxTs, max);
+        }
+
+        /**
+         * @return 当前没写满的块的记录
+         */
+        private ByteBuffer pendingRecord() {
+            int gorillaLength = encoder.size();
+            int body = BLOCK_HEADER + gorillaLength + devicesLength;
+            ByteBuffer record = ByteBuffer.allocate(RECORD_PREFIX + body);
+            record.putInt(body).putInt(0);
+            record.putInt(blocks).putInt(pending).putLong(pendingMin).putLong(pendingMax).putInt(gorillaLength);
+            encoder.copyTo(record.array(), record.position());
+            record.position(record.position() + gorillaLength);
+            record.put(devices, 0, devicesLength);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), RECORD_PREFIX, body);
+            record.putInt(4, (int) crc.getValue());
+            record.flip();
+            return record;
+        }
+
+        private ByteBuffer readTail(int slot) throws IOException {
+            if (slot < 0 || !tail.exists()) {
+                return null;
+            }
+            RandomAccessFile file = new RandomAccessFile(tail, "r");
+            try {
+                long offset = (long) slot * SLOT_SIZE;
+                return readRecord(file.getChannel(), offset, Math.min(SLOT_SIZE, file.length() - offset));
+            } finally {
+                file.close();
+            }
+        }
+
+        /**
+         * @return offset处长度和crc都正确的一条记录，从0开始；不完整或损坏时返回null
+         */
+        private static ByteBuffer readRecord(FileChannel channel, long offset, long available) throws IOException {
+            if (available < RECORD_PREFIX + BLOCK_HEADER) {
+                return null;
+            }
+            ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX);
+            readFully(channel, prefix, offset);
+            int body = prefix.getInt(0);
+            if (body < BLOCK_HEADER || body > available - RECORD_PREFIX) {
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_PREFIX + body);
+            readFully(channel, record, offset);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), RECORD_PREFIX, body);
+            if ((int) crc.getValue() != record.getInt(4)) {
+                return null;
+            }
+            record.flip();
+            return record;
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) < 0) {
+                    throw new IOException("unexpected end of file");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按主题过滤器把消息分发给处理器的路由
+ * 过滤器按层级存成一棵字典树，"+"和"#"各是一个特殊子节点，匹配一个主题只需沿层级走一遍，
+ * 和注册了多少过滤器无关；重复出现的主题直接命中缓存，不再拆分层级。
+ * 没有任何处理器匹配的消息交给fallback回调
+ */
+public class TopicRouter implements MqttCallback {
+    //缓存的主题数上限，超过后整体清空
+    private static final int CACHE_LIMIT = 100000;
+    private static final IMqttMessageListener[] NONE = new IMqttMessageListener[0];
+
+    private final MqttCallback fallback;
+    private final Node root = new Node();
+    //处理器变化的次数，缓存的结果带着计算前读到的版本，和当前版本不同时作废，
+    //所以按旧字典树算出的结果即使在处理器变化之后才放进缓存也不会被用到
+    private volatile int version;
+    private final ConcurrentHashMap<String, Cached> cache = new ConcurrentHashMap<String, Cached>();
+
+    /**
+     * 构造函数
+     * @param fallback 没有匹配的消息和连接事件交给它处理，可以为null
+     */
+    public TopicRouter(MqttCallback fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * 注册处理器
+     * @param filter 主题过滤器，可以包含"+"和"#"
+     * @param handler 处理器
+     * @throws IllegalArgumentException 过滤器不合法
+     */
+    public synchronized void add(String filter, IMqttMessageListener handler) {
+        String[] levels = split(filter);
+        validate(filter, levels);
+        Node node = root;
+        for (String level : levels) {
+            node = node.child(level, true);
+        }
+        IMqttMessageListener[] handlers = Arrays.copyOf(node.handlers, node.handlers.length + 1);
+        handlers[handlers.length - 1] = handler;
+        node.handlers = handlers;
+        version++;
+        cache.clear();
+    }
+
+    /**
+     * 注销处理器
+     */
+    public synchronized void remove(String filter, IMqttMessageListener handler) {
+        Node node = root;
+        for (String level : split(filter)) {
+            node = node.child(level, false);
+            if (node == null) {
+                return;
+            }
+        }
+        List<IMqttMessageListener> handlers = new ArrayList<IMqttMessageListener>(Arrays.asList(node.handlers));
+        if (handlers.remove(handler)) {
+            node.handlers = handlers.toArray(NONE);
+            version++;
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return 匹配该主题的所有处理器
+     */
+    public IMqttMessageListener[] match(String topic) {
+        int current = version;
+        Cached cached = cache.get(topic);
+        if (cached != null && cached.version == current) {
+            return cached.handlers;
+        }
+        List<IMqttMessageListener> found = new ArrayList<IMqttMessageListener>();
+        String[] levels = split(topic);
+        //以$开头的系统主题不匹配第一层的通配符
+        collect(root, levels, 0, !topic.startsWith("$"), found);
+        IMqttMessageListener[] handlers = found.isEmpty() ? NONE : found.toArray(NONE);
+        if (cache.size() >= CACHE_LIMIT) {
+            cache.clear();
+        }
+        cache.put(topic, new Cached(current, handlers));
+        return handlers;
+    }
+
+    public void connectionLost(Throwable cause) {
+        if (fallback != null) {
+            fallback.connectionLost(cause);
+        }
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        if (fallback != null) {
+            fallback.deliveryComplete(token);
+        }
+    }
+
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        IMqttMessageListener[] handlers = match(topic);
+        if (handlers.length == 0) {
+            if (fallback != null) {
+                fallback.messageArrived(topic, message);
+            }
+            return;
+        }
+        for (IMqttMessageListener handler : handlers) {
+            handler.messageArrived(topic, message);
+        }
+    }
+
+    /**
+     * @return 主题是否匹配过滤器
+     */
+    public static boolean matches(String filter, String topic) {
+        String[] f = split(filter);
+        String[] t = split(topic);
+        for (int i = 0; i < f.length; i++) {
+            if ("#".equals(f[i])) {
+                return i > 0 || !topic.startsWith("$");
+            }
+            if (i >= t.length || (!"+".equals(f[i]) && !f[i].equals(t[i]))) {
+                return false;
+            }
+            if (i == 0 && "+".equals(f[i]) && topic.startsWith("$")) {
+                return false;
+            }
+        }
+        return f.length == t.length;
+    }
+
+    private static void collect(Node node, String[] levels, int depth, boolean wildcards,
+                                List<IMqttMessageListener> found) {
+        //"#"同时匹配父层本身，例如"a/#"匹配"a"
+        Node hash = wildcards ? node.hash : null;
+        if (hash != null) {
+            found.addAll(Arrays.asList(hash.handlers));
+        }
+        if (depth == levels.length) {
+            found.addAll(Arrays.asList(node.handlers));
+            return;
+        }
+        Node exact = node.children.get(levels[depth]);
+        if (exact != null) {
+            collect(exact, levels, depth + 1, true, found);
+        }
+        Node plus = wildcards ? node.plus : null;
+        if (plus != null) {
+            collect(plus, levels, depth + 1, true, found);
+        }
+    }
+
+    private static void validate(String filter, String[] levels) {
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.indexOf('#') >= 0 && (!"#".equals(level) || i != levels.length - 1)) {
+                throw new IllegalArgumentException("invalid topic filter: " + filter);
+            }
+            if (level.indexOf('+') >= 0 && !"+".equals(level)) {
+                throw new IllegalArgumentException("invalid topic filter: " + filter);
+            }
+        }
+    }
+
+    /**
+     * 按"/"拆分层级，不用正则，空层级也保留
+     */
+    static String[] split(String topic) {
+        int count = 1;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                count++;
+            }
+        }
+        String[] levels = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            int end = topic.indexOf('/', start);
+            levels[i] = topic.substring(start, end);
+            start = end + 1;
+        }
+        levels[count - 1] = topic.substring(start);
+        return levels;
+    }
+
+    /**
+     * 缓存的匹配结果和计算它时的版本
+     */
+    private static final class Cached {
+        final int version;
+        final IMqttMessageListener[] handlers;
+
+        Cached(int version, IMqttMessageListener[] handlers) {
+            this.version = version;
+            this.handlers = handlers;
+        }
+    }
+
+    /**
+     * 字典树的节点
+     */
+    private static class Node {
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+        volatile Node plus;
+        volatile Node hash;
+        volatile IMqttMessageListener[] handlers = NONE;
+
+        Node child(String level, boolean create) {
+            if ("+".equals(level)) {
+                if (plus == null && create) {
+                    plus = new Node();
+                }
+                return plus;
+            }
+            if ("#".equals(level)) {
+                if (hash == null && create) {
+                    hash = new Node();
+                }
+                return hash;
+            }
+            Node node = children.get(level);
+            if (node == null && create) {
+                node = new Node();
+                children.put(level, node);
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把BatchingPublisher打包的消息拆成单条记录再交给后面的回调，普通消息原样传递
+ * 损坏的批整条丢弃并计数，一条记录也不投递
+ */
+public class UnbatchingCallback implements MqttCallback {
+    private final MqttCallback delegate;
+    private final AtomicLong corrupted = new AtomicLong();
+
+    /**
+     * 构造函数
+     * @param delegate 处理单条记录的回调
+     */
+    public UnbatchingCallback(MqttCallback delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * 把丢弃的损坏批数注册为指标
+     */
+    public void setMetrics(Metrics metrics) {
+        metrics.gauge("batch.corrupted", new Metrics.Gauge() {
+            public long get() {
+                return getCorruptedCount();
+            }
+        });
+    }
+
+    public void connectionLost(Throwable cause) {
+        delegate.connectionLost(cause);
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        delegate.deliveryComplete(token);
+    }
+
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        byte[] payload = message.getPayload();
+        if (!RecordBatch.isBatch(payload)) {
+            delegate.messageArrived(topic, message);
+            return;
+        }
+        RecordBatch.Reader reader;
+        try {
+            reader = new RecordBatch.Reader(payload);
+        } catch (IllegalArgumentException e) {
+            corrupted.incrementAndGet();
+            System.out.println("丢弃损坏的批 : 主题" + topic + " " + e.getMessage());
+            return;
+        }
+        while (reader.hasNext()) {
+            MqttMessage record = new MqttMessage(reader.next());
+            record.setQos(message.getQos());
+            record.setRetained(message.isRetained());
+            delegate.messageArrived(topic, record);
+        }
+    }
+
+    /**
+     * @return 丢弃的损坏批数
+     */
+    public long getCorruptedCount() {
+        return corrupted.get();
+    }
+}
@@ -0,0 +1,353 @@
+package com.homework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 接收读数时按主题增量计算的窗口聚合(count、min、max、sum)
+ * 窗口按事件时间对齐，长度size、步长slide，size等于slide时是滚动窗口，否则是滑动窗口(size必须是slide的整数倍)。
+ * 每个主题的读数先按slide切成小段(pane)累加，窗口关闭时把它包含的size/slide个小段合并后交给Sink，
+ * 所以一条读数只更新一个小段，和窗口重叠多少无关。
+ *
+ * 一个主题的水位线是它见过的最大时间减去allowedLateness，窗口结束时间不超过水位线时关闭；
+ * 迟到的读数只要还有没关闭的窗口包含它就计入，否则丢弃并计数。收到读数时窗口按事件时间在add中关闭，
+ * 一段时间没有读数的主题由expire假设事件时间随墙上时钟前进，照样只关闭结束时间不超过水位线的窗口，
+ * 窗口都关闭后回收这个主题，所以同时活跃的主题数不超过maxSeries，超出的主题的读数丢弃。
+ *
+ * 所有主题的小段存在几个连续的基本类型数组里，每个主题占一段固定长度的环，
+ * 环长是size/slide加上allowedLateness能跨越的小段数，内存只和活跃主题数有关
+ */
+public class WindowedRollup {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final String name;
+    private final long size;
+    private final long slide;
+    private final long allowedLateness;
+    private final int maxSeries;
+    private final Sink sink;
+    //一个窗口包含的小段数，每个主题的环长
+    private final int panes;
+    private final int ring;
+
+    //小段，第s个主题占[s*ring, (s+1)*ring)，按小段序号对ring取模定位
+    private final long[] paneIds;
+    private final long[] counts;
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[] sums;
+    //每个主题: 下一个要关闭的窗口的最后一个小段序号、见过的最大时间、最后一条读数到达的墙上时间、非空小段数
+    private final long[] nextEmit;
+    private final long[] maxTs;
+    private final long[] arrived;
+    private final int[] live;
+    private final String[] topics;
+    private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+    private final int[] free;
+    private int freeCount;
+
+    private final AtomicLong late = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong emitted = new AtomicLong();
+    //持有锁时关闭的窗口，释放锁后再交给Sink
+    private final ArrayList<Rollup> closed = new ArrayList<Rollup>();
+
+    /**
+     * 窗口关闭时的回调，在add或expire的调用线程里调用，调用时不持有锁
+     */
+    public interface Sink {
+        void onRollup(String name, String topic, long windowStart, long windowEnd,
+                      long count, double min, double max, double sum);
+    }
+
+    /**
+     * 构造函数
+     * @param name 名字，比如"1m"，交给Sink区分不同的窗口
+     * @param size 窗口长度，毫秒
+     * @param slide 窗口步长，毫秒，等于size时是滚动窗口
+     * @param allowedLateness 允许迟到的时间，毫秒
+     * @param maxSeries 同时活跃的主题数上限
+     * @param sink 窗口关闭时的回调
+     * @throws IllegalArgumentException 参数不合法
+     */
+    public WindowedRollup(String name, long size, long slide, long allowedLateness, int maxSeries, Sink sink) {
+        if (slide <= 0 || size < slide || size % slide != 0) {
+            throw new IllegalArgumentException("size should be a positive multiple of slide");
+        }
+        if (allowedLateness < 0 || maxSeries <= 0) {
+            throw new IllegalArgumentException("allowedLateness and maxSeries should not be negative");
+        }
+        this.name = name;
+        this.size = size;
+        this.slide = slide;
+        this.allowedLateness = allowedLateness;
+        this.maxSeries = maxSeries;
+        this.sink = sink;
+        this.panes = (int) (size / slide);
+        this.ring = panes + (int) ((allowedLateness + slide - 1) / slide) + 2;
+        int cells = Math.multiplyExact(maxSeries, ring);
+        paneIds = new long[cells];
+        Arrays.fill(paneIds, EMPTY);
+        counts = new long[cells];
+        mins = new double[cells];
+        maxs = new double[cells];
+        sums = new double[cells];
+        nextEmit = new long[maxSeries];
+        maxTs = new long[maxSeries];
+        arrived = new long[maxSeries];
+        live = new int[maxSeries];
+        topics = new String[maxSeries];
+        free = new int[maxSeries];
+        for (int i = 0; i < maxSeries; i++) {
+            free[i] = maxSeries - 1 - i;
+        }
+        freeCount = maxSeries;
+    }
+
+    /**
+     * 构造函数，滚动窗口
+     */
+    public WindowedRollup(String name, long size, long allowedLateness, int maxSeries, Sink sink) {
+        this(name, size, size, allowedLateness, maxSeries, sink);
+    }
+
+    /**
+     * 记录活跃主题数、丢弃的迟到读数和输出的窗口数
+     */
+    public void setMetrics(Metrics metrics) {
+        metrics.gauge("rollup." + name + ".series", new Metrics.Gauge() {
+            public long get() {
+                return activeSeries();
+            }
+        });
+        metrics.gauge("rollup." + name + ".late", new Metrics.Gauge() {
+            public long get() {
+                return getLateCount();
+            }
+        });
+        metrics.gauge("rollup." + name + ".rejected", new Metrics.Gauge() {
+            public long get() {
+                return getRejectedCount();
+            }
+        });
+        metrics.gauge("rollup." + name + ".emitted", new Metrics.Gauge() {
+            public long get() {
+                return getEmittedCount();
+            }
+        });
+    }
+
+    /**
+     * 累加一条读数，可能关闭这个主题的若干窗口
+     * @param topic 主题
+     * @param timestamp 毫秒时间戳
+     * @param value 数值，NaN忽略
+     */
+    public void add(String topic, long timestamp, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        List<Rollup> out;
+        synchronized (this) {
+            accumulate(topic, timestamp, value);
+            out = takeClosed();
+        }
+        emit(out);
+    }
+
+    private void accumulate(String topic, long timestamp, double value) {
+        Integer found = index.get(topic);
+        int s;
+        if (found != null) {
+            s = found;
+        } else {
+            if (freeCount == 0) {
+                rejected.incrementAndGet();
+                return;
+            }
+            s = free[--freeCount];
+            index.put(topic, s);
+            topics[s] = topic;
+            maxTs[s] = timestamp;
+            nextEmit[s] = Math.floorDiv(timestamp - allowedLateness, slide);
+            live[s] = 0;
+        }
+        arrived[s] = System.currentTimeMillis();
+        if (timestamp > maxTs[s]) {
+            maxTs[s] = timestamp;
+            advance(s, timestamp - allowedLateness);
+        }
+        long pane = Math.floorDiv(timestamp, slide);
+        if (pane <= nextEmit[s] - panes) {
+            //包含它的窗口都已经关闭
+            late.incrementAndGet();
+            return;
+        }
+        int cell = s * ring + (int) Math.floorMod(pane, (long) ring);
+        if (paneIds[cell] != pane) {
+            paneIds[cell] = pane;
+            counts[cell] = 1;
+            mins[cell] = value;
+            maxs[cell] = value;
+            sums[cell] = value;
+            live[s]++;
+            return;
+        }
+        counts[cell]++;
+        if (value < mins[cell]) {
+            mins[cell] = value;
+        }
+        if (value > maxs[cell]) {
+            maxs[cell] = value;
+        }
+        sums[cell] += value;
+    }
+
+    /**
+     * 按墙上时钟推进没有新读数的主题的水位线并关闭到期的窗口，窗口都关闭后回收这些主题，定时调用。
+     * 主题的事件时间按最后一条读数之后经过的墙上时间往前推，上报间隔比窗口短的主题不会提前关闭窗口，
+     * 最后一条读数所在的窗口在它结束后再过allowedLateness才关闭
+     * @param now 当前的墙上时间，毫秒
+     */
+    public void expire(long now) {
+        List<Rollup> out;
+        synchronized (this) {
+            for (int s = 0; s < maxSeries; s++) {
+                if (topics[s] == null || now <= arrived[s]) {
+                    continue;
+                }
+                long elapsed = now - arrived[s];
+                long eventTime = maxTs[s] > Long.MAX_VALUE - elapsed ? Long.MAX_VALUE : maxTs[s] + elapsed;
+                advance(s, eventTime - allowedLateness);
+                if (live[s] == 0) {
+                    index.remove(topics[s]);
+                    topics[s] = null;
+                    free[freeCount++] = s;
+                }
+            }
+            out = takeClosed();
+        }
+        emit(out);
+    }
+
+    /**
+     * @return 持有锁期间关闭的窗口，没有时返回null
+     */
+    private List<Rollup> takeClosed() {
+        if (closed.isEmpty()) {
+            return null;
+        }
+        List<Rollup> out = new ArrayList<Rollup>(closed);
+        closed.clear();
+        return out;
+    }
+
+    private void emit(List<Rollup> out) {
+        if (out == null) {
+            return;
+        }
+        for (Rollup r : out) {
+            sink.onRollup(name, r.topic, r.start, r.end, r.count, r.min, r.max, r.sum);
+        }
+    }
+
+    /**
+     * 关闭结束时间不晚于watermark的窗口，输出后释放不会再用到的小段
+     */
+    private void advance(int s, long watermark) {
+        long target = Math.floorDiv(watermark, slide);
+        long e = nextEmit[s];
+        if (e >= target) {
+            return;
+        }
+        if (live[s] == 0) {
+            nextEmit[s] = target;
+            return;
+        }
+        int base = s * ring;
+        for (; e < target && live[s] > 0; e++) {
+            long count = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0;
+            for (long p = e - panes + 1; p <= e; p++) {
+                int cell = base + (int) Math.floorMod(p, (long) ring);
+                if (paneIds[cell] == p) {
+                    count += counts[cell];
+                    min = Math.min(min, mins[cell]);
+                    max = Math.max(max, maxs[cell]);
+                    sum += sums[cell];
+                }
+            }
+            if (count > 0) {
+                emitted.incrementAndGet();
+                closed.add(new Rollup(topics[s], (e - panes + 1) * slide, (e + 1) * slide, count, min, max, sum));
+            }
+            //最早的小段不会再出现在后面的窗口里
+            int oldest = base + (int) Math.floorMod(e - panes + 1, (long) ring);
+            if (paneIds[oldest] == e - panes + 1) {
+                paneIds[oldest] = EMPTY;
+                live[s]--;
+            }
+        }
+        nextEmit[s] = live[s] == 0 ? target : e;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return 当前活跃的主题数
+     */
+    public synchronized int activeSeries() {
+        return maxSeries - freeCount;
+    }
+
+    /**
+     * @return 因迟到超过allowedLateness丢弃的读数
+     */
+    public long getLateCount() {
+        return late.get();
+    }
+
+    /**
+     * @return 因活跃主题数超过上限丢弃的读数
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return 输出的窗口数
+     */
+    public long getEmittedCount() {
+        return emitted.get();
+    }
+
+    /**
+     * 一个关闭的窗口
+     */
+    private static final class Rollup {
+        final String topic;
+        final long start;
+        final long end;
+        final long count;
+        final double min;
+        final double max;
+        final double sum;
+
+        Rollup(String topic, long start, long end, long count, double min, double max, double sum) {
+            this.topic = topic;
+            this.start = start;
+            this.end = end;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskSpoolTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static MqttMessage message(String text, int qos, boolean retained) throws IOException {
+        MqttMessage message = new MqttMessage(text.getBytes("UTF-8"));
+        message.setQos(qos);
+        message.setRetained(retained);
+        return message;
+    }
+
+    private static String take(DiskSpool spool) throws IOException {
+        DiskSpool.Entry entry = spool.peek();
+        if (entry == null) {
+            return null;
+        }
+        spool.remove();
+        return entry.topic + ":" + new String(entry.message.getPayload(), "UTF-8");
+    }
+
+    private static File[] segments(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(".log");
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    public void keepsOrderAndMessageAttributes() throws IOException {
+        DiskSpool spool = new DiskSpool(folder.newFolder());
+        spool.append("a/b", message("one", 1, true));
+        spool.append("c", message("two", 2, false));
+        assertEquals(2, spool.size());
+        DiskSpool.Entry entry = spool.peek();
+        assertEquals("a/b", entry.topic);
+        assertArrayEquals("one".getBytes("UTF-8"), entry.message.getPayload());
+        assertEquals(1, entry.message.getQos());
+        assertTrue(entry.message.isRetained());
+        //没有remove之前peek返回同一条
+        assertEquals("a/b", spool.peek().topic);
+        assertEquals(2, spool.size());
+        assertEquals("a/b:one", take(spool));
+        assertEquals("c:two", take(spool));
+        assertNull(spool.peek());
+        assertTrue(spool.isEmpty());
+        spool.close();
+    }
+
+    @Test
+    public void resumesFromCommittedCursorAfterReopen() throws IOException {
+        File dir = folder.newFolder();
+        DiskSpool spool = new DiskSpool(dir);
+        for (int i = 0; i < 5; i++) {
+            spool.append("t", message("m" + i, 1, false));
+        }
+        assertEquals("t:m0", take(spool));
+        assertEquals("t:m1", take(spool));
+        //peek了但没有提交，重新打开后还要补发
+        spool.peek();
+        spool.close();
+
+        spool = new DiskSpool(dir);
+        assertEquals(3, spool.size());
+        assertEquals("t:m2", take(spool));
+        spool.append("t", message("m5", 1, false));
+        assertEquals("t:m3", take(spool));
+        assertEquals("t:m4", take(spool));
+        assertEquals("t:m5", take(spool));
+        assertNull(take(spool));
+        spool.close();
+    }
+
+    @Test
+    public void truncatesTornTailOnRecovery() throws IOException {
+        File dir = folder.newFolder();
+        DiskSpool spool = new DiskSpool(dir);
+        spool.append("t", message("complete", 1, false));
+        spool.append("t", message("torn", 1, false));
+        spool.close();
+        File[] files = segments(dir);
+        File last = files[files.length - 1];
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+
+        spool = new DiskSpool(dir);
+        assertEquals(1, spool.size());
+        spool.append("t", message("after", 1, false));
+        assertEquals("t:complete", take(spool));
+        assertEquals("t:after", take(spool));
+        assertNull(take(spool));
+        spool.close();
+    }
+
+    @Test
+    public void rollsSegmentsAndEvictsOldestOverQuota() throws IOException {
+        File dir = folder.newFolder();
+        long quota = 8 * 1024;
+        DiskSpool spool = new DiskSpool(dir, 1024, quota);
+        char[] filler = new char[200];
+        Arrays.fill(filler, 'x');
+        int appended = 200;
+        for (int i = 0; i < appended; i++) {
+            spool.append("t", message(i + ":" + new String(filler), 1, false));
+        }
+        assertTrue(segments(dir).length > 1);
+        assertTrue(spool.bytes() <= quota);
+        assertTrue(spool.getEvictedCount() > 0);
+        assertEquals(appended, spool.size() + spool.getEvictedCount());
+        //剩下的是最新的消息，顺序不变
+        long first = appended - spool.size();
+        String head = take(spool);
+        assertTrue(head, head.startsWith("t:" + first + ":"));
+        spool.close();
+    }
+}
@@ -0,0 +1,100 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DuplicateFilterTest {
+
+    @Test
+    public void remembersTheLastCapacityIds() {
+        DuplicateFilter filter = new DuplicateFilter(3);
+        assertTrue(filter.add(1));
+        assertTrue(filter.add(2));
+        assertFalse(filter.add(1));
+        assertTrue(filter.add(3));
+        assertTrue(filter.add(4));
+        //1最早进来，被4挤出去
+        assertFalse(filter.contains(1));
+        assertTrue(filter.contains(2));
+        assertEquals(3, filter.size());
+        assertTrue(filter.add(1));
+    }
+
+    @Test
+    public void zeroAndNegativeIds() {
+        DuplicateFilter filter = new DuplicateFilter(2);
+        assertTrue(filter.add(0));
+        assertFalse(filter.add(0));
+        assertTrue(filter.add(-1));
+        assertTrue(filter.add(Long.MIN_VALUE));
+        assertFalse(filter.contains(0));
+        assertTrue(filter.contains(-1));
+        assertTrue(filter.contains(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void matchesASimpleModelUnderRandomIds() {
+        int capacity = 1000;
+        DuplicateFilter filter = new DuplicateFilter(capacity);
+        ArrayDeque<Long> order = new ArrayDeque<Long>();
+        Set<Long> model = new HashSet<Long>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            //取值范围小，重复和挤出都经常发生
+            long id = random.nextInt(3000);
+            boolean added = model.add(id);
+            assertEquals("id " + id + " at " + i, added, filter.add(id));
+            if (added) {
+                order.add(id);
+                if (order.size() > capacity) {
+                    model.remove(order.poll());
+                }
+            }
+        }
+        assertEquals(model.size(), filter.size());
+        for (long id = 0; id < 3000; id++) {
+            assertEquals(model.contains(id), filter.contains(id));
+        }
+    }
+
+    @Test
+    public void dedupRetriesMessageWhoseDelegateFailed() throws Exception {
+        final int[] calls = new int[1];
+        DedupCallback dedup = new DedupCallback(new MqttCallback() {
+            public void connectionLost(Throwable cause) {
+            }
+
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+                if (++calls[0] == 1) {
+                    throw new Exception("first delivery fails");
+                }
+            }
+
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        MqttMessage message = new MqttMessage(MessageId.stamp(42, "23.5".getBytes("UTF-8")));
+        try {
+            dedup.messageArrived("t", message);
+            fail();
+        } catch (Exception expected) {
+        }
+        //服务器重投，这次处理成功
+        dedup.messageArrived("t", message);
+        dedup.messageArrived("t", message);
+        assertEquals(2, calls[0]);
+        assertEquals(1, dedup.getDuplicateCount());
+    }
+}
@@ -0,0 +1,80 @@
+package com.homework;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class EmbeddedBrokerTest {
+    private EmbeddedBroker broker;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new EmbeddedBroker(0);
+        broker.setMaxFrameSize(64 * 1024);
+        broker.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        broker.close();
+    }
+
+    private static void write(OutputStream out, ByteBuffer buf) throws Exception {
+        out.write(buf.array(), buf.position(), buf.remaining());
+        out.flush();
+    }
+
+    private Socket connect(String clientId) throws Exception {
+        Socket socket = new Socket("127.0.0.1", broker.getPort());
+        socket.setSoTimeout(5000);
+        MqttPackets.Connect c = new MqttPackets.Connect();
+        c.clientId = clientId;
+        c.cleanSession = true;
+        write(socket.getOutputStream(), MqttPackets.connect(c));
+        InputStream in = socket.getInputStream();
+        //CONNACK固定4字节
+        assertEquals(MqttPackets.CONNACK << 4, in.read());
+        assertEquals(2, in.read());
+        assertEquals(0, in.read());
+        assertEquals(MqttPackets.ACCEPTED, in.read());
+        return socket;
+    }
+
+    @Test
+    public void closesConnectionDeclaringAnOversizedFrame() throws Exception {
+        Socket socket = connect("big");
+        try {
+            //只发固定头，声明100MB的PUBLISH，不用等报文体就断开
+            write(socket.getOutputStream(), ByteBuffer.wrap(new byte[] {
+                    (byte) (MqttPackets.PUBLISH << 4), (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x32}));
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void acceptsFramesUpToTheLimitAndShrinksBack() throws Exception {
+        Socket socket = connect("ok");
+        try {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            //超过读缓冲区但没超过上限，之后再发小报文
+            for (int size : new int[] {60 * 1024, 10, 30 * 1024, 10}) {
+                write(out, MqttPackets.publish("t", 1, false, false, size, new byte[size]));
+                assertEquals(MqttPackets.PUBACK << 4, in.read());
+                assertEquals(2, in.read());
+                assertEquals(size, (in.read() << 8) | in.read());
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.homework;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileChunkTest {
+
+    private static byte[] chunk(int seq, int total, int chunkSize, long fileSize, int length) {
+        String name = "a.bin";
+        byte[] buf = new byte[FileChunk.headerLength(name) + length];
+        for (int i = FileChunk.headerLength(name); i < buf.length; i++) {
+            buf[i] = (byte) i;
+        }
+        int crc = FileChunk.crc32(buf, FileChunk.headerLength(name), length);
+        FileChunk.writeHeader(buf, 7, seq, total, chunkSize, fileSize, length, crc, name);
+        return buf;
+    }
+
+    @Test
+    public void parsesConsistentHeaders() {
+        //10字节的文件按4字节切成3块，最后一块2字节
+        byte[] first = chunk(0, 3, 4, 10, 4);
+        FileChunk parsed = FileChunk.parse(first);
+        assertNotNull(parsed);
+        assertEquals(7, parsed.getTransferId());
+        assertEquals("a.bin", parsed.getName());
+        assertTrue(parsed.verify(first));
+        assertNotNull(FileChunk.parse(chunk(2, 3, 4, 10, 2)));
+        //空文件也有一块
+        assertNotNull(FileChunk.parse(chunk(0, 1, 4, 0, 0)));
+    }
+
+    @Test
+    public void rejectsContradictoryHeaders() {
+        assertNull(FileChunk.parse(chunk(0, 3, 0, 10, 4)));
+        assertNull(FileChunk.parse(chunk(0, 3, -4, 10, 4)));
+        assertNull(FileChunk.parse(chunk(0, 3, 4, -10, 4)));
+        //数据比chunkSize长，或者最后一块超出fileSize
+        assertNull(FileChunk.parse(chunk(0, 3, 4, 10, 5)));
+        assertNull(FileChunk.parse(chunk(2, 3, 4, 10, 4)));
+        //中间的块不满
+        assertNull(FileChunk.parse(chunk(1, 3, 4, 10, 3)));
+        //total和fileSize、chunkSize对不上，比如声称一个巨大的文件
+        assertNull(FileChunk.parse(chunk(0, 3, 4, 1L << 40, 4)));
+        assertNull(FileChunk.parse(chunk(0, 4, 4, 10, 4)));
+        assertNull(FileChunk.parse(chunk(3, 3, 4, 10, 2)));
+    }
+
+    @Test
+    public void rejectsTruncatedPayloads() {
+        byte[] payload = chunk(0, 3, 4, 10, 4);
+        byte[] truncated = new byte[payload.length - 1];
+        System.arraycopy(payload, 0, truncated, 0, truncated.length);
+        assertNull(FileChunk.parse(truncated));
+        assertNull(FileChunk.parse(new byte[3]));
+    }
+}
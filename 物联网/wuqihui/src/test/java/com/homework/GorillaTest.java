@@ -0,0 +1,103 @@
+package com.homework;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GorillaTest {
+
+    private static void assertRoundTrip(long[] timestamps, double[] values) {
+        GorillaEncoder encoder = new GorillaEncoder(16);
+        for (int i = 0; i < timestamps.length; i++) {
+            encoder.add(timestamps[i], values[i]);
+        }
+        assertEquals(timestamps.length, encoder.count());
+        //解码器按绝对位置读，数据前面放几个字节检查offset
+        byte[] block = new byte[3 + encoder.size()];
+        assertEquals(encoder.size(), encoder.copyTo(block, 3));
+        GorillaDecoder decoder = new GorillaDecoder();
+        decoder.reset(ByteBuffer.wrap(block), 3, timestamps.length);
+        for (int i = 0; i < timestamps.length; i++) {
+            assertTrue(decoder.next());
+            assertEquals("timestamp " + i, timestamps[i], decoder.timestamp());
+            assertEquals("value " + i, Double.doubleToRawLongBits(values[i]),
+                    Double.doubleToRawLongBits(decoder.value()));
+        }
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void regularSamplesTakeAboutOneBitPerTimestamp() {
+        int n = 1000;
+        long[] timestamps = new long[n];
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            timestamps[i] = 1500000000000L + i * 1000L;
+            values[i] = 21.5;
+        }
+        assertRoundTrip(timestamps, values);
+        GorillaEncoder encoder = new GorillaEncoder(16);
+        for (int i = 0; i < n; i++) {
+            encoder.add(timestamps[i], values[i]);
+        }
+        //第一个点16字节，第二个点的时间戳多几个字节，之后每个点的时间戳和数值各占1位
+        assertTrue(encoder.size() < 16 + n / 4 + 8);
+    }
+
+    @Test
+    public void irregularTimestampsAndEveryDeltaRange() {
+        long[] steps = {0, 1, 60, -60, 200, -200, 2000, -2000, 100000, -100000, Long.MAX_VALUE / 4};
+        long[] timestamps = new long[steps.length * 3];
+        double[] values = new double[timestamps.length];
+        long t = 0;
+        long delta = 1000;
+        for (int i = 0; i < timestamps.length; i++) {
+            delta += steps[i % steps.length];
+            t += delta;
+            timestamps[i] = t;
+            values[i] = i;
+        }
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void specialAndRandomValues() {
+        double[] values = {0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.MIN_VALUE, Double.MAX_VALUE, -1.5, 1e-300, 3.141592653589793};
+        long[] timestamps = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            timestamps[i] = -5000 + i * 7;
+        }
+        assertRoundTrip(timestamps, values);
+
+        Random random = new Random(42);
+        timestamps = new long[5000];
+        values = new double[timestamps.length];
+        long t = System.currentTimeMillis();
+        for (int i = 0; i < timestamps.length; i++) {
+            t += random.nextInt(3) == 0 ? random.nextInt(100000) : 1000;
+            timestamps[i] = t;
+            values[i] = random.nextBoolean() ? random.nextGaussian() * 1000 : Math.round(random.nextDouble() * 10);
+        }
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void resetStartsANewBlock() {
+        GorillaEncoder encoder = new GorillaEncoder(16);
+        encoder.add(1, 1.0);
+        encoder.add(2, 2.0);
+        encoder.reset();
+        encoder.add(100, 7.0);
+        GorillaDecoder decoder = new GorillaDecoder();
+        decoder.reset(ByteBuffer.wrap(encoder.toByteArray()), 0, 1);
+        assertTrue(decoder.next());
+        assertEquals(100, decoder.timestamp());
+        assertEquals(7.0, decoder.value(), 0);
+    }
+}
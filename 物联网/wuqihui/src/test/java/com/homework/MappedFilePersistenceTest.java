@@ -0,0 +1,149 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedFilePersistenceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static MqttPersistable data(String key, String header, String payload) throws IOException {
+        byte[] h = header.getBytes("UTF-8");
+        byte[] p = payload.getBytes("UTF-8");
+        return new MqttPersistentData(key, h, 0, h.length, p, 0, p.length);
+    }
+
+    private static String header(MqttPersistable persistable) throws Exception {
+        return new String(persistable.getHeaderBytes(), persistable.getHeaderOffset(),
+                persistable.getHeaderLength(), "UTF-8");
+    }
+
+    private MappedFilePersistence open(File base, int segmentSize) throws MqttPersistenceException {
+        MappedFilePersistence persistence = new MappedFilePersistence(base.getPath(), segmentSize, false);
+        persistence.open("client", "tcp://localhost:1883");
+        return persistence;
+    }
+
+    private static List<String> keys(MappedFilePersistence persistence) throws MqttPersistenceException {
+        List<String> keys = Collections.list(persistence.keys());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private static File[] segments(File base) {
+        File dir = base.listFiles()[0];
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(".log");
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    public void replaysPutsAndRemovesAfterReopen() throws Exception {
+        File base = folder.newFolder();
+        MappedFilePersistence persistence = open(base, 4096);
+        persistence.put("a", data("a", "h1", "p1"));
+        persistence.put("b", data("b", "h2", "p2"));
+        persistence.put("c", data("c", "h3", ""));
+        persistence.remove("b");
+        persistence.put("a", data("a", "h4", "p4"));
+        persistence.close();
+
+        persistence = open(base, 4096);
+        assertEquals(Arrays.asList("a", "c"), keys(persistence));
+        MqttPersistable a = persistence.get("a");
+        assertEquals("h4", header(a));
+        assertArrayEquals("p4".getBytes("UTF-8"), a.getPayloadBytes());
+        assertEquals(0, persistence.get("c").getPayloadLength());
+        assertNull(persistence.get("b"));
+        persistence.close();
+    }
+
+    @Test
+    public void dropsTornTailAndKeepsAppending() throws Exception {
+        File base = folder.newFolder();
+        MappedFilePersistence persistence = open(base, 4096);
+        persistence.put("a", data("a", "hh", "ppp"));
+        persistence.put("b", data("b", "hh", "ppp"));
+        persistence.close();
+        //a的记录: length(4) crc(4) type(1) keyLength(2) key(1) headerLength(4) header(2) payload(3)，改坏b的payload
+        RandomAccessFile raf = new RandomAccessFile(segments(base)[0], "rw");
+        raf.seek(21 + 8 + 10);
+        raf.write('x');
+        raf.close();
+
+        persistence = open(base, 4096);
+        assertEquals(Arrays.asList("a"), keys(persistence));
+        persistence.put("c", data("c", "hh", "ppp"));
+        persistence.close();
+        persistence = open(base, 4096);
+        assertEquals(Arrays.asList("a", "c"), keys(persistence));
+        persistence.close();
+    }
+
+    @Test
+    public void compactionDeletesDeadSegments() throws Exception {
+        File base = folder.newFolder();
+        MappedFilePersistence persistence = open(base, 1024);
+        char[] filler = new char[100];
+        Arrays.fill(filler, 'x');
+        String payload = new String(filler);
+        //像QoS1发布那样每个key写入后很快删除，只留最近的两个
+        for (int i = 0; i < 2000; i++) {
+            persistence.put("s-" + i, data("s-" + i, "h" + i, payload));
+            if (i >= 2) {
+                persistence.remove("s-" + (i - 2));
+            }
+        }
+        assertTrue(segments(base).length <= 3);
+        assertEquals(Arrays.asList("s-1998", "s-1999"), keys(persistence));
+        persistence.close();
+
+        persistence = open(base, 1024);
+        assertEquals(Arrays.asList("s-1998", "s-1999"), keys(persistence));
+        assertEquals("h1999", header(persistence.get("s-1999")));
+        persistence.close();
+    }
+
+    @Test
+    public void clearSurvivesReopen() throws Exception {
+        File base = folder.newFolder();
+        MappedFilePersistence persistence = open(base, 1024);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            persistence.put("k" + i, data("k" + i, "h", "payload"));
+        }
+        persistence.clear();
+        assertFalse(persistence.containsKey("k0"));
+        persistence.put("after", data("after", "h", "p"));
+        expected.add("after");
+        persistence.close();
+
+        persistence = open(base, 1024);
+        assertEquals(expected, keys(persistence));
+        assertEquals(1, segments(base).length);
+        persistence.close();
+    }
+}
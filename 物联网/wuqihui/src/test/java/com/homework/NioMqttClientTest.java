@@ -0,0 +1,191 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NioMqttClientTest {
+    private EmbeddedBroker broker;
+    private NioMqttEngine engine;
+    private final List<NioMqttClient> clients = new ArrayList<NioMqttClient>();
+
+    /**
+     * 收到的消息，按到达顺序
+     */
+    private static final class Received {
+        final String topic;
+        final MqttMessage message;
+
+        Received(String topic, MqttMessage message) {
+            this.topic = topic;
+            this.message = message;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new EmbeddedBroker(0);
+        broker.start();
+        engine = new NioMqttEngine(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (NioMqttClient client : clients) {
+            client.close();
+        }
+        engine.close();
+        broker.close();
+    }
+
+    private NioMqttClient connect(String clientId, MqttCallback callback) throws MqttException {
+        NioMqttClient client = new NioMqttClient(engine, broker.getUri(), clientId);
+        client.setCallback(callback);
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setConnectionTimeout(5);
+        client.connect(options);
+        clients.add(client);
+        return client;
+    }
+
+    private static MqttCallback collect(final LinkedBlockingQueue<Received> queue) {
+        return new MqttCallback() {
+            public void connectionLost(Throwable cause) {
+            }
+
+            public void messageArrived(String topic, MqttMessage message) {
+                queue.add(new Received(topic, message));
+            }
+
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        };
+    }
+
+    private static MqttMessage message(byte[] payload, int qos) {
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        return message;
+    }
+
+    @Test
+    public void publishesAndReceivesEveryQos() throws Exception {
+        LinkedBlockingQueue<Received> inbox = new LinkedBlockingQueue<Received>();
+        NioMqttClient subscriber = connect("sub", collect(inbox));
+        subscriber.subscribe("nio/#", 2);
+        NioMqttClient publisher = connect("pub", collect(new LinkedBlockingQueue<Received>()));
+        assertTrue(publisher.isConnected());
+
+        for (int qos = 0; qos <= 2; qos++) {
+            CompletableFuture<IMqttDeliveryToken> future = publisher.publish("nio/" + qos,
+                    message(("q" + qos).getBytes("UTF-8"), qos));
+            future.get(5, TimeUnit.SECONDS);
+            Received r = inbox.poll(5, TimeUnit.SECONDS);
+            assertNotNull(r);
+            assertEquals("nio/" + qos, r.topic);
+            assertEquals("q" + qos, new String(r.message.getPayload(), "UTF-8"));
+            assertEquals(qos, r.message.getQos());
+        }
+    }
+
+    @Test
+    public void keepsOrderOfManyQos1Publishes() throws Exception {
+        LinkedBlockingQueue<Received> inbox = new LinkedBlockingQueue<Received>();
+        NioMqttClient subscriber = connect("sub", collect(inbox));
+        subscriber.subscribe("order", 1);
+        NioMqttClient publisher = connect("pub", collect(new LinkedBlockingQueue<Received>()));
+        int count = 2000;
+        CompletableFuture<IMqttDeliveryToken> last = null;
+        for (int i = 0; i < count; i++) {
+            //在途的消息达到maxInflight时publish阻塞
+            last = publisher.publish("order", message(Integer.toString(i).getBytes("UTF-8"), 1));
+        }
+        last.get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < count; i++) {
+            Received r = inbox.poll(5, TimeUnit.SECONDS);
+            assertNotNull("message " + i, r);
+            assertEquals(Integer.toString(i), new String(r.message.getPayload(), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void receivesFramesLargerThanTheReadBuffer() throws Exception {
+        LinkedBlockingQueue<Received> inbox = new LinkedBlockingQueue<Received>();
+        NioMqttClient subscriber = connect("sub", collect(inbox));
+        subscriber.subscribe("big/#", 1);
+        NioMqttClient publisher = connect("pub", collect(new LinkedBlockingQueue<Received>()));
+        Random random = new Random(3);
+        //读缓冲区64KB，池里最大1MB，两边都要跨过
+        int[] sizes = {100, 70 * 1024, 2 * 1024 * 1024 + 17, 5};
+        for (int size : sizes) {
+            byte[] payload = new byte[size];
+            random.nextBytes(payload);
+            publisher.publish("big/" + size, message(payload, 1)).get(10, TimeUnit.SECONDS);
+            Received r = inbox.poll(10, TimeUnit.SECONDS);
+            assertNotNull("size " + size, r);
+            assertEquals("big/" + size, r.topic);
+            assertArrayEquals(payload, r.message.getPayload());
+        }
+    }
+
+    @Test
+    public void failsPendingTokensWhenTheConnectionIsLost() throws Exception {
+        final CountDownLatch lost = new CountDownLatch(1);
+        NioMqttClient publisher = connect("pub", new MqttCallback() {
+            public void connectionLost(Throwable cause) {
+                lost.countDown();
+            }
+
+            public void messageArrived(String topic, MqttMessage message) {
+            }
+
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        //PUBACK迟迟不回，消息一直在途
+        broker.setLatencyMillis(60000);
+        List<CompletableFuture<IMqttDeliveryToken>> futures = new ArrayList<CompletableFuture<IMqttDeliveryToken>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(publisher.publish("lost", message(new byte[] {(byte) i}, 1 + i % 2)));
+        }
+        broker.close();
+        assertTrue(lost.await(5, TimeUnit.SECONDS));
+        assertFalse(publisher.isConnected());
+        for (CompletableFuture<IMqttDeliveryToken> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals(MqttException.REASON_CODE_CONNECTION_LOST,
+                        ((MqttException) e.getCause()).getReasonCode());
+            }
+        }
+        try {
+            publisher.publish("lost", message(new byte[1], 1));
+            fail();
+        } catch (MqttException e) {
+            assertEquals(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED, e.getReasonCode());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PayloadCodecTest {
+
+    private static byte[] text(int length) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            sb.append("temperature=23.5,humidity=41;");
+        }
+        return sb.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void roundTripEveryCompression() {
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        payloads.add(new byte[0]);
+        payloads.add(text(10));
+        payloads.add(text(5000));
+        payloads.add(random(5000, 1));
+        payloads.add(new byte[100000]);
+        for (PayloadCodec.Compression compression : PayloadCodec.Compression.values()) {
+            PayloadCodec codec = new PayloadCodec(compression, 16);
+            for (byte[] payload : payloads) {
+                byte[] encoded = codec.encode(payload);
+                assertArrayEquals(compression + " " + payload.length, payload, PayloadCodec.decode(encoded));
+            }
+        }
+    }
+
+    @Test
+    public void compressibleDataGetsSmaller() {
+        byte[] payload = text(5000);
+        assertTrue(new PayloadCodec(PayloadCodec.Compression.LZ4, 16).encode(payload).length < payload.length / 4);
+        assertTrue(new PayloadCodec(PayloadCodec.Compression.DEFLATE, 16).encode(payload).length < payload.length / 4);
+    }
+
+    @Test
+    public void smallAndIncompressiblePayloadsAreSentAsIs() {
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.Compression.LZ4, 256);
+        byte[] small = text(100);
+        assertSame(small, codec.encode(small));
+        byte[] noise = random(5000, 2);
+        assertSame(noise, codec.encode(noise));
+    }
+
+    @Test
+    public void payloadStartingWithMagicIsEscaped() {
+        byte[] payload = {PayloadCodec.MAGIC, 1, 2, 3, 4, 5, 6, 7};
+        byte[] encoded = new PayloadCodec(PayloadCodec.Compression.LZ4, 256).encode(payload);
+        assertTrue(PayloadCodec.isEncoded(encoded));
+        assertArrayEquals(payload, PayloadCodec.decode(encoded));
+    }
+
+    @Test
+    public void lz4RoundTripAtOffsets() {
+        byte[] src = text(70000);
+        byte[] dst = new byte[10 + Lz4.maxCompressedLength(src.length - 100)];
+        int length = Lz4.compress(src, 100, src.length - 100, dst, 10, new int[Lz4.HASH_TABLE_SIZE]);
+        byte[] out = new byte[src.length];
+        Lz4.decompress(dst, 10, length, out, 100, src.length - 100);
+        assertArrayEquals(Arrays.copyOfRange(src, 100, src.length), Arrays.copyOfRange(out, 100, out.length));
+    }
+
+    @Test
+    public void rejectsDeclaredLengthBeyondCompressionRatio() {
+        //3字节的LZ4数据不可能解压出2GB
+        byte[] bogus = {PayloadCodec.MAGIC, 2, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1, 2, 3};
+        try {
+            PayloadCodec.decode(bogus);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("too large"));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptedData() {
+        byte[] encoded = new PayloadCodec(PayloadCodec.Compression.LZ4, 16).encode(text(5000));
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length - 5);
+        try {
+            PayloadCodec.decode(truncated);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void decompressingCallbackDropsCorruptedMessages() throws Exception {
+        final List<byte[]> delivered = new ArrayList<byte[]>();
+        DecompressingCallback callback = new DecompressingCallback(new MqttCallback() {
+            public void connectionLost(Throwable cause) {
+            }
+
+            public void messageArrived(String topic, MqttMessage message) {
+                delivered.add(message.getPayload());
+            }
+
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        byte[] payload = text(5000);
+        byte[] encoded = new PayloadCodec(PayloadCodec.Compression.DEFLATE, 16).encode(payload);
+        callback.messageArrived("t", new MqttMessage(encoded));
+        callback.messageArrived("t", new MqttMessage(Arrays.copyOf(encoded, encoded.length - 5)));
+        assertEquals(1, delivered.size());
+        assertArrayEquals(payload, delivered.get(0));
+        assertEquals(1, callback.getCorruptedCount());
+        assertFalse(PayloadCodec.isEncoded(delivered.get(0)));
+    }
+}
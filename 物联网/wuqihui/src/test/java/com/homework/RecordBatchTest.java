@@ -0,0 +1,110 @@
+package com.homework;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecordBatchTest {
+    private final List<byte[]> delivered = new ArrayList<byte[]>();
+    private final UnbatchingCallback unbatching = new UnbatchingCallback(new MqttCallback() {
+        public void connectionLost(Throwable cause) {
+        }
+
+        public void messageArrived(String topic, MqttMessage message) {
+            delivered.add(message.getPayload());
+        }
+
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    });
+
+    private static byte[] batchOf(byte[]... records) {
+        RecordBatch batch = new RecordBatch(16);
+        for (byte[] record : records) {
+            batch.add(record, 0, record.length);
+        }
+        return batch.toByteArray();
+    }
+
+    @Test
+    public void roundTrip() {
+        byte[][] records = {new byte[0], {1, 2, 3}, new byte[200], new byte[70000]};
+        byte[] payload = batchOf(records);
+        assertTrue(RecordBatch.isBatch(payload));
+        RecordBatch.Reader reader = new RecordBatch.Reader(payload);
+        for (byte[] record : records) {
+            assertTrue(reader.hasNext());
+            assertArrayEquals(record, reader.next());
+        }
+        assertFalse(reader.hasNext());
+    }
+
+    @Test
+    public void sizeWithMatchesActualLength() {
+        RecordBatch batch = new RecordBatch(16);
+        int expected = RecordBatch.sizeWith(batch.length(), 300);
+        batch.add(new byte[300], 0, 300);
+        assertEquals(expected, batch.length());
+        assertEquals(1, batch.count());
+        batch.reset();
+        assertEquals(RecordBatch.HEADER_LENGTH, batch.length());
+        assertEquals(0, batch.count());
+    }
+
+    @Test
+    public void rejectsDamagedFramesBeforeReadingAnything() {
+        byte[] payload = batchOf(new byte[] {1}, new byte[] {2}, new byte[300]);
+        byte[] wrongCount = payload.clone();
+        wrongCount[5] = 4;
+        byte[] fewerCount = payload.clone();
+        fewerCount[5] = 2;
+        for (byte[] bad : new byte[][] {Arrays.copyOf(payload, payload.length - 1),
+                Arrays.copyOf(payload, payload.length + 1), wrongCount, fewerCount}) {
+            try {
+                new RecordBatch.Reader(bad);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void unbatchingDropsDamagedBatchWhole() throws Exception {
+        byte[] payload = batchOf(new byte[] {1}, new byte[] {2}, new byte[300]);
+        unbatching.messageArrived("t", new MqttMessage(Arrays.copyOf(payload, payload.length - 1)));
+        assertEquals(0, delivered.size());
+        assertEquals(1, unbatching.getCorruptedCount());
+        unbatching.messageArrived("t", new MqttMessage(payload));
+        assertEquals(3, delivered.size());
+    }
+
+    @Test
+    public void escapedRawPayloadSurvivesUnbatching() throws Exception {
+        byte[] raw = {RecordBatch.MAGIC, RecordBatch.VERSION, 0, 0, 0, 9, 42};
+        byte[] escaped = RecordBatch.escape(raw);
+        assertTrue(RecordBatch.isBatch(escaped));
+        unbatching.messageArrived("t", new MqttMessage(escaped));
+        assertEquals(1, delivered.size());
+        assertArrayEquals(raw, delivered.get(0));
+    }
+
+    @Test
+    public void otherPayloadsAreNotEscaped() throws Exception {
+        byte[] text = "23.5".getBytes("UTF-8");
+        assertSame(text, RecordBatch.escape(text));
+        unbatching.messageArrived("t", new MqttMessage(text));
+        assertArrayEquals(text, delivered.get(0));
+    }
+}
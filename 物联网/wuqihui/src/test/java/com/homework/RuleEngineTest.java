@@ -0,0 +1,99 @@
+package com.homework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RuleEngineTest {
+    private final List<String> alerts = new ArrayList<String>();
+    private final RuleEngine.Sink sink = new RuleEngine.Sink() {
+        public void onAlert(AlertRule rule, String topic, long deviceId, long timestamp, double value) {
+            alerts.add(rule.getName() + " " + topic + " " + deviceId + " " + timestamp);
+        }
+    };
+
+    private RuleEngine engine(int maxSeries, String... lines) {
+        List<AlertRule> rules = new ArrayList<AlertRule>();
+        for (String line : lines) {
+            rules.add(AlertRule.parse(line));
+        }
+        return new RuleEngine(rules, maxSeries, sink);
+    }
+
+    @Test
+    public void parseMatchesToString() {
+        AlertRule range = AlertRule.parse("hot sensors/+/temp range [-10, 50) 3");
+        assertEquals(AlertRule.Kind.RANGE, range.getKind());
+        assertTrue(range.isFromInclusive());
+        assertFalse(range.isToInclusive());
+        assertEquals(range.toString(), AlertRule.parse(range.toString()).toString());
+        AlertRule rate = AlertRule.parse("jump sensors/# rate 5 3");
+        assertEquals(AlertRule.Kind.RATE, rate.getKind());
+        assertEquals(5, rate.getMaxRate(), 0);
+        assertEquals(rate.toString(), AlertRule.parse(rate.toString()).toString());
+    }
+
+    @Test
+    public void rangeFiresOnceAfterConsecutiveViolations() {
+        RuleEngine engine = engine(100, "hot sensors/+ range [0, 50] 2");
+        engine.evaluate("sensors/temp", 1, 1000, 60);
+        assertEquals(0, alerts.size());
+        engine.evaluate("sensors/temp", 1, 2000, 61);
+        assertEquals(Arrays.asList("hot sensors/temp 1 2000"), alerts);
+        //持续违反不重复告警，恢复后再违反才会再次触发
+        engine.evaluate("sensors/temp", 1, 3000, 62);
+        engine.evaluate("sensors/temp", 1, 4000, 20);
+        engine.evaluate("sensors/temp", 1, 5000, 70);
+        engine.evaluate("sensors/temp", 1, 6000, Double.NaN);
+        assertEquals(2, alerts.size());
+        assertEquals(2, engine.getAlertCount());
+        //不匹配过滤器的主题
+        engine.evaluate("other/temp", 1, 1000, 99);
+        engine.evaluate("other/temp", 1, 2000, 99);
+        assertEquals(2, alerts.size());
+    }
+
+    @Test
+    public void rateIsTrackedPerDevice() {
+        RuleEngine engine = engine(100, "jump sensors/# rate 5 3");
+        //两个设备在同一主题上交替上报各自不变的读数
+        for (int i = 0; i < 20; i++) {
+            engine.evaluate("sensors/temp", 1, 1000L * i, 10);
+            engine.evaluate("sensors/temp", 2, 1000L * i + 500, 20);
+        }
+        assertEquals(0, alerts.size());
+        assertEquals(2, engine.seriesCount());
+        for (int i = 0; i < 5; i++) {
+            engine.evaluate("sensors/temp", 3, 1000L * i, i * 100);
+        }
+        assertEquals(Arrays.asList("jump sensors/temp 3 3000"), alerts);
+    }
+
+    @Test
+    public void rateIgnoresReadingsThatDoNotAdvanceTime() {
+        RuleEngine engine = engine(100, "jump sensors/# rate 5 1");
+        engine.evaluate("sensors/temp", 1, 2000, 10);
+        engine.evaluate("sensors/temp", 1, 1000, 100);
+        engine.evaluate("sensors/temp", 1, 2000, 100);
+        assertEquals(0, alerts.size());
+        engine.evaluate("sensors/temp", 1, 3000, 100);
+        assertEquals(1, alerts.size());
+    }
+
+    @Test
+    public void seriesBeyondTheLimitAreNotEvaluated() {
+        RuleEngine engine = engine(16, "hot sensors/+ range [0, 50] 1");
+        for (int device = 0; device < 100; device++) {
+            engine.evaluate("sensors/temp", device, 1000, 99);
+        }
+        assertTrue(engine.seriesCount() < 100);
+        assertEquals(100, engine.seriesCount() + engine.getRejectedCount());
+        assertEquals(engine.seriesCount(), alerts.size());
+    }
+}
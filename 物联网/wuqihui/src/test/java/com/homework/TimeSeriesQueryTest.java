@@ -0,0 +1,159 @@
+package com.homework;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeSeriesQueryTest {
+    private static final long BASE = 36000000L;
+    //64块一个扫描单元，这个序列切成两个单元，第二个单元的最后是没写满的块
+    private static final int ROWS = 70000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TimeSeriesStore store;
+    private TimeSeriesQuery query;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new TimeSeriesStore(folder.newFolder());
+        query = new TimeSeriesQuery(store);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private static double value(long i) {
+        return (i * 37) % 1000 - 500.5;
+    }
+
+    /**
+     * 逐点算出的期望结果: count, sum, min, max
+     */
+    private static double[] expected(long from, long to) {
+        double[] r = {0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (long i = 0; i < ROWS; i++) {
+            if (BASE + i >= from && BASE + i <= to) {
+                r[0]++;
+                r[1] += value(i);
+                r[2] = Math.min(r[2], value(i));
+                r[3] = Math.max(r[3], value(i));
+            }
+        }
+        return r;
+    }
+
+    private void fill() throws Exception {
+        for (long i = 0; i < ROWS; i++) {
+            store.append("q/a", i % 13, BASE + i, value(i));
+        }
+        for (long i = 0; i < 10; i++) {
+            store.append("q/b", 1, BASE + i * 1000, 1);
+        }
+        store.append("other", 1, BASE, 1);
+    }
+
+    private void check(long from, long to) throws Exception {
+        double[] e = expected(from, to);
+        assertEquals(e[0], query.query("q/a", from, to, TimeSeriesQuery.Aggregation.COUNT).values().get("q/a"), 0);
+        assertEquals(e[1], query.query("q/a", from, to, TimeSeriesQuery.Aggregation.SUM).values().get("q/a"), 1e-6);
+        assertEquals(e[2], query.query("q/a", from, to, TimeSeriesQuery.Aggregation.MIN).values().get("q/a"), 0);
+        assertEquals(e[3], query.query("q/a", from, to, TimeSeriesQuery.Aggregation.MAX).values().get("q/a"), 0);
+        assertEquals(e[1] / e[0],
+                query.query("q/a", from, to, TimeSeriesQuery.Aggregation.AVG).values().get("q/a"), 1e-9);
+    }
+
+    @Test
+    public void aggregatesAcrossSplitUnitsAndThePendingBlock() throws Exception {
+        fill();
+        //没有flush，最后368个点还在内存里的块中
+        check(BASE, BASE + ROWS - 1);
+        //跨过两个单元的边界，起止都在块中间
+        check(BASE + 100, BASE + 64 * 1024 + 500);
+        //只落在没写满的块里
+        check(BASE + ROWS - 200, BASE + ROWS + 1000);
+
+        Map<String, Double> counts = query.query("q/+", BASE, BASE + 5000,
+                TimeSeriesQuery.Aggregation.COUNT).values();
+        assertEquals(Arrays.asList("q/a", "q/b"), Arrays.asList(counts.keySet().toArray()));
+        assertEquals(6.0, counts.get("q/b"), 0);
+
+        //flush之后没写满的块从tail读
+        store.flush();
+        check(BASE, BASE + ROWS - 1);
+        check(BASE + ROWS - 200, BASE + ROWS + 1000);
+    }
+
+    @Test
+    public void streamsEveryPointOnce() throws Exception {
+        fill();
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sum = new AtomicLong();
+        final Map<String, AtomicLong> topics = new ConcurrentHashMap<String, AtomicLong>();
+        query.query("q/#", BASE + 10, BASE + ROWS - 10, new TimeSeriesQuery.PointVisitor() {
+            public void accept(String topic, long deviceId, long timestamp, double value) {
+                if (topics.putIfAbsent(topic, new AtomicLong(1)) != null) {
+                    topics.get(topic).incrementAndGet();
+                }
+                if (topic.equals("q/a")) {
+                    long i = timestamp - BASE;
+                    assertEquals(i % 13, deviceId);
+                    assertEquals(value(i), value, 0);
+                    count.incrementAndGet();
+                    sum.addAndGet(i);
+                }
+            }
+        });
+        long n = ROWS - 19;
+        assertEquals(n, count.get());
+        //每个点只访问一次
+        assertEquals((10 + ROWS - 10) * n / 2, sum.get());
+        assertEquals(9, topics.get("q/b").get());
+        assertEquals(2, topics.size());
+    }
+
+    @Test
+    public void prunesPartitionsWithoutMatchingData() throws Exception {
+        TimeSeriesStore small = new TimeSeriesStore(folder.newFolder(), 1000);
+        try {
+            TimeSeriesQuery q = new TimeSeriesQuery(small);
+            for (int p = 0; p < 3; p++) {
+                for (int i = 0; i < 100; i++) {
+                    small.append("p/a", 1, BASE + p * 1000 + i, i);
+                }
+            }
+            small.append("p/b", 1, BASE + 3500, 7);
+
+            TimeSeriesQuery.Result result = q.query("p/b", BASE, BASE + 3999, TimeSeriesQuery.Aggregation.SUM);
+            assertEquals(7.0, result.values().get("p/b"), 0);
+            assertEquals(1, result.getScannedSegments());
+            assertEquals(3, result.getPrunedSegments());
+
+            //时间范围落在第二个分区里p/a没有数据的地方
+            result = q.query("p/a", BASE + 1200, BASE + 1900, TimeSeriesQuery.Aggregation.COUNT);
+            assertTrue(result.values().isEmpty());
+            assertEquals(0, result.getScannedSegments());
+            assertEquals(1, result.getPrunedSegments());
+
+            result = q.query("p/a", BASE + 1050, BASE + 2049, TimeSeriesQuery.Aggregation.COUNT);
+            assertEquals(100.0, result.values().get("p/a"), 0);
+            assertEquals(2, result.getScannedSegments());
+            assertTrue(q.query("none/#", BASE, BASE + 3999, TimeSeriesQuery.Aggregation.COUNT).values().isEmpty());
+        } finally {
+            small.close();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.homework;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeSeriesStoreTest {
+    private static final long BASE = 36000000L;
+    private static final int BLOCK = TimeSeriesStore.BLOCK_ROWS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Long> timestamps(TimeSeriesStore store, String topic, long from, long to) throws IOException {
+        final List<Long> result = new ArrayList<Long>();
+        store.scan(topic, from, to, new TimeSeriesStore.Visitor() {
+            public void accept(long deviceId, long timestamp, double value) {
+                //写入时设备id和数值都由时间戳算出
+                assertEquals(timestamp % 7, deviceId);
+                assertEquals(timestamp * 0.5, value, 0);
+                result.add(timestamp);
+            }
+        });
+        return result;
+    }
+
+    private static void append(TimeSeriesStore store, String topic, long from, int count) throws IOException {
+        for (long ts = from; ts < from + count; ts++) {
+            store.append(topic, ts % 7, ts, ts * 0.5);
+        }
+    }
+
+    private static File partitionFile(File dir, final String suffix) {
+        for (File d : dir.listFiles()) {
+            if (d.isDirectory()) {
+                File[] files = d.listFiles(new FilenameFilter() {
+                    public boolean accept(File f, String name) {
+                        return name.endsWith(suffix);
+                    }
+                });
+                if (files.length > 0) {
+                    return files[0];
+                }
+            }
+        }
+        throw new AssertionError("no " + suffix);
+    }
+
+    private static void truncate(File file, long bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - bytes);
+        raf.close();
+    }
+
+    private static void corrupt(File file, long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(offset);
+        int b = raf.read();
+        raf.seek(offset);
+        raf.write(b ^ 0xFF);
+        raf.close();
+    }
+
+    @Test
+    public void keepsFullBlocksAndTailAcrossReopen() throws Exception {
+        File dir = folder.newFolder();
+        TimeSeriesStore store = new TimeSeriesStore(dir);
+        //两个整块加一个没写满的块
+        append(store, "t", BASE, 2 * BLOCK + 452);
+        store.close();
+
+        store = new TimeSeriesStore(dir);
+        List<Long> ts = timestamps(store, "t", Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(2 * BLOCK + 452, ts.size());
+        for (int i = 0; i < ts.size(); i++) {
+            assertEquals(BASE + i, (long) ts.get(i));
+        }
+        //接着没写满的块继续追加，跨过块边界
+        append(store, "t", BASE + ts.size(), BLOCK);
+        store.close();
+        store = new TimeSeriesStore(dir);
+        assertEquals(3 * BLOCK + 452, timestamps(store, "t", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(10, timestamps(store, "t", BASE + 1020, BASE + 1029).size());
+        store.close();
+    }
+
+    @Test
+    public void truncatesTornBlockAtTheEndOfGor() throws Exception {
+        File dir = folder.newFolder();
+        TimeSeriesStore store = new TimeSeriesStore(dir);
+        append(store, "t", BASE, 2 * BLOCK + 10);
+        store.close();
+        //第二块写到一半崩溃，tail里的记录属于第三块，一起作废
+        File gor = partitionFile(dir, ".gor");
+        long size = gor.length();
+        truncate(gor, 5);
+
+        store = new TimeSeriesStore(dir);
+        assertTrue(gor.length() < size - 5);
+        List<Long> ts = timestamps(store, "t", Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(BLOCK, ts.size());
+        assertEquals(BASE + BLOCK - 1, (long) ts.get(BLOCK - 1));
+        append(store, "t", BASE + BLOCK, 3);
+        store.close();
+
+        store = new TimeSeriesStore(dir);
+        assertEquals(BLOCK + 3, timestamps(store, "t", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        store.close();
+    }
+
+    @Test
+    public void fallsBackToTheOtherTailSlot() throws Exception {
+        File dir = folder.newFolder();
+        TimeSeriesStore crashed = new TimeSeriesStore(dir);
+        append(crashed, "t", BASE, 100);
+        crashed.flush();
+        append(crashed, "t", BASE + 100, 50);
+        crashed.flush();
+        //不close，像进程崩溃一样直接重新打开，点数多的槽是最后写的
+        TimeSeriesStore store = new TimeSeriesStore(dir);
+        assertEquals(150, timestamps(store, "t", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        store.close();
+        crashed.close();
+
+        //再来一遍，这次最后写的槽只写了一半
+        dir = folder.newFolder();
+        crashed = new TimeSeriesStore(dir);
+        append(crashed, "t", BASE, 100);
+        crashed.flush();
+        append(crashed, "t", BASE + 100, 50);
+        crashed.flush();
+        File tail = partitionFile(dir, ".tail");
+        corrupt(tail, tail.length() - 1);
+        store = new TimeSeriesStore(dir);
+        List<Long> ts = timestamps(store, "t", Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(100, ts.size());
+        assertEquals(BASE + 99, (long) ts.get(99));
+        //恢复出来的块可以继续写
+        append(store, "t", BASE + 100, 20);
+        store.close();
+        store = new TimeSeriesStore(dir);
+        assertEquals(120, timestamps(store, "t", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        store.close();
+        crashed.close();
+    }
+
+    @Test
+    public void reopensSealedPartitionForLateData() throws Exception {
+        File dir = folder.newFolder();
+        TimeSeriesStore store = new TimeSeriesStore(dir, 1000);
+        for (int p = 0; p < 4; p++) {
+            append(store, "t", BASE + p * 1000, 10);
+        }
+        //前两个分区已经关闭，迟到的数据重新打开第一个分区，写满一块以上
+        for (int i = 0; i < BLOCK + 100; i++) {
+            long ts = BASE + 10 + i % 900;
+            store.append("t", ts % 7, ts, ts * 0.5);
+        }
+        List<Long> ts = timestamps(store, "t", BASE, BASE + 999);
+        assertEquals(10 + BLOCK + 100, ts.size());
+        assertEquals(BASE, (long) ts.get(0));
+        store.close();
+
+        store = new TimeSeriesStore(dir, 1000);
+        assertEquals(10 + BLOCK + 100, timestamps(store, "t", BASE, BASE + 999).size());
+        assertEquals(40 + BLOCK + 100, timestamps(store, "t", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(Arrays.asList(BASE + 3000, BASE + 3001), timestamps(store, "t", BASE + 2999, BASE + 3001));
+        store.close();
+    }
+
+    @Test
+    public void truncatesTornCatalogTail() throws Exception {
+        File dir = folder.newFolder();
+        TimeSeriesStore store = new TimeSeriesStore(dir);
+        append(store, "a", BASE, 3);
+        append(store, "b", BASE, 4);
+        store.close();
+        //新主题的记录只写了一半
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "topics.log"), "rw");
+        raf.seek(raf.length());
+        raf.write(new byte[] {0, 0, 0, 9, 1, 2});
+        raf.close();
+
+        store = new TimeSeriesStore(dir);
+        assertEquals(Arrays.asList("a", "b"), store.topics());
+        append(store, "c", BASE, 5);
+        store.close();
+        store = new TimeSeriesStore(dir);
+        assertEquals(Arrays.asList("a", "b", "c"), store.topics());
+        assertEquals(4, timestamps(store, "b", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(5, timestamps(store, "c", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        store.close();
+    }
+}
@@ -0,0 +1,126 @@
+package com.homework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class WindowedRollupTest {
+    private static final long BASE = 1200000000L;
+
+    private final List<String> emitted = new ArrayList<String>();
+    private final WindowedRollup.Sink sink = new WindowedRollup.Sink() {
+        public void onRollup(String name, String topic, long windowStart, long windowEnd,
+                             long count, double min, double max, double sum) {
+            emitted.add(topic + " " + (windowStart - BASE) + "-" + (windowEnd - BASE) + " count=" + count
+                    + " min=" + min + " max=" + max + " sum=" + sum);
+        }
+    };
+
+    /**
+     * 最后一条读数之后按墙上时钟又过了wait毫秒
+     */
+    private static long idle(long wait) {
+        return System.currentTimeMillis() + wait + 1;
+    }
+
+    @Test
+    public void tumblingWindowClosesOnEventTime() {
+        WindowedRollup rollup = new WindowedRollup("1s", 1000, 0, 10, sink);
+        rollup.add("t", BASE + 100, 1);
+        rollup.add("t", BASE + 900, 3);
+        assertEquals(0, emitted.size());
+        rollup.add("t", BASE + 1500, 10);
+        assertEquals(1, emitted.size());
+        assertEquals("t 0-1000 count=2 min=1.0 max=3.0 sum=4.0", emitted.get(0));
+    }
+
+    @Test
+    public void slidingWindowsShareReadings() {
+        WindowedRollup rollup = new WindowedRollup("2s", 2000, 1000, 0, 10, sink);
+        rollup.add("t", BASE + 500, 1);
+        rollup.add("t", BASE + 1500, 2);
+        rollup.add("t", BASE + 2500, 4);
+        rollup.add("t", BASE + 10000, 0);
+        assertEquals("t -1000-1000 count=1 min=1.0 max=1.0 sum=1.0", emitted.get(0));
+        assertEquals("t 0-2000 count=2 min=1.0 max=2.0 sum=3.0", emitted.get(1));
+        assertEquals("t 1000-3000 count=2 min=2.0 max=4.0 sum=6.0", emitted.get(2));
+        assertEquals("t 2000-4000 count=1 min=4.0 max=4.0 sum=4.0", emitted.get(3));
+        assertEquals(4, emitted.size());
+    }
+
+    @Test
+    public void lateReadingsCountUntilWatermarkPasses() {
+        WindowedRollup rollup = new WindowedRollup("1s", 1000, 500, 10, sink);
+        rollup.add("t", BASE + 900, 1);
+        rollup.add("t", BASE + 1200, 2);
+        //晚到但还在允许的范围内
+        rollup.add("t", BASE + 800, 3);
+        rollup.add("t", BASE + 1600, 4);
+        assertEquals("t 0-1000 count=2 min=1.0 max=3.0 sum=4.0", emitted.get(0));
+        //窗口已经关闭
+        rollup.add("t", BASE + 700, 5);
+        assertEquals(1, rollup.getLateCount());
+        assertEquals(1, emitted.size());
+    }
+
+    @Test
+    public void expireLeavesActiveSeriesAlone() {
+        WindowedRollup rollup = new WindowedRollup("1s", 1000, 2000, 10, sink);
+        rollup.add("t", BASE + 100, 1);
+        //事件时间和墙上时钟无关，刚收到读数的主题不按事件时间关闭
+        rollup.expire(BASE + 3200);
+        rollup.expire(System.currentTimeMillis());
+        rollup.add("t", BASE + 200, 2);
+        assertEquals(0, emitted.size());
+        rollup.expire(idle(1000 + 2000));
+        assertEquals(1, emitted.size());
+        assertEquals("t 0-1000 count=2 min=1.0 max=2.0 sum=3.0", emitted.get(0));
+        assertEquals(0, rollup.activeSeries());
+    }
+
+    @Test
+    public void sparseReadingsDoNotSplitALongWindow() {
+        WindowedRollup rollup = new WindowedRollup("1m", 60000, 2000, 10, sink);
+        for (int i = 0; i < 4; i++) {
+            rollup.add("t", BASE + 5000L * i, i);
+            //下一条读数5秒后才来，中间定时调用expire
+            for (long tick = 1000; tick <= 5000; tick += 1000) {
+                rollup.expire(System.currentTimeMillis() + tick);
+            }
+        }
+        assertEquals(0, emitted.size());
+        assertEquals(1, rollup.activeSeries());
+        //最后一条读数所在的窗口结束后再过allowedLateness才关闭
+        rollup.expire(idle(60000 - 15000 + 1000));
+        assertEquals(0, emitted.size());
+        rollup.expire(idle(60000 - 15000 + 2000));
+        assertEquals(1, emitted.size());
+        assertEquals("t 0-60000 count=4 min=0.0 max=3.0 sum=6.0", emitted.get(0));
+        assertEquals(0, rollup.activeSeries());
+    }
+
+    @Test
+    public void seriesBeyondTheLimitAreRejectedUntilExpired() {
+        WindowedRollup rollup = new WindowedRollup("1s", 1000, 0, 2, sink);
+        rollup.add("a", BASE, 1);
+        rollup.add("b", BASE, 1);
+        rollup.add("c", BASE, 1);
+        assertEquals(1, rollup.getRejectedCount());
+        assertEquals(2, rollup.activeSeries());
+        rollup.expire(idle(1000));
+        assertEquals(0, rollup.activeSeries());
+        assertEquals(2, rollup.getEmittedCount());
+        rollup.add("c", BASE, 1);
+        assertEquals(1, rollup.activeSeries());
+    }
+
+    @Test
+    public void nanIsIgnored() {
+        WindowedRollup rollup = new WindowedRollup("1s", 1000, 0, 10, sink);
+        rollup.add("t", BASE, Double.NaN);
+        assertEquals(0, rollup.activeSeries());
+    }
+}